@@ -0,0 +1,17 @@
+package de.torbenhansing.accuweatherprovider;
+
+import android.app.Application;
+
+import de.torbenhansing.accuweatherprovider.utils.AndroidLogging;
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+
+/**
+ * Sets up what the services and the settings share before any of them is created
+ */
+public class AccuWeatherProviderApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Logging.setBackend(new AndroidLogging());
+    }
+}
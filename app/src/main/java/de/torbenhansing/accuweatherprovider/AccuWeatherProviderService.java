@@ -16,19 +16,44 @@
 
 package de.torbenhansing.accuweatherprovider;
 
-import android.annotation.SuppressLint;
 import android.content.SharedPreferences;
 import android.location.Location;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherService;
+import de.torbenhansing.accuweatherprovider.accuweather.ApiKeyManager;
+import de.torbenhansing.accuweatherprovider.cache.RecentLocations;
+import de.torbenhansing.accuweatherprovider.utils.EventCounter;
+import de.torbenhansing.accuweatherprovider.utils.GeoHash;
+import de.torbenhansing.accuweatherprovider.utils.Histogram;
 import de.torbenhansing.accuweatherprovider.utils.Logging;
+import de.torbenhansing.accuweatherprovider.utils.SnapshotLog;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cyanogenmod.weather.CMWeatherManager;
 import cyanogenmod.weather.RequestInfo;
@@ -41,27 +66,220 @@ import cyanogenmod.weatherservice.WeatherProviderService;
 public class AccuWeatherProviderService extends WeatherProviderService
         implements SharedPreferences.OnSharedPreferenceChangeListener {
 
-    private static final String API_KEY = "api_key";
-    private static final String API_KEY_VERIFIED_STATE = "api_key_verified_state";
-
-    private static final int API_KEY_INVALID = 0;
-    private static final int API_KEY_VERIFIED = 2;
-
     private AccuWeatherService mAccuWeatherService;
+    private ThreadPoolExecutor mExecutor;
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30L;
 
-    private final Map<ServiceRequest,WeatherUpdateRequestTask> mWeatherUpdateRequestMap = new HashMap<>();
+    private final Map<ServiceRequest,WeatherUpdateRequestTask> mWeatherUpdateRequestMap
+            = new ConcurrentHashMap<>();
     private final Map<ServiceRequest,LookupCityNameRequestTask> mLookupCityRequestMap = new HashMap<>();
-    //OpenWeatherMap recommends to wait 10 min between requests
-    private final static long REQUEST_THRESHOLD = 1000L * 60L * 10L;
-    private long mLastRequestTimestamp = -REQUEST_THRESHOLD;
-    private WeatherLocation mLastWeatherLocation;
-    private Location mLastLocation;
-    //5km of threshold, the weather won't change that much in such short distance
-    private static final float LOCATION_DISTANCE_METERS_THRESHOLD = 5f * 1000f;
+    //Geo requests whose request key is being resolved on the executor, main thread only
+    private final Set<ServiceRequest> mResolvingRequests = new HashSet<>();
+    private Handler mHandler;
+    private long mCityLookupDebounce;
+    private final LocationStateTable<WeatherUpdateRequestTask> mLocationStates
+            = new LocationStateTable<>();
+    private long mMinRequestInterval;
+    private long mMinGeoRequestInterval;
+    //Geohash cells of roughly 5km x 5km, the weather won't change that much in such short distance
+    private static final int GEO_REQUEST_KEY_PRECISION = 5;
+    private static final String CITY_REQUEST_KEY_PREFIX = "city:";
+    private static final String GEO_REQUEST_KEY_PREFIX = "geo:";
+    //Distance between two positions prefetched ahead, a bit less than a geohash cell
+    private static final float TRAJECTORY_STEP_METERS = 4000f;
+    private LocationTracker mLocationTracker;
+    private long mTrajectoryPrefetchLookahead;
+    private int mTrajectoryPrefetchMaxCells;
+    //When each location was last fetched, so the throttling outlives the process
+    private static final String LOCATION_LOG_FILE_NAME = "locations.log";
+    private static final int LOCATION_LOG_INITIAL_CAPACITY = 8 * 1024;
+    private SnapshotLog mLocationLog;
+    //Compacts the location log, so it can be awaited when the service goes away
+    private ExecutorService mLocationLogExecutor;
+    private static final long LOCATION_LOG_SHUTDOWN_TIMEOUT_MILLIS = 1000L;
+
+    private enum RequestEvent {
+        WEATHER_SUBMITTED,
+        LOOKUP_SUBMITTED,
+        //Attached to an update already in flight for the same location
+        COALESCED,
+        //Submitted too soon and answered with the last known weather
+        ANSWERED_TOO_SOON,
+        REJECTED_TOO_SOON,
+        LOOKUP_ANSWERED_LOCALLY,
+        COMPLETED,
+        CANCELLED,
+        FAILED_INVALID_API_KEY,
+        FAILED_NO_DATA,
+        FAILED_SUPERSEDED,
+        //Geo location answered under the key of the location fetched a moment ago
+        MOVED_NEARBY,
+        TRAJECTORY_PREFETCHED
+    }
+
+    private final EventCounter<RequestEvent> mRequestEvents
+            = new EventCounter<>(RequestEvent.class);
+    //Tasks waiting in the executor queue when a new one is queued
+    private final Histogram mQueueDepth = new Histogram();
+    private final Histogram mQueueWait = new Histogram();
+    private final Histogram mWeatherUpdateLatency = new Histogram();
+    private final Histogram mCityLookupLatency = new Histogram();
+    private RecentLocations mRecentLocations;
 
     @Override
     public void onCreate() {
-        mAccuWeatherService = new AccuWeatherService(this);
+        mAccuWeatherService = AccuWeatherService.getInstance(this);
+        mRecentLocations = new RecentLocations(getCacheDir(),
+                getResources().getInteger(R.integer.config_prefetchMaxLocations));
+        final int threads = getResources().getInteger(R.integer.config_requestThreads);
+        mExecutor = new ThreadPoolExecutor(threads, threads, EXECUTOR_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "AccuWeatherRequest #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+        mHandler = new Handler(Looper.getMainLooper());
+        mCityLookupDebounce = getResources().getInteger(R.integer.config_cityLookupDebounceMillis);
+        mMinRequestInterval = TimeUnit.MINUTES.toMillis(
+                getResources().getInteger(R.integer.config_minRequestIntervalMinutes));
+        mMinGeoRequestInterval = TimeUnit.MINUTES.toMillis(
+                getResources().getInteger(R.integer.config_minGeoRequestIntervalMinutes));
+        mLocationTracker = new LocationTracker(
+                getResources().getInteger(R.integer.config_locationTrackerMaxFixes),
+                TimeUnit.MINUTES.toMillis(
+                        getResources().getInteger(R.integer.config_locationDedupHorizonMinutes)),
+                getResources().getInteger(R.integer.config_locationDedupMaxRadiusMeters));
+        mTrajectoryPrefetchLookahead = TimeUnit.MINUTES.toMillis(
+                getResources().getInteger(R.integer.config_trajectoryPrefetchMinutes));
+        mTrajectoryPrefetchMaxCells
+                = getResources().getInteger(R.integer.config_trajectoryPrefetchMaxCells);
+        mLocationLogExecutor = Executors.newSingleThreadExecutor();
+        try {
+            mLocationLog = new SnapshotLog(new File(getCacheDir(), LOCATION_LOG_FILE_NAME),
+                    LOCATION_LOG_INITIAL_CAPACITY);
+            restoreLocationStates();
+        } catch (IOException e) {
+            Logging.loge("Unable to open the location log: " + e);
+        }
+    }
+
+    /**
+     * Throttles the locations fetched before the process was restarted as if it had kept
+     * running. Their weather is still in the weather cache, so requests submitted too soon are
+     * answered from there right away
+     */
+    private void restoreLocationStates() {
+        final long start = SystemClock.elapsedRealtime();
+        final long now = System.currentTimeMillis();
+        int restored = 0;
+        for (String requestKey : mLocationLog.getKeys()) {
+            final long age = now - mLocationLog.get(requestKey).getLong(0);
+            final long minInterval = getMinRequestInterval(requestKey);
+            if (age >= 0 && age < minInterval) {
+                mLocationStates.get(requestKey, minInterval).onRestored(start - age);
+                restored++;
+            }
+        }
+        Logging.logd("Restored %d location states in %d ms", restored,
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Records the fetch of a location in the location log
+     * @param now The time of the fetch in milliseconds since the epoch
+     */
+    private void logFetch(String requestKey, long now) {
+        if (mLocationLog == null) {
+            return;
+        }
+        final ByteBuffer fetchTime = ByteBuffer.allocate(8);
+        fetchTime.putLong(0, now);
+        try {
+            mLocationLog.put(requestKey, fetchTime);
+        } catch (IOException e) {
+            Logging.loge("Unable to log the fetch of " + requestKey + ": " + e);
+            return;
+        }
+        if (!mLocationLog.requestCompaction()) {
+            return;
+        }
+        try {
+            mLocationLogExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long compactionTime = System.currentTimeMillis();
+                    try {
+                        mLocationLog.compact(new SnapshotLog.Filter() {
+                            @Override
+                            public boolean isLive(String key, ByteBuffer value) {
+                                return compactionTime - value.getLong(0)
+                                        < getMinRequestInterval(key);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Logging.loge("Unable to compact the location log: " + e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //The service is going away, the log is compacted once it fills up again
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacksAndMessages(null);
+        mExecutor.shutdownNow();
+        //Let a compaction in progress finish, it can't be interrupted while it copies the log
+        mLocationLogExecutor.shutdown();
+        try {
+            if (!mLocationLogExecutor.awaitTermination(LOCATION_LOG_SHUTDOWN_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                Logging.logw("Location log compaction is taking long, closing the log after it");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mLocationLog != null) {
+            mLocationLog.close();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Requests:");
+        mRequestEvents.dump(pw, "  ");
+        final int pendingLookups;
+        synchronized (mLookupCityRequestMap) {
+            pendingLookups = mLookupCityRequestMap.size();
+        }
+        pw.println("Queue: " + mExecutor.getQueue().size() + " queued, "
+                + mExecutor.getActiveCount() + " running, "
+                + mWeatherUpdateRequestMap.size() + " requests waiting for updates, "
+                + pendingLookups + " city lookups pending");
+        pw.println("  Depth: " + mQueueDepth);
+        pw.println("  Wait (ms): " + mQueueWait);
+        pw.println("Latency (ms):");
+        pw.println("  Weather update: " + mWeatherUpdateLatency);
+        pw.println("  City lookup: " + mCityLookupLatency);
+        if (mLocationLog != null) {
+            mLocationLog.dump(pw, "Location log: ");
+        }
+        mLocationTracker.dump(pw, SystemClock.elapsedRealtime());
+        mAccuWeatherService.dump(pw);
+        pw.println("Trace:");
+        Logging.dumpTrace(pw, "  ");
     }
 
     @Override
@@ -69,7 +287,7 @@ public class AccuWeatherProviderService extends WeatherProviderService
         final SharedPreferences preferences
                 = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.registerOnSharedPreferenceChangeListener(this);
-        final String mApiId = preferences.getString(API_KEY, null);
+        final String mApiId = preferences.getString(ApiKeyManager.API_KEY, null);
         mAccuWeatherService.setApiKey(mApiId);
     }
 
@@ -84,55 +302,42 @@ public class AccuWeatherProviderService extends WeatherProviderService
     protected void onRequestSubmitted(ServiceRequest request) {
         RequestInfo requestInfo = request.getRequestInfo();
         int requestType = requestInfo.getRequestType();
-        Logging.logd("Received request type " + requestType);
-
-        if (((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ &&
-                isSameGeoLocation(requestInfo.getLocation(), mLastLocation))
-                || (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ &&
-                isSameWeatherLocation(requestInfo.getWeatherLocation(),
-                        mLastWeatherLocation))) && wasRequestSubmittedTooSoon()) {
-            request.reject(CMWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
-            return;
-        }
+        Logging.logd("Received request type %d", requestType);
 
         switch (requestType) {
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask updateTask
-                            = new WeatherUpdateRequestTask(request);
-                    mWeatherUpdateRequestMap.put(request, updateTask);
-                    mLastRequestTimestamp = SystemClock.elapsedRealtime();
-                    updateTask.execute();
-                }
+                mRequestEvents.increment(RequestEvent.WEATHER_SUBMITTED);
+                submitWeatherUpdate(request);
                 break;
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
-                    mLookupCityRequestMap.put(request, lookupTask);
-                    lookupTask.execute();
-                }
+                mRequestEvents.increment(RequestEvent.LOOKUP_SUBMITTED);
+                submitCityLookup(request);
                 break;
         }
     }
 
     @Override
     protected void onRequestCancelled(ServiceRequest request) {
+        mRequestEvents.increment(RequestEvent.CANCELLED);
         switch (request.getRequestInfo().getRequestType()) {
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask task = mWeatherUpdateRequestMap.remove(request);
-                    if (task != null) {
-                        task.cancel(true);
-                    }
+                if (mResolvingRequests.remove(request)) {
                     return;
                 }
+                WeatherUpdateRequestTask updateTask = mWeatherUpdateRequestMap.remove(request);
+                //Only cancel the update once nobody is waiting for it anymore
+                if (updateTask != null && updateTask.removeRequest(request)) {
+                    updateTask.getLocationState().compareAndSetInFlight(updateTask, null);
+                    updateTask.cancel();
+                }
+                return;
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
                 synchronized (mLookupCityRequestMap) {
                     LookupCityNameRequestTask task = mLookupCityRequestMap.remove(request);
                     if (task != null) {
-                        task.cancel(true);
+                        task.cancel();
                     }
                 }
                 return;
@@ -145,61 +350,321 @@ public class AccuWeatherProviderService extends WeatherProviderService
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (key.equals(API_KEY)) {
+        if (key.equals(ApiKeyManager.API_KEY)) {
             Logging.logd("API key has changed");
             final String mApiKey = sharedPreferences.getString(key, null);
             mAccuWeatherService.setApiKey(mApiKey);
         }
     }
-    private boolean isSameWeatherLocation(WeatherLocation newLocation,
-            WeatherLocation oldLocation) {
-        return !(newLocation == null || oldLocation == null) && (
-                newLocation.getCityId().equals(oldLocation.getCityId()) &&
-                newLocation.getCity().equals(oldLocation.getCity()) &&
-                newLocation.getPostalCode().equals(oldLocation.getPostalCode()) &&
-                newLocation.getCountry().equals(oldLocation.getCountry()) &&
-                newLocation.getCountryId().equals(oldLocation.getCountryId())
-        );
+
+    private void submitCityLookup(ServiceRequest request) {
+        //Narrowing a previous search doesn't need a request at all
+        final List<WeatherLocation> locations
+                = mAccuWeatherService.lookupCityLocally(request.getRequestInfo().getCityName());
+
+        //Only the latest lookup is sent upstream, the older ones are outdated while the user
+        //is still typing
+        final List<LookupCityNameRequestTask> superseded;
+        synchronized (mLookupCityRequestMap) {
+            superseded = new ArrayList<>(mLookupCityRequestMap.values());
+            mLookupCityRequestMap.clear();
+        }
+        for (LookupCityNameRequestTask task : superseded) {
+            task.supersede();
+        }
+
+        if (locations != null) {
+            mRequestEvents.increment(RequestEvent.LOOKUP_ANSWERED_LOCALLY);
+            request.complete(new ServiceRequestResult.Builder(locations).build());
+            return;
+        }
+        LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
+        synchronized (mLookupCityRequestMap) {
+            mLookupCityRequestMap.put(request, lookupTask);
+        }
+        lookupTask.schedule(mCityLookupDebounce);
     }
 
-    private boolean isSameGeoLocation(Location newLocation, Location oldLocation) {
-        if (newLocation == null || oldLocation == null) return false;
-        float distance = newLocation.distanceTo(oldLocation);
-        Logging.logd("Distance between locations " + distance);
-        return (distance < LOCATION_DISTANCE_METERS_THRESHOLD);
+    private void submitWeatherUpdate(final ServiceRequest request) {
+        final RequestInfo requestInfo = request.getRequestInfo();
+        if (requestInfo.getRequestType() != RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            submitWeatherUpdate(request, getRequestKey(requestInfo));
+            return;
+        }
+        //Resolving a geo location might read the geo location cache from disk and scan the
+        //offline city index, so it's done on the executor and the request submitted from here
+        //once its key is known, unless it got cancelled in the meantime
+        mResolvingRequests.add(request);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String requestKey = getRequestKey(requestInfo);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mResolvingRequests.remove(request)) {
+                            submitWeatherUpdate(request, requestKey);
+                        }
+                    }
+                });
+            }
+        });
     }
 
-    private boolean wasRequestSubmittedTooSoon() {
+    private void submitWeatherUpdate(ServiceRequest request, String requestKey) {
+        final RequestInfo requestInfo = request.getRequestInfo();
+        LocationStateTable.LocationState<WeatherUpdateRequestTask> state
+                = mLocationStates.get(requestKey, getMinRequestInterval(requestKey));
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            state = getNearbyState(requestInfo.getLocation(), state);
+            requestKey = state.getKey();
+        }
+
+        //Somebody already asked for this location, share the result
+        WeatherUpdateRequestTask inFlight = state.getInFlight();
+        if (inFlight != null && inFlight.addRequest(request)) {
+            mRequestEvents.increment(RequestEvent.COALESCED);
+            Logging.logd("Attaching request to in-flight update for %s", requestKey);
+            Logging.trace("coalesced", requestKey, 0);
+            mWeatherUpdateRequestMap.put(request, inFlight);
+            return;
+        }
+
         final long now = SystemClock.elapsedRealtime();
-        Logging.logd("Now " + now + " last request " + mLastRequestTimestamp);
-        return (mLastRequestTimestamp + REQUEST_THRESHOLD > now);
+        if (state.wasFetchedTooSoon(now)) {
+            //Answer with the data we already have instead of rejecting the request
+            WeatherInfo weatherInfo = getCachedWeather(requestInfo);
+            if (weatherInfo == null) {
+                weatherInfo = state.getLastResult();
+            }
+            if (weatherInfo != null) {
+                mRequestEvents.increment(RequestEvent.ANSWERED_TOO_SOON);
+                Logging.logd("Request for %s submitted too soon, completing with the last "
+                        + "known weather", requestKey);
+                Logging.trace("answered_too_soon", requestKey, 0);
+                request.complete(new ServiceRequestResult.Builder(weatherInfo).build());
+            } else {
+                mRequestEvents.increment(RequestEvent.REJECTED_TOO_SOON);
+                Logging.trace("rejected_too_soon", requestKey, 0);
+                request.reject(CMWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
+            }
+            return;
+        }
+
+        WeatherUpdateRequestTask updateTask = new WeatherUpdateRequestTask(state, request);
+        while (!state.compareAndSetInFlight(inFlight, updateTask)) {
+            //Another update got registered in the meantime, try to join it instead
+            inFlight = state.getInFlight();
+            if (inFlight != null && inFlight.addRequest(request)) {
+                mRequestEvents.increment(RequestEvent.COALESCED);
+                mWeatherUpdateRequestMap.put(request, inFlight);
+                return;
+            }
+        }
+        mWeatherUpdateRequestMap.put(request, updateTask);
+        Logging.trace("update_submitted", requestKey, mExecutor.getQueue().size());
+        updateTask.execute();
     }
 
-    @SuppressLint("StaticFieldLeak")
-    private class WeatherUpdateRequestTask extends AsyncTask<Void, Void, WeatherInfo> {
+    /**
+     * A moving device keeps using the weather fetched a short distance behind it instead of
+     * fetching the weather of every cell it enters, as long as that weather is still recent
+     * or being fetched
+     * @return The state of the location fetched nearby or the given state
+     */
+    private LocationStateTable.LocationState<WeatherUpdateRequestTask> getNearbyState(
+            Location location, LocationStateTable.LocationState<WeatherUpdateRequestTask> state) {
+        final long now = SystemClock.elapsedRealtime();
+        mLocationTracker.onFix(location, now);
+        if (state.getInFlight() != null || state.wasFetchedTooSoon(now)) {
+            return state;
+        }
+        final String nearbyKey = mLocationTracker.getNearbyRequestKey(location, now);
+        if (nearbyKey == null || nearbyKey.equals(state.getKey())) {
+            return state;
+        }
+        final LocationStateTable.LocationState<WeatherUpdateRequestTask> nearbyState
+                = mLocationStates.peek(nearbyKey);
+        if (nearbyState == null
+                || (nearbyState.getInFlight() == null && !nearbyState.wasFetchedTooSoon(now))) {
+            return state;
+        }
+        mRequestEvents.increment(RequestEvent.MOVED_NEARBY);
+        Logging.trace("moved_nearby", nearbyKey, (long) mLocationTracker.getDedupRadius(now));
+        return nearbyState;
+    }
 
+    /**
+     * Resolves the cells ahead of a moving device and fetches their weather, so it is cached
+     * by the time the device gets there. Each cell is only prefetched once
+     */
+    private void prefetchTrajectory() {
+        if (mTrajectoryPrefetchLookahead <= 0) {
+            return;
+        }
+        final List<Location> positions = mLocationTracker.predict(TRAJECTORY_STEP_METERS,
+                mTrajectoryPrefetchLookahead, mTrajectoryPrefetchMaxCells,
+                SystemClock.elapsedRealtime());
+        for (Location position : positions) {
+            final String cell = GeoHash.encode(position.getLatitude(), position.getLongitude(),
+                    GEO_REQUEST_KEY_PRECISION);
+            if (!mLocationTracker.markPrefetched(cell)) {
+                continue;
+            }
+            mRequestEvents.increment(RequestEvent.TRAJECTORY_PREFETCHED);
+            Logging.trace("trajectory_prefetch", cell, position.getTime());
+            try {
+                mAccuWeatherService.prefetchWeatherAsync(position, position.getTime(), null,
+                        new AccuWeatherService.WeatherCallback() {
+                            @Override
+                            public void onWeatherInfoReceived(WeatherInfo weatherInfo) {
+                                Logging.logd("Prefetched weather ahead in %s: %s", cell,
+                                        weatherInfo != null ? weatherInfo.getCity() : null);
+                            }
+                        });
+            } catch (AccuWeatherService.InvalidApiKeyException e) {
+                return;
+            }
+        }
+    }
+
+    private long getMinRequestInterval(String requestKey) {
+        return requestKey.startsWith(GEO_REQUEST_KEY_PREFIX)
+                ? mMinGeoRequestInterval : mMinRequestInterval;
+    }
+
+    /**
+     * Returns the key under which requests for the same location are coalesced. Geo locations
+     * are resolved to their location key if it is known, otherwise nearby locations share a key.
+     * Resolving a geo location might read from disk, never do that on the main thread
+     */
+    private String getRequestKey(RequestInfo requestInfo) {
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            final Location location = requestInfo.getLocation();
+            final String locationKey = mAccuWeatherService.getCachedLocationKey(location);
+            if (locationKey != null) {
+                return CITY_REQUEST_KEY_PREFIX + locationKey;
+            }
+            return GEO_REQUEST_KEY_PREFIX + GeoHash.encode(location.getLatitude(),
+                    location.getLongitude(), GEO_REQUEST_KEY_PRECISION);
+        } else {
+            return CITY_REQUEST_KEY_PREFIX + requestInfo.getWeatherLocation().getCityId();
+        }
+    }
+
+    private WeatherInfo getCachedWeather(RequestInfo requestInfo) {
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            return mAccuWeatherService.getCachedWeather(requestInfo.getLocation());
+        } else {
+            return mAccuWeatherService.getCachedWeather(requestInfo.getWeatherLocation());
+        }
+    }
+
+    /**
+     * A request processed on the provider's executor. Cancelling the task cancels the HTTP calls
+     * it has issued and makes sure its result is never delivered
+     */
+    private abstract class RequestTask<Result> implements Runnable {
+
+        final protected CancellationSignal mCancellationSignal = new CancellationSignal();
+        final protected long mCreated = SystemClock.elapsedRealtime();
+        //Why the requests are failed if the task comes back without a result
+        protected RequestEvent mFailure = RequestEvent.FAILED_NO_DATA;
+        private long mQueued;
+
+        void execute() {
+            mQueueDepth.record(mExecutor.getQueue().size());
+            mQueued = SystemClock.elapsedRealtime();
+            mExecutor.execute(this);
+        }
+
+        void cancel() {
+            mCancellationSignal.cancel();
+        }
+
+        @Override
+        public final void run() {
+            //The task might have been cancelled while waiting in the queue
+            if (mCancellationSignal.isCanceled()) {
+                return;
+            }
+            mQueueWait.record(SystemClock.elapsedRealtime() - mQueued);
+            Result result = doInBackground();
+            if (!mCancellationSignal.isCanceled()) {
+                onPostExecute(result);
+            }
+        }
+
+        protected abstract Result doInBackground();
+
+        protected abstract void onPostExecute(Result result);
+    }
+
+    private class WeatherUpdateRequestTask extends RequestTask<WeatherInfo> {
+
+        final private LocationStateTable.LocationState<WeatherUpdateRequestTask> mState;
         final private ServiceRequest mRequest;
+        //All requests waiting for this update, guarded by this task
+        final private List<ServiceRequest> mRequests = new ArrayList<>();
+        //Set once the requests have been handed out or all of them were cancelled
+        private boolean mClosed;
 
-        WeatherUpdateRequestTask(ServiceRequest request) {
+        WeatherUpdateRequestTask(LocationStateTable.LocationState<WeatherUpdateRequestTask> state,
+                                 ServiceRequest request) {
+            mState = state;
             mRequest = request;
+            mRequests.add(request);
+        }
+
+        LocationStateTable.LocationState<WeatherUpdateRequestTask> getLocationState() {
+            return mState;
+        }
+
+        /**
+         * @return false if the update is already finishing and can't take new requests
+         */
+        synchronized boolean addRequest(ServiceRequest request) {
+            if (mClosed) {
+                return false;
+            }
+            mRequests.add(request);
+            return true;
+        }
+
+        /**
+         * @return true if no request is waiting for this update anymore
+         */
+        synchronized boolean removeRequest(ServiceRequest request) {
+            mRequests.remove(request);
+            if (mRequests.isEmpty()) {
+                mClosed = true;
+            }
+            return mClosed;
+        }
+
+        private synchronized List<ServiceRequest> close() {
+            mClosed = true;
+            return new ArrayList<>(mRequests);
         }
 
         @Override
-        protected WeatherInfo doInBackground(Void... params) {
+        protected WeatherInfo doInBackground() {
             RequestInfo requestInfo = mRequest.getRequestInfo();
             int requestType = requestInfo.getRequestType();
             if (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
                 try {
-                    return mAccuWeatherService.queryWeather(requestInfo.getWeatherLocation());
+                    return mAccuWeatherService.queryWeather(requestInfo.getWeatherLocation(),
+                            mCancellationSignal);
                 } catch (AccuWeatherService.InvalidApiKeyException e) {
-                    setApiKeyVerified(API_KEY_INVALID);
+                    mFailure = RequestEvent.FAILED_INVALID_API_KEY;
                     return null;
                 }
             } else if (requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
                 try {
-                    return mAccuWeatherService.queryWeather(requestInfo.getLocation());
+                    return mAccuWeatherService.queryWeather(requestInfo.getLocation(),
+                            mCancellationSignal);
                 } catch (AccuWeatherService.InvalidApiKeyException e) {
-                    setApiKeyVerified(API_KEY_INVALID);
+                    mFailure = RequestEvent.FAILED_INVALID_API_KEY;
                     return null;
                 }
             } else {
@@ -211,71 +676,168 @@ public class AccuWeatherProviderService extends WeatherProviderService
 
         @Override
         protected void onPostExecute(WeatherInfo weatherInfo) {
+            final long latency = SystemClock.elapsedRealtime() - mCreated;
+            mWeatherUpdateLatency.record(latency);
+            final long now = SystemClock.elapsedRealtime();
+            if (weatherInfo != null) {
+                //Before closing, a request that can't join anymore must find the location
+                //fetched instead of starting another update
+                mState.onFetched(now, weatherInfo);
+            }
+            final List<ServiceRequest> requests = close();
+            for (ServiceRequest request : requests) {
+                mWeatherUpdateRequestMap.remove(request);
+            }
+            if (weatherInfo != null) {
+                final long wallTime = System.currentTimeMillis();
+                logFetch(mState.getKey(), wallTime);
+                final RequestInfo requestInfo = mRequest.getRequestInfo();
+                if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+                    mLocationTracker.setAnchor(requestInfo.getLocation(), mState.getKey());
+                }
+                //A geo location resolved by this update is known by its location key from now on
+                for (ServiceRequest request : requests) {
+                    final String requestKey = getRequestKey(request.getRequestInfo());
+                    if (!requestKey.equals(mState.getKey())) {
+                        mLocationStates.get(requestKey, getMinRequestInterval(requestKey))
+                                .onFetched(now, weatherInfo);
+                        logFetch(requestKey, wallTime);
+                    }
+                }
+            }
+            mState.compareAndSetInFlight(this, null);
             if (weatherInfo == null) {
-                Logging.logd("Received null weather info, failing request");
-                mRequest.fail();
+                Logging.logd("Received null weather info, failing %d request(s)",
+                        requests.size());
+                Logging.trace("update_failed", mState.getKey(), latency);
+                for (ServiceRequest request : requests) {
+                    mRequestEvents.increment(mFailure);
+                    request.fail();
+                }
             } else {
-                Logging.logd(weatherInfo.toString());
+                Logging.logd("%s", weatherInfo);
+                Logging.trace("update_completed", mState.getKey(), latency);
                 ServiceRequestResult result = new ServiceRequestResult.Builder(weatherInfo).build();
-                mRequest.complete(result);
+                for (ServiceRequest request : requests) {
+                    mRequestEvents.increment(RequestEvent.COMPLETED);
+                    request.complete(result);
+                }
+                recordRequests(requests, weatherInfo);
                 if (mRequest.getRequestInfo().getRequestType()
                         == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                    mLastLocation = mRequest.getRequestInfo().getLocation();
-                } else {
-                    mLastWeatherLocation = mRequest.getRequestInfo().getWeatherLocation();
+                    prefetchTrajectory();
                 }
-                setApiKeyVerified(API_KEY_VERIFIED);
-            }
-            synchronized (mWeatherUpdateRequestMap) {
-                mWeatherUpdateRequestMap.remove(mRequest);
             }
         }
     }
 
-    @SuppressLint("StaticFieldLeak")
-    private class LookupCityNameRequestTask extends AsyncTask<Void, Void, List<WeatherLocation>> {
+    private class LookupCityNameRequestTask extends RequestTask<List<WeatherLocation>> {
 
         final private ServiceRequest mRequest;
+        final private Runnable mExecuteRunnable = new Runnable() {
+            @Override
+            public void run() {
+                execute();
+            }
+        };
 
         LookupCityNameRequestTask(ServiceRequest request) {
             mRequest = request;
         }
 
+        /**
+         * Executes the lookup once the delay has passed, unless it is cancelled or superseded
+         * before
+         */
+        void schedule(long delay) {
+            mHandler.postDelayed(mExecuteRunnable, delay);
+        }
+
         @Override
-        protected List<WeatherLocation> doInBackground(Void... params) {
+        void cancel() {
+            mHandler.removeCallbacks(mExecuteRunnable);
+            super.cancel();
+        }
+
+        /**
+         * Cancels the lookup in favour of a newer one. The request is still answered if the
+         * results of previous lookups cover it, and failed otherwise. The task must have been
+         * removed from the request map already
+         */
+        void supersede() {
+            cancel();
+            final List<WeatherLocation> locations = mAccuWeatherService.lookupCityLocally(
+                    mRequest.getRequestInfo().getCityName());
+            if (locations != null) {
+                mRequestEvents.increment(RequestEvent.LOOKUP_ANSWERED_LOCALLY);
+                mRequest.complete(new ServiceRequestResult.Builder(locations).build());
+            } else {
+                Logging.logd("City lookup for %s superseded",
+                        mRequest.getRequestInfo().getCityName());
+                mRequestEvents.increment(RequestEvent.FAILED_SUPERSEDED);
+                mRequest.fail();
+            }
+        }
+
+        @Override
+        protected List<WeatherLocation> doInBackground() {
             RequestInfo requestInfo = mRequest.getRequestInfo();
             if (requestInfo.getRequestType() != RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
                 Logging.logw("Received unsupported request type " + requestInfo.getRequestType());
                 return null;
             }
             try {
-                return mAccuWeatherService.lookupCity(mRequest.getRequestInfo().getCityName());
+                return mAccuWeatherService.lookupCity(mRequest.getRequestInfo().getCityName(),
+                        mCancellationSignal);
             } catch (AccuWeatherService.InvalidApiKeyException e) {
-                setApiKeyVerified(API_KEY_INVALID);
+                mFailure = RequestEvent.FAILED_INVALID_API_KEY;
                 return null;
             }
         }
 
         @Override
         protected void onPostExecute(List<WeatherLocation> locations) {
+            //Whoever removes the request from the map answers it, it might have been
+            //superseded or cancelled in the meantime
+            synchronized (mLookupCityRequestMap) {
+                if (mLookupCityRequestMap.remove(mRequest) == null) {
+                    return;
+                }
+            }
+            final long latency = SystemClock.elapsedRealtime() - mCreated;
+            mCityLookupLatency.record(latency);
+            Logging.trace(locations != null ? "lookup_completed" : "lookup_failed",
+                    mRequest.getRequestInfo().getCityName(), latency);
             if (locations != null) {
-                for (WeatherLocation location : locations) {
-                    Logging.logd(location.toString());
+                if (Logging.isDebugEnabled()) {
+                    for (WeatherLocation location : locations) {
+                        Logging.logd(location.toString());
+                    }
                 }
                 ServiceRequestResult request = new ServiceRequestResult.Builder(locations).build();
+                mRequestEvents.increment(RequestEvent.COMPLETED);
                 mRequest.complete(request);
-                setApiKeyVerified(API_KEY_VERIFIED);
             } else {
+                mRequestEvents.increment(mFailure);
                 mRequest.fail();
             }
-            synchronized (mLookupCityRequestMap) {
-                mLookupCityRequestMap.remove(mRequest);
-            }
         }
     }
 
-    private void setApiKeyVerified(int state) {
-        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
-        sp.edit().putInt(API_KEY_VERIFIED_STATE, state).apply();
+    /**
+     * Remembers the locations of the answered requests and schedules the prefetch of their next
+     * update. Geo locations are only remembered once their location key is known
+     */
+    private void recordRequests(List<ServiceRequest> requests, WeatherInfo weatherInfo) {
+        final long now = System.currentTimeMillis();
+        for (ServiceRequest request : requests) {
+            final String requestKey = getRequestKey(request.getRequestInfo());
+            if (requestKey.startsWith(CITY_REQUEST_KEY_PREFIX)) {
+                mRecentLocations.record(requestKey.substring(CITY_REQUEST_KEY_PREFIX.length()),
+                        weatherInfo.getCity(), now);
+            }
+        }
+        mRecentLocations.save();
+        PrefetchJobService.schedule(this, mRecentLocations, now);
     }
 }
@@ -0,0 +1,119 @@
+package de.torbenhansing.accuweatherprovider;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cyanogenmod.weather.WeatherInfo;
+
+/**
+ * Request state of every location the provider has been asked for, keyed by the request key of
+ * the location. All state is updated without a global lock, so requests for one location never
+ * interfere with requests for another one.
+ * @param <T> The type of the update tasks tracked as in flight
+ */
+class LocationStateTable<T> {
+    private final ConcurrentHashMap<String, LocationState<T>> mStates = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the state of the location, creating it if the location is new
+     * @param minInterval The minimum time in milliseconds between two fetches, only used if the
+     *                    state has to be created
+     */
+    LocationState<T> get(String key, long minInterval) {
+        LocationState<T> state = mStates.get(key);
+        if (state == null) {
+            LocationState<T> newState = new LocationState<>(key, minInterval);
+            state = mStates.putIfAbsent(key, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return The state of the location or null if the location is unknown
+     */
+    LocationState<T> peek(String key) {
+        return mStates.get(key);
+    }
+
+    Collection<LocationState<T>> getAll() {
+        return mStates.values();
+    }
+
+    static final class LocationState<T> {
+        private final String mKey;
+        private final AtomicReference<T> mInFlight = new AtomicReference<>();
+        private volatile long mMinInterval;
+        private volatile long mLastFetchTimestamp;
+        private volatile boolean mFetched;
+        private volatile WeatherInfo mLastResult;
+
+        LocationState(String key, long minInterval) {
+            mKey = key;
+            mMinInterval = minInterval;
+        }
+
+        String getKey() {
+            return mKey;
+        }
+
+        void setMinInterval(long minInterval) {
+            mMinInterval = minInterval;
+        }
+
+        /**
+         * @param now The current time as returned by SystemClock.elapsedRealtime()
+         * @return true if the location was fetched successfully less than its minimum interval ago
+         */
+        boolean wasFetchedTooSoon(long now) {
+            return mFetched && mLastFetchTimestamp + mMinInterval > now;
+        }
+
+        long getLastFetchTimestamp() {
+            return mLastFetchTimestamp;
+        }
+
+        WeatherInfo getLastResult() {
+            return mLastResult;
+        }
+
+        /**
+         * Records a successful fetch of the location
+         * @param now The current time as returned by SystemClock.elapsedRealtime()
+         */
+        void onFetched(long now, WeatherInfo result) {
+            mLastResult = result;
+            mLastFetchTimestamp = now;
+            mFetched = true;
+        }
+
+        /**
+         * Restores a fetch recorded before the process was restarted. The result of that fetch
+         * is not known, the location is only throttled. Newer fetches are kept
+         * @param timestamp The time of the fetch as returned by SystemClock.elapsedRealtime()
+         */
+        void onRestored(long timestamp) {
+            if (!mFetched) {
+                mLastFetchTimestamp = timestamp;
+                mFetched = true;
+            }
+        }
+
+        /**
+         * @return The update currently in flight for this location, or null
+         */
+        T getInFlight() {
+            return mInFlight.get();
+        }
+
+        /**
+         * Atomically replaces the in-flight update if it is still the expected one
+         */
+        boolean compareAndSetInFlight(T expected, T task) {
+            return mInFlight.compareAndSet(expected, task);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package de.torbenhansing.accuweatherprovider;
+
+import android.location.Location;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Follows the device through the geo locations it asks the weather for. The recent fixes give
+ * an estimate of the speed and the heading, which is used for two things: a moving device
+ * reuses the weather fetched a short distance behind it, within a radius growing with its
+ * speed, and the cells ahead on its way can be resolved and fetched before it gets there.
+ * A device that does not move behaves as if there was no tracker.
+ */
+class LocationTracker {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    //Below this speed the heading is mostly noise, which makes predictions worthless
+    private static final float MIN_PREDICTION_SPEED = 5f;
+    //Fixes older than this don't say anything about the current movement anymore
+    private static final long MAX_FIX_AGE_MILLIS = 15 * 60 * 1000;
+    //Number of cells remembered as prefetched, enough for a few predictions
+    private static final int MAX_PREFETCHED_CELLS = 16;
+
+    private final Location[] mFixes;
+    //Time of each fix as returned by SystemClock.elapsedRealtime()
+    private final long[] mFixTimes;
+    //Total number of fixes recorded, the next one goes to mFixCount % capacity
+    private int mFixCount;
+    private final long mDedupHorizon;
+    private final float mMaxDedupRadius;
+    private Location mAnchor;
+    private String mAnchorKey;
+    private final LinkedHashSet<String> mPrefetchedCells = new LinkedHashSet<>();
+
+    /**
+     * @param maxFixes The number of recent fixes the movement is estimated from
+     * @param dedupHorizon The time in milliseconds a moving device keeps using the weather
+     *                     fetched behind it, the radius is the distance covered in that time
+     * @param maxDedupRadius The maximum radius in meters, whatever the speed
+     */
+    LocationTracker(int maxFixes, long dedupHorizon, float maxDedupRadius) {
+        mFixes = new Location[Math.max(2, maxFixes)];
+        mFixTimes = new long[mFixes.length];
+        mDedupHorizon = dedupHorizon;
+        mMaxDedupRadius = maxDedupRadius;
+    }
+
+    /**
+     * Records a fix of the device
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     */
+    synchronized void onFix(Location location, long now) {
+        //The fix might have been taken a while before the request was sent
+        final long time = location.getElapsedRealtimeNanos() > 0
+                ? location.getElapsedRealtimeNanos() / 1000000 : now;
+        if (mFixCount > 0 && time <= mFixTimes[(mFixCount - 1) % mFixes.length]) {
+            return;
+        }
+        final int slot = mFixCount % mFixes.length;
+        mFixes[slot] = location;
+        mFixTimes[slot] = time;
+        mFixCount++;
+    }
+
+    /**
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     * @return The estimated speed in meters per second, 0 if the device is not known to move
+     */
+    synchronized float getSpeed(long now) {
+        final int newest = getNewestFix(now);
+        if (newest < 0) {
+            return 0;
+        }
+        final int oldest = getOldestFix(now);
+        if (oldest == newest) {
+            final Location fix = mFixes[newest];
+            return fix.hasSpeed() ? fix.getSpeed() : 0;
+        }
+        //Averaged over all fixes, so a single jumpy fix can't fake a movement
+        return mFixes[oldest].distanceTo(mFixes[newest]) * 1000f
+                / (mFixTimes[newest] - mFixTimes[oldest]);
+    }
+
+    /**
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     * @return The estimated heading in degrees east of true north, undefined if the device
+     *         does not move
+     */
+    synchronized float getBearing(long now) {
+        final int newest = getNewestFix(now);
+        if (newest < 0) {
+            return 0;
+        }
+        final int oldest = getOldestFix(now);
+        if (oldest == newest) {
+            return mFixes[newest].getBearing();
+        }
+        return mFixes[oldest].bearingTo(mFixes[newest]);
+    }
+
+    /**
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     * @return The distance in meters within which the weather of the anchor is reused
+     */
+    synchronized float getDedupRadius(long now) {
+        return Math.min(mMaxDedupRadius, getSpeed(now) * mDedupHorizon / 1000f);
+    }
+
+    /**
+     * Remembers the location the weather has last been fetched for
+     * @param requestKey The request key the weather was fetched under
+     */
+    synchronized void setAnchor(Location location, String requestKey) {
+        mAnchor = location;
+        mAnchorKey = requestKey;
+    }
+
+    /**
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     * @return The request key of the anchor if the location is within the dedup radius around
+     *         it, otherwise null
+     */
+    synchronized String getNearbyRequestKey(Location location, long now) {
+        if (mAnchor == null) {
+            return null;
+        }
+        final float radius = getDedupRadius(now);
+        return radius > 0 && mAnchor.distanceTo(location) <= radius ? mAnchorKey : null;
+    }
+
+    /**
+     * Predicts where the device will be if it keeps its speed and heading. Nothing is
+     * predicted if the device moves too slowly for a meaningful heading
+     * @param spacing The distance in meters between two predicted positions
+     * @param lookahead How far ahead in milliseconds positions are predicted
+     * @param maxPositions The maximum number of positions returned
+     * @param now The current time as returned by SystemClock.elapsedRealtime()
+     * @return The predicted positions, ordered by distance. The time of each position is the
+     *         expected arrival in milliseconds since the epoch
+     */
+    synchronized List<Location> predict(float spacing, long lookahead, int maxPositions,
+                                        long now) {
+        final List<Location> positions = new ArrayList<>();
+        final float speed = getSpeed(now);
+        if (speed < MIN_PREDICTION_SPEED) {
+            return positions;
+        }
+        final int newest = getNewestFix(now);
+        final Location origin = mFixes[newest];
+        final double bearing = Math.toRadians(getBearing(now));
+        final double lat = Math.toRadians(origin.getLatitude());
+        final double lon = Math.toRadians(origin.getLongitude());
+        final long wallTime = System.currentTimeMillis();
+        //The device has moved on since the fix was taken
+        final float travelled = speed * (now - mFixTimes[newest]) / 1000f;
+        final float range = speed * lookahead / 1000f;
+        for (int i = 1; i <= maxPositions && i * spacing <= range; i++) {
+            final double distance = (travelled + i * spacing) / EARTH_RADIUS_METERS;
+            final double destLat = Math.asin(Math.sin(lat) * Math.cos(distance)
+                    + Math.cos(lat) * Math.sin(distance) * Math.cos(bearing));
+            final double destLon = lon + Math.atan2(
+                    Math.sin(bearing) * Math.sin(distance) * Math.cos(lat),
+                    Math.cos(distance) - Math.sin(lat) * Math.sin(destLat));
+            Location position = new Location(origin.getProvider());
+            position.setLatitude(Math.toDegrees(destLat));
+            //Normalize to -180..180 in case the way crosses the antimeridian
+            position.setLongitude((Math.toDegrees(destLon) + 540) % 360 - 180);
+            position.setTime(wallTime + (long) (i * spacing * 1000 / speed));
+            positions.add(position);
+        }
+        return positions;
+    }
+
+    /**
+     * Marks the cell as prefetched, only the most recent cells are remembered
+     * @return false if the cell has been prefetched before
+     */
+    synchronized boolean markPrefetched(String cell) {
+        if (!mPrefetchedCells.add(cell)) {
+            return false;
+        }
+        if (mPrefetchedCells.size() > MAX_PREFETCHED_CELLS) {
+            Iterator<String> eldest = mPrefetchedCells.iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    synchronized void dump(PrintWriter pw, long now) {
+        final float speed = getSpeed(now);
+        pw.println(String.format(Locale.ROOT, "Movement: %d fixes, %.1f m/s, heading %.0f, "
+                + "dedup radius %.0f m, anchor %s", Math.min(mFixCount, mFixes.length), speed,
+                speed > 0 ? getBearing(now) : 0f, getDedupRadius(now),
+                mAnchorKey != null ? mAnchorKey : "none"));
+    }
+
+    /**
+     * @return The slot of the newest fix or -1 if there is no recent one
+     */
+    private int getNewestFix(long now) {
+        if (mFixCount == 0) {
+            return -1;
+        }
+        final int newest = (mFixCount - 1) % mFixes.length;
+        return now - mFixTimes[newest] <= MAX_FIX_AGE_MILLIS ? newest : -1;
+    }
+
+    /**
+     * @return The slot of the oldest recent fix, there must be a recent one
+     */
+    private int getOldestFix(long now) {
+        for (int i = Math.max(0, mFixCount - mFixes.length); i < mFixCount - 1; i++) {
+            final int slot = i % mFixes.length;
+            if (now - mFixTimes[slot] <= MAX_FIX_AGE_MILLIS) {
+                return slot;
+            }
+        }
+        return (mFixCount - 1) % mFixes.length;
+    }
+}
@@ -0,0 +1,159 @@
+package de.torbenhansing.accuweatherprovider;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherService;
+import de.torbenhansing.accuweatherprovider.accuweather.ApiKeyManager;
+import de.torbenhansing.accuweatherprovider.cache.RecentLocations;
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+
+/**
+ * Refreshes the weather of the recently requested locations shortly before their next request
+ * is expected, so the request is answered from the cache. All locations expected within the
+ * prefetch window are refreshed in one job. The job prefers to run on an unmetered network
+ * while charging, but runs at the latest a little before the first expected request.
+ */
+public class PrefetchJobService extends JobService {
+    private static final int JOB_ID = 1;
+
+    private Thread mWorker;
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * Schedules the prefetch for the next expected request of the recent locations, replacing
+     * any previously scheduled one. Cancels the prefetch if no request can be anticipated
+     * @param after The time in milliseconds since the epoch after which the request is expected,
+     *              requests expected before are considered prefetched already
+     */
+    static void schedule(Context context, RecentLocations recentLocations, long after) {
+        final Resources res = context.getResources();
+        final JobScheduler jobScheduler
+                = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (!res.getBoolean(R.bool.config_prefetchEnabled)) {
+            jobScheduler.cancel(JOB_ID);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long next = recentLocations.getNextExpectedRequest(Math.max(now, after),
+                getMaxIdle(res));
+        if (next == 0) {
+            jobScheduler.cancel(JOB_ID);
+            return;
+        }
+        final long windowStart = next - getWindow(res);
+        final long deadline = next - TimeUnit.MINUTES.toMillis(
+                res.getInteger(R.integer.config_prefetchLeadMinutes));
+        final JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PrefetchJobService.class))
+                .setMinimumLatency(Math.max(0, windowStart - now))
+                .setOverrideDeadline(Math.max(0, deadline - now))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .build();
+        jobScheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final AccuWeatherService accuWeatherService = AccuWeatherService.getInstance(this);
+        accuWeatherService.setApiKey(PreferenceManager.getDefaultSharedPreferences(this)
+                .getString(ApiKeyManager.API_KEY, null));
+        final RecentLocations recentLocations = new RecentLocations(getCacheDir(),
+                getResources().getInteger(R.integer.config_prefetchMaxLocations));
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        mCancellationSignal = cancellationSignal;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                final long now = System.currentTimeMillis();
+                prefetch(accuWeatherService, recentLocations, now, cancellationSignal);
+                if (!cancellationSignal.isCanceled()) {
+                    schedule(PrefetchJobService.this, recentLocations,
+                            now + getWindow(getResources()));
+                    jobFinished(params, false);
+                }
+            }
+        }, "AccuWeatherPrefetch");
+        mWorker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        //The constraints are no longer met, the requests will be answered on demand instead
+        mCancellationSignal.cancel();
+        mWorker.interrupt();
+        return false;
+    }
+
+    private void prefetch(AccuWeatherService accuWeatherService,
+                          RecentLocations recentLocations, long now,
+                          CancellationSignal cancellationSignal) {
+        final Resources res = getResources();
+        final List<RecentLocations.Entry> entries = recentLocations.getExpected(now,
+                getWindow(res), getMaxIdle(res));
+        Logging.logd("Prefetching the weather of %d location(s)", entries.size());
+        //The weather has to be fresh for the last request expected within the window
+        long freshUntil = now;
+        final List<WeatherLocation> locations = new ArrayList<>(entries.size());
+        for (RecentLocations.Entry entry : entries) {
+            locations.add(new WeatherLocation.Builder(entry.getLocationKey(),
+                    entry.getCityName()).build());
+            freshUntil = Math.max(freshUntil, entry.getNextExpectedRequest(now, getMaxIdle(res)));
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            accuWeatherService.refreshWeatherAsync(locations, freshUntil, cancellationSignal,
+                    new AccuWeatherService.BatchCallback() {
+                        @Override
+                        public void onWeatherInfoReceived(WeatherLocation weatherLocation,
+                                                          WeatherInfo weatherInfo) {
+                            if (weatherInfo == null) {
+                                Logging.logw("Unable to prefetch the weather of "
+                                        + weatherLocation.getCity());
+                            }
+                        }
+
+                        @Override
+                        public void onBatchFinished() {
+                            latch.countDown();
+                        }
+                    });
+            //Bounded by the worst case of fetching the locations one after the other. The job
+            //finishes anyway, the requests still running fill the cache when they return
+            if (!latch.await(locations.size() * accuWeatherService.getQueryTimeout(),
+                    TimeUnit.MILLISECONDS)) {
+                Logging.logw("Timed out prefetching the weather");
+            }
+        } catch (AccuWeatherService.InvalidApiKeyException e) {
+            Logging.logw("Not prefetching without a valid API key");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long getWindow(Resources res) {
+        return TimeUnit.MINUTES.toMillis(res.getInteger(R.integer.config_prefetchWindowMinutes));
+    }
+
+    private static long getMaxIdle(Resources res) {
+        return TimeUnit.HOURS.toMillis(res.getInteger(R.integer.config_prefetchMaxIdleHours));
+    }
+}
@@ -28,12 +28,12 @@ import android.preference.PreferenceManager;
 import android.view.MenuItem;
 import android.widget.Toast;
 
-public class SettingsActivity extends Activity {
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherService;
+import de.torbenhansing.accuweatherprovider.accuweather.ApiKeyManager;
 
-    private static final String API_KEY = "api_key";
-    private static final String API_KEY_VERIFIED_STATE = "api_key_verified_state";
+public class SettingsActivity extends Activity {
 
-    private static final int API_KEY_PENDING_VERIFICATION = 1;
+    private static final String API_KEY = ApiKeyManager.API_KEY;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,6 +62,8 @@ public class SettingsActivity extends Activity {
     public static class ServicePrefsFragment extends PreferenceFragment implements Preference.OnPreferenceChangeListener {
 
         private EditTextPreference mApiKeyPreference;
+        //The key whose verification is shown, a result for an older key is dropped
+        private String mVerifyingApiKey;
 
         @Override
         public void onCreate(Bundle savedInstance) {
@@ -71,19 +73,23 @@ public class SettingsActivity extends Activity {
             mApiKeyPreference = (EditTextPreference) findPreference(API_KEY);
             SharedPreferences sharedPreferences
                     = PreferenceManager.getDefaultSharedPreferences(getActivity());
-            int apiKeyVerificationState = sharedPreferences.getInt(API_KEY_VERIFIED_STATE, -1);
-            try {
-                //lookup the value state
-                String[] stateEntries
-                        = getResources().getStringArray(de.torbenhansing.accuweatherprovider.R.array.api_key_states_entries);
-                String state = stateEntries[apiKeyVerificationState];
-                mApiKeyPreference.setSummary(state);
-            } catch (IndexOutOfBoundsException e) {
+            String apiKey = sharedPreferences.getString(API_KEY, null);
+            if (apiKey == null || apiKey.equals("")) {
                 mApiKeyPreference.setSummary(getString(de.torbenhansing.accuweatherprovider.R.string.prefscreen_api_key_summary,
                         getString(de.torbenhansing.accuweatherprovider.R.string.app_name)));
+            } else {
+                setApiKeySummary(AccuWeatherService.getInstance(getActivity())
+                        .getApiKeyManager().getState());
             }
         }
 
+        private void setApiKeySummary(int state) {
+            //lookup the value state
+            String[] stateEntries
+                    = getResources().getStringArray(de.torbenhansing.accuweatherprovider.R.array.api_key_states_entries);
+            mApiKeyPreference.setSummary(stateEntries[state]);
+        }
+
         @Override
         public void onResume() {
             super.onResume();
@@ -103,14 +109,30 @@ public class SettingsActivity extends Activity {
         public boolean onPreferenceChange(Preference preference, Object newValue) {
             switch (preference.getKey()) {
                 case API_KEY:
-                    SharedPreferences sharedPreferences
-                            = PreferenceManager.getDefaultSharedPreferences(getActivity());
-                    sharedPreferences.edit().putInt(API_KEY_VERIFIED_STATE,
-                            API_KEY_PENDING_VERIFICATION).apply();
-                    mApiKeyPreference.setSummary(getResources().getStringArray(
-                            de.torbenhansing.accuweatherprovider.R.array.api_key_states_entries)[API_KEY_PENDING_VERIFICATION]);
+                    setApiKeySummary(ApiKeyManager.STATE_PENDING_VERIFICATION);
                     Toast.makeText(getActivity(), de.torbenhansing.accuweatherprovider.R.string.api_key_changed_verification_warning,
                             Toast.LENGTH_LONG).show();
+                    //Verify the key right away instead of waiting for the next weather update
+                    mVerifyingApiKey = (String) newValue;
+                    AccuWeatherService.getInstance(getActivity()).verifyApiKeyAsync(
+                            (String) newValue, new AccuWeatherService.ApiKeyCallback() {
+                                @Override
+                                public void onApiKeyVerified(final String apiKey,
+                                                             final int state) {
+                                    final Activity activity = getActivity();
+                                    if (activity == null) {
+                                        return;
+                                    }
+                                    activity.runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (isAdded() && apiKey.equals(mVerifyingApiKey)) {
+                                                setApiKeySummary(state);
+                                            }
+                                        }
+                                    });
+                                }
+                            });
                     return true;
             }
             return false;
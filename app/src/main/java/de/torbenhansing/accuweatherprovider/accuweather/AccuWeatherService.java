@@ -16,180 +16,299 @@
 
 package de.torbenhansing.accuweatherprovider.accuweather;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.location.Location;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
-import android.util.Pair;
-import android.util.SparseIntArray;
-
-import com.google.gson.JsonParseException;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cyanogenmod.providers.CMSettings;
 import cyanogenmod.providers.WeatherContract;
 import cyanogenmod.weather.WeatherInfo;
 import cyanogenmod.weather.WeatherLocation;
+import de.torbenhansing.accuweatherprovider.R;
 import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
 import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
-import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.cache.CityPrefixIndex;
+import de.torbenhansing.accuweatherprovider.cache.GeoLocationCache;
+import de.torbenhansing.accuweatherprovider.cache.OfflineCityIndex;
+import de.torbenhansing.accuweatherprovider.cache.WeatherCache;
+import de.torbenhansing.accuweatherprovider.utils.EventCounter;
+import de.torbenhansing.accuweatherprovider.utils.LanguageCodes;
 import de.torbenhansing.accuweatherprovider.utils.Logging;
-import okhttp3.OkHttpClient;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+import okhttp3.HttpUrl;
 import retrofit2.Call;
+import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 
 public class AccuWeatherService {
-    private static final String BASE_URL = "http://dataservice.accuweather.com";
-    // TODO Add an preference in settings to customize this
-    private static final int FORECAST_DAYS = 5;
-    // Our requests should always include all details possible
-    private static final boolean DETAILS = true;
-    // Do we wan't to get the larger city when doing a lookup for locations?
-    private  static final boolean TOPLEVEL = false;
+    private static final String BASE_URL = "https://dataservice.accuweather.com";
+    // Points the provider to a gateway serving the AccuWeather endpoints instead of AccuWeather
+    private static final String SERVER_URL = "server_url";
+    private static final String HTTP_CACHE_DIR_NAME = "http";
+    private static final String HTTP_CACHE_SIZE = "http_cache_size";
+    private static final String DEFAULT_HTTP_CACHE_SIZE_MB = "10";
+    // Looked up in the files directory first, where a downloaded index is stored, then in the
+    // assets. It must not be compressed in the APK, so it can be mapped from there
+    private static final String OFFLINE_CITY_INDEX_NAME = "cities.idx";
+    private static final int OFFLINE_CITY_INDEX_MAX_RESULTS = 20;
     // we always get the KM/H unit for the wind. The app will make the calculations
     private static final int WIND_UNIT = WeatherContract.WeatherColumns.WindSpeedUnit.KPH;
-
-    private final AccuWeatherInterface mAccuWeatherInterface;
+    // Any location will do to verify an API key, its current conditions without details are the
+    // smallest response of the API
+    private static final String API_KEY_VERIFICATION_LOCATION_KEY = "178087";
+
+    private final WeatherFetcher mWeatherFetcher;
+    private final EventCounter<CacheEvent> mCacheEvents = new EventCounter<>(CacheEvent.class);
+    private final ApiKeyManager mApiKeyManager;
+    private final int mBatchMaxInFlight;
+    private final RequestProfile mRequestProfile;
+    private final GeoLocationCache mGeoLocationCache;
+    private final double mOfflineCityMaxDistanceKm;
+    private volatile OfflineCityIndex mOfflineCityIndex;
+    private volatile boolean mOfflineCityIndexLoaded;
+    private final long mQueryTimeout;
     private volatile String mApiKey;
     private Context mContext;
+    private static AccuWeatherService sInstance;
 
     public AccuWeatherService(Context context) {
         mContext = context;
-        Retrofit mRetrofit = buildRestAdapter();
-        mAccuWeatherInterface = mRetrofit.create(AccuWeatherInterface.class);
+        mRequestProfile = RequestProfile.fromName(
+                context.getString(R.string.config_requestProfile));
+        final Resources res = context.getResources();
+        mApiKeyManager = new ApiKeyManager(PreferenceManager.getDefaultSharedPreferences(context),
+                TimeUnit.MINUTES.toMillis(
+                        res.getInteger(R.integer.config_invalidApiKeyCooldownMinutes)));
+        //Without a location in flight a batch would never finish
+        mBatchMaxInFlight = Math.max(1,
+                res.getInteger(R.integer.config_batchMaxInFlightLocations));
+        mWeatherFetcher = buildWeatherFetcher();
+        mGeoLocationCache = new GeoLocationCache(context.getCacheDir(),
+                res.getInteger(R.integer.config_geoCacheGeohashPrecision),
+                TimeUnit.HOURS.toMillis(res.getInteger(R.integer.config_geoCacheTtlHours)),
+                res.getInteger(R.integer.config_geoCacheMaxEntries));
+        mOfflineCityMaxDistanceKm = res.getInteger(R.integer.config_offlineCityMaxDistanceKm);
+        //A geo query looks up the city, then fetches the weather. Each of them may take all
+        //attempts, every one running into the connect and read timeouts, plus the delays
+        final int maxAttempts = res.getInteger(R.integer.config_httpMaxAttempts);
+        mQueryTimeout = 2 * (maxAttempts * TimeUnit.SECONDS.toMillis(
+                res.getInteger(R.integer.config_httpConnectTimeoutSeconds)
+                        + res.getInteger(R.integer.config_httpReadTimeoutSeconds))
+                + (maxAttempts - 1) * res.getInteger(R.integer.config_httpRetryMaxDelayMillis));
+        //Map the offline city index before the first lookup needs it
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getOfflineCityIndex();
+            }
+        });
+    }
+
+    /**
+     * @return The longest time in milliseconds a weather query can take before all of its
+     * requests have failed or timed out
+     */
+    public long getQueryTimeout() {
+        return mQueryTimeout;
+    }
+
+    /**
+     * @return The instance shared by all components of the process, so they share the HTTP
+     * client with its connections and cache as well as the weather caches
+     */
+    public static synchronized AccuWeatherService getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AccuWeatherService(context.getApplicationContext());
+        }
+        return sInstance;
     }
 
     public void setApiKey(String apiKey) {
+        mWeatherFetcher.setApiKey(apiKey);
         mApiKey = apiKey;
+        mApiKeyManager.setApiKey(apiKey);
     }
 
-    private WeatherInfo getWeatherForCity(String cityId, String cityName) {
-        String language = getLanguageCode();
+    public ApiKeyManager getApiKeyManager() {
+        return mApiKeyManager;
+    }
 
-        Call<CurrentWeatherResponse> weatherResponseCall
-                = mAccuWeatherInterface.queryCurrentWeather(cityId, mApiKey, language, DETAILS);
-        Response<CurrentWeatherResponse> currentWeatherResponse;
-        try {
-            Logging.logd(weatherResponseCall.request().toString());
-            currentWeatherResponse = weatherResponseCall.execute();
-            Logging.logd("CurrentWeatherResponse: " + currentWeatherResponse.raw().toString());
-            if(!currentWeatherResponse.isSuccessful()) {
-                throw new IOException(currentWeatherResponse.message());
-            }
-        } catch (IOException | JsonParseException e) {
-            Logging.loge("Exception while requesting current weather: " + e);
-            return null;
+    /**
+     * Makes the key the current one and verifies it with a single small request. The result is
+     * delivered to the callback on a network thread
+     */
+    public void verifyApiKeyAsync(final String apiKey, final ApiKeyCallback callback) {
+        setApiKey(apiKey);
+        if (!maybeValidApiKey(apiKey)) {
+            callback.onApiKeyVerified(apiKey, ApiKeyManager.STATE_INVALID);
+            return;
         }
+        Call<CurrentWeatherResponse> verificationCall = mWeatherFetcher.getAccuWeatherInterface()
+                .queryCurrentWeather(API_KEY_VERIFICATION_LOCATION_KEY, apiKey,
+                        getLanguageCode(), false);
+        Logging.logd("Verifying API key: %s", verificationCall.request());
+        verificationCall.enqueue(new Callback<CurrentWeatherResponse>() {
+            @Override
+            public void onResponse(Call<CurrentWeatherResponse> call,
+                                   Response<CurrentWeatherResponse> response) {
+                Logging.trace("response", "ApiKeyVerification", response.code());
+                callback.onApiKeyVerified(apiKey, updateApiKeyState(response));
+            }
 
-        if (currentWeatherResponse.code() == 200) {
-            //Query the forecast now. We can return a valid WeatherInfo object without the forecast
-            //but the user is expecting both the current weather and the forecast
-            final int tempUnit = getTempUnitFromSettings();
-            final boolean metric = (tempUnit == WeatherContract.WeatherColumns.TempUnit.CELSIUS);
-            Call<ForecastResponse> forecastResponseCall
-                    = mAccuWeatherInterface.queryForecast(FORECAST_DAYS, cityId, mApiKey,
-                    language, DETAILS, metric);
-            ForecastResponse forecastResponse = null;
-            try {
-                Logging.logd(forecastResponseCall.request().toString());
-                Response<ForecastResponse> r = forecastResponseCall.execute();
-                Logging.logd("ForcastResponse: " + r.raw().toString());
-                if(!r.isSuccessful()) {
-                    throw new IOException(r.message());
-                }
-                forecastResponse = r.body();
-            } catch (IOException | JsonParseException e) {
-                //this is an error we can live with
-                Logging.loge("Exception while requesting forecast " + e);
+            @Override
+            public void onFailure(Call<CurrentWeatherResponse> call, Throwable t) {
+                //The key can't be judged without an answer, it is verified by the next request
+                Logging.logw("Unable to verify the API key: " + t);
+                callback.onApiKeyVerified(apiKey, ApiKeyManager.STATE_PENDING_VERIFICATION);
             }
-            return processWeatherResponse(cityName, currentWeatherResponse.body(),
-                    forecastResponse, tempUnit);
-        } else {
-            return null;
+        });
+    }
+
+    /**
+     * Updates the state of the key the response was requested with
+     * @return The state of that key as shown by the response
+     */
+    private int updateApiKeyState(Response<?> response) {
+        final String apiKey = response.raw().request().url().queryParameter("apikey");
+        switch (UpstreamError.fromStatusCode(response.code())) {
+            case INVALID_API_KEY:
+                mApiKeyManager.onApiKeyRejected(apiKey, System.currentTimeMillis());
+                return ApiKeyManager.STATE_INVALID;
+            case QUOTA_EXCEEDED:
+                //Only known keys have a quota
+                mApiKeyManager.onApiKeyAccepted(apiKey);
+                return ApiKeyManager.STATE_VERIFIED;
+            default:
+                if (response.isSuccessful()) {
+                    mApiKeyManager.onApiKeyAccepted(apiKey);
+                    return ApiKeyManager.STATE_VERIFIED;
+                }
+                return ApiKeyManager.STATE_PENDING_VERIFICATION;
         }
+    }
 
+    private void getWeatherForCityAsync(String cityId, String cityName, CallGroup calls,
+                                        WeatherCallback callback) {
+        final int tempUnit = getTempUnitFromSettings();
+        mWeatherFetcher.getWeatherAsync(cityId, cityName, getLanguageCode(),
+                toTemperatureUnit(tempUnit), calls, deliverWeatherInfo(tempUnit, callback));
     }
 
-    private Pair<String, String> getCityForLocation(Location location) {
-        String language = getLanguageCode();
-        @SuppressLint("DefaultLocale")
-        String lat_long = String.format(Locale.ROOT, "%f,%f",
-                location.getLatitude(), location.getLongitude());
-        // First determine the City code for this location
-        Call<CityInfoResponse> cityLookupCall = mAccuWeatherInterface.lookupCity(mApiKey,
-                lat_long, language, false, TOPLEVEL);
-        Response<CityInfoResponse> currentCityResponse;
-        try {
-            Logging.logd(cityLookupCall.request().toString());
-            currentCityResponse = cityLookupCall.execute();
-            Logging.logd("CurrentCityResponse: " + currentCityResponse.raw().toString());
-            if(!currentCityResponse.isSuccessful()) {
-                throw new IOException(currentCityResponse.message());
-            }
-        } catch (IOException | JsonParseException e) {
-            Logging.loge("Exception while requesting the current city: " + e);
-            return null;
-        }
-        // Now check the weather for this city
-        return new Pair<>(currentCityResponse.body().getCityId(),
-                currentCityResponse.body().getCityName());
+    /**
+     * Looks up the city of the location upstream and caches its location key
+     */
+    private void getCityForLocationAsync(final Location location, CallGroup calls,
+                                         final CityCallback callback) {
+        final String language = getLanguageCode();
+        mWeatherFetcher.lookupCityAsync(location.getLatitude(), location.getLongitude(),
+                language, calls, new WeatherFetcher.CityCallback() {
+                    @Override
+                    public void onCityReceived(CityInfoResponse city) {
+                        if (city != null) {
+                            mGeoLocationCache.put(location.getLatitude(),
+                                    location.getLongitude(), language, city.getCityId(),
+                                    city.getCityName());
+                        }
+                        callback.onCityReceived(city);
+                    }
+                });
     }
 
-    private WeatherInfo processWeatherResponse(String cityName,
-                                               CurrentWeatherResponse currentWeatherResponse,
-                                               ForecastResponse forecastResponse, int tempUnit) {
+    /**
+     * Converts the weather report to the weather info before handing it to the callback
+     * @param tempUnit The temperature unit the report was assembled in
+     */
+    private WeatherFetcher.WeatherCallback deliverWeatherInfo(final int tempUnit,
+                                                              final WeatherCallback callback) {
+        return new WeatherFetcher.WeatherCallback() {
+            @Override
+            public void onWeatherReceived(WeatherReport report) {
+                //The callback must always be called, or the caller waits for the weather
+                //forever
+                WeatherInfo weatherInfo = null;
+                try {
+                    weatherInfo = toWeatherInfo(report, tempUnit);
+                } catch (RuntimeException e) {
+                    Logging.loge("Unable to process the weather: " + e);
+                }
+                callback.onWeatherInfoReceived(weatherInfo);
+            }
+        };
+    }
 
-        final double temperature = currentWeatherResponse.getTemperature(tempUnit);
-        //We need at least the city name and current temperature
-        if (cityName == null || Double.isNaN(temperature)) return null;
+    /**
+     * @param report The weather, may be null
+     * @param tempUnit The temperature unit the report was assembled in
+     */
+    private static WeatherInfo toWeatherInfo(WeatherReport report, int tempUnit) {
+        if (report == null) {
+            return null;
+        }
 
-        WeatherInfo.Builder builder = new WeatherInfo.Builder(cityName, temperature, tempUnit)
-                .setTimestamp(currentWeatherResponse.getEpochTime());
+        WeatherInfo.Builder builder = new WeatherInfo.Builder(report.getCityName(),
+                report.getTemperature(), tempUnit)
+                .setTimestamp(report.getTimestamp());
 
-        builder.setWeatherCondition(mapConditionIconToCode(
-                currentWeatherResponse.getWeatherIconId()));
+        builder.setWeatherCondition(mapConditionToCode(report.getCondition()));
 
-        final double humidity = currentWeatherResponse.getHumidity();
+        final double humidity = report.getHumidity();
         if (!Double.isNaN(humidity)) {
             builder.setHumidity(humidity);
         }
 
-        // The first forecast is the current day
-        final double todaysHigh = forecastResponse.getForecastList().get(0).getMaxTemp();
+        final double todaysHigh = report.getTodaysHigh();
         if (!Double.isNaN(todaysHigh)) {
             builder.setTodaysHigh(todaysHigh);
         }
 
-        // The first forecast is the current day
-        final double todaysLow = forecastResponse.getForecastList().get(0).getMinTemp();
+        final double todaysLow = report.getTodaysLow();
         if (!Double.isNaN(todaysLow)) {
             builder.setTodaysLow(todaysLow);
         }
 
-        final double windDir = currentWeatherResponse.getWindDirection();
-        final double windSpeed = currentWeatherResponse.getWindSpeed(WIND_UNIT);
+        final double windDir = report.getWindDirection();
+        final double windSpeed = report.getWindSpeed();
         if (!Double.isNaN(windDir) && !Double.isNaN(windSpeed)) {
             builder.setWind(windSpeed, windDir, WIND_UNIT);
         }
 
+        if (report.getForecasts().isEmpty()) {
+            return builder.build();
+        }
+
         List<WeatherInfo.DayForecast> forecastList = new ArrayList<>();
-        for (ForecastResponse.DailyForecast forecast : forecastResponse.getForecastList()) {
+        for (WeatherReport.DayForecast forecast : report.getForecasts()) {
             WeatherInfo.DayForecast.Builder forecastBuilder
                     = new WeatherInfo.DayForecast.Builder(
-                    mapConditionIconToCode(forecast.getWeatherIconId()));
+                    mapConditionToCode(forecast.getCondition()));
 
-            final double max = forecast.getMaxTemp();
+            final double max = forecast.getHigh();
             if (!Double.isNaN(max)) {
                 forecastBuilder.setHigh(max);
             }
 
-            final double min = forecast.getMinTemp();
+            final double min = forecast.getLow();
             if (!Double.isNaN(min)) {
                 forecastBuilder.setLow(min);
             }
@@ -203,69 +322,334 @@ public class AccuWeatherService {
     /**
      * This is a synchronous call and should never be called from the UI thread
      * @param weatherLocation The location for which the weather should be requested
-     * @throws InvalidApiKeyException If the application ID has not been set
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
      */
-    public WeatherInfo queryWeather(WeatherLocation weatherLocation)
+    public WeatherInfo queryWeather(WeatherLocation weatherLocation,
+                                    CancellationSignal cancellationSignal)
             throws InvalidApiKeyException {
-
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
-        }
-        return getWeatherForCity(weatherLocation.getCityId(), weatherLocation.getCity());
+        BlockingWeatherCallback callback = new BlockingWeatherCallback(mQueryTimeout);
+        queryWeatherAsync(weatherLocation, cancellationSignal, callback);
+        return callback.await();
     }
 
     /**
      * This is a synchronous call and should never be called from the UI thread
      * @param location A {@link WeatherInfo} weather info object if the call was successfully
      *                 processed by the end point, null otherwise
-     * @throws InvalidApiKeyException If the application ID has not been set
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
      */
-    public WeatherInfo queryWeather(Location location) throws InvalidApiKeyException {
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
+    public WeatherInfo queryWeather(Location location, CancellationSignal cancellationSignal)
+            throws InvalidApiKeyException {
+        BlockingWeatherCallback callback = new BlockingWeatherCallback(mQueryTimeout);
+        queryWeatherAsync(location, cancellationSignal, callback);
+        return callback.await();
+    }
+
+    /**
+     * Returns the weather of the location if it is cached in memory and still usable, without
+     * doing any network or disk I/O. The entry might be older than the cache TTL
+     * @param weatherLocation The location for which the weather should be returned
+     * @return A {@link WeatherInfo} weather info object or null if nothing usable is cached
+     */
+    public WeatherInfo getCachedWeather(WeatherLocation weatherLocation) {
+        return getCachedWeatherForCity(weatherLocation.getCityId(), weatherLocation.getCity());
+    }
+
+    /**
+     * Returns the weather of the location if it is cached in memory and still usable, without
+     * doing any network I/O or waiting for the offline city index to be mapped. The entry might
+     * be older than the cache TTL
+     * @param location The location for which the weather should be returned
+     * @return A {@link WeatherInfo} weather info object or null if nothing usable is cached
+     */
+    public WeatherInfo getCachedWeather(Location location) {
+        GeoLocationCache.Entry city = mGeoLocationCache.get(location.getLatitude(),
+                location.getLongitude(), getLanguageCode());
+        if (city != null) {
+            return getCachedWeatherForCity(city.getLocationKey(), city.getCityName());
         }
-        // First get the city for the given location
-        Pair<String, String> city = getCityForLocation(location);
-        if (city == null) {
-            return null;
+        CityInfoResponse offlineCity = findOfflineCity(location, false);
+        if (offlineCity != null) {
+            return getCachedWeatherForCity(offlineCity.getCityId(), offlineCity.getCityName());
         }
-        String currentCityId = city.first;
-        String currentCityName = city.second;
-        // Now query the weather for this city
-        return getWeatherForCity(currentCityId, currentCityName);
+        return null;
+    }
+
+    /**
+     * Doesn't wait for the offline city index to be mapped, the cities it holds are only known
+     * once it is ready
+     * @param location The location for which the location key should be returned
+     * @return The cached AccuWeather location key of the location or null if it is not known
+     */
+    public String getCachedLocationKey(Location location) {
+        GeoLocationCache.Entry city = mGeoLocationCache.get(location.getLatitude(),
+                location.getLongitude(), getLanguageCode());
+        if (city != null) {
+            return city.getLocationKey();
+        }
+        CityInfoResponse offlineCity = findOfflineCity(location, false);
+        return offlineCity != null ? offlineCity.getCityId() : null;
+    }
+
+    private WeatherInfo getCachedWeatherForCity(String cityId, String cityName) {
+        final int tempUnit = getTempUnitFromSettings();
+        return toWeatherInfo(mWeatherFetcher.getCachedWeather(cityId, cityName,
+                getLanguageCode(), toTemperatureUnit(tempUnit)), tempUnit);
+    }
+
+    /**
+     * Requests the current weather and the forecast in parallel. This call does not block,
+     * the result is delivered to the callback on a network thread
+     * @param weatherLocation The location for which the weather should be requested
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @param callback The callback notified once both requests have finished
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
+     */
+    public void queryWeatherAsync(WeatherLocation weatherLocation,
+                                  CancellationSignal cancellationSignal, WeatherCallback callback)
+            throws InvalidApiKeyException {
+        checkApiKey();
+        getWeatherForCityAsync(weatherLocation.getCityId(), weatherLocation.getCity(),
+                newCallGroup(cancellationSignal), callback);
+    }
+
+    /**
+     * Refreshes the cached weather of the location unless it will still be fresh at the given
+     * time, so a request expected at that time can be answered from the cache. This call does
+     * not block, the result is delivered to the callback on a network thread
+     * @param weatherLocation The location for which the weather should be refreshed
+     * @param freshUntil The time in milliseconds since the epoch the weather is needed at
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @param callback The callback notified once all requests have finished
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
+     */
+    public void prefetchWeatherAsync(WeatherLocation weatherLocation, long freshUntil,
+                                     CancellationSignal cancellationSignal,
+                                     WeatherCallback callback) throws InvalidApiKeyException {
+        checkApiKey();
+        prefetchWeatherAsync(weatherLocation, freshUntil, newCallGroup(cancellationSignal),
+                callback);
+    }
+
+    private void prefetchWeatherAsync(WeatherLocation weatherLocation, long freshUntil,
+                                      CallGroup calls, WeatherCallback callback) {
+        final int tempUnit = getTempUnitFromSettings();
+        mWeatherFetcher.prefetchWeatherAsync(weatherLocation.getCityId(),
+                weatherLocation.getCity(), getLanguageCode(), toTemperatureUnit(tempUnit),
+                freshUntil, calls, deliverWeatherInfo(tempUnit, callback));
+    }
+
+    /**
+     * Refreshes the weather of several locations at once. The locations are fetched in
+     * parallel, but only a limited number of them at a time, each one is started as soon as
+     * another one has finished. This call does not block, the results are delivered to the
+     * callback as each location completes, on a network thread or, when answered from the
+     * cache, on the calling thread
+     * @param weatherLocations The locations for which the weather should be refreshed
+     * @param freshUntil The time in milliseconds since the epoch the weather is needed at,
+     *                   weather that is still fresh then is taken from the cache
+     * @param cancellationSignal Cancels the running and the pending requests when triggered,
+     *                           may be null
+     * @param callback The callback notified of each location and once all have finished
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
+     */
+    public void refreshWeatherAsync(Collection<WeatherLocation> weatherLocations,
+                                    long freshUntil, CancellationSignal cancellationSignal,
+                                    BatchCallback callback) throws InvalidApiKeyException {
+        checkApiKey();
+        new BatchRefresh(weatherLocations, freshUntil, newCallGroup(cancellationSignal),
+                callback).start(mBatchMaxInFlight);
+    }
+
+    /**
+     * Looks up the city for the given location and then requests the current weather and the
+     * forecast in parallel. This call does not block, the result is delivered to the callback
+     * on a network thread
+     * @param location The location for which the weather should be requested
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @param callback The callback notified once all requests have finished
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
+     */
+    public void queryWeatherAsync(Location location, CancellationSignal cancellationSignal,
+                                  final WeatherCallback callback) throws InvalidApiKeyException {
+        checkApiKey();
+        // The location key of a place almost never changes, skip the lookup if we know it
+        GeoLocationCache.Entry city = mGeoLocationCache.get(location.getLatitude(),
+                location.getLongitude(), getLanguageCode());
+        final CallGroup calls = newCallGroup(cancellationSignal);
+        if (city != null) {
+            mCacheEvents.increment(CacheEvent.LOCATION_KEY_HIT);
+            Logging.logd("Using cached location key %s", city.getLocationKey());
+            getWeatherForCityAsync(city.getLocationKey(), city.getCityName(), calls, callback);
+            return;
+        }
+        CityInfoResponse offlineCity = findOfflineCity(location, true);
+        if (offlineCity != null) {
+            mCacheEvents.increment(CacheEvent.LOCATION_KEY_HIT);
+            Logging.logd("Using location key %s of the city index", offlineCity.getCityId());
+            getWeatherForCityAsync(offlineCity.getCityId(), offlineCity.getCityName(), calls,
+                    callback);
+            return;
+        }
+        mCacheEvents.increment(CacheEvent.LOCATION_KEY_MISS);
+        getCityForLocationAsync(location, calls, new CityCallback() {
+            @Override
+            public void onCityReceived(CityInfoResponse city) {
+                if (city == null) {
+                    callback.onWeatherInfoReceived(null);
+                    return;
+                }
+                // Now check the weather for this city
+                getWeatherForCityAsync(city.getCityId(), city.getCityName(), calls, callback);
+            }
+        });
+    }
+
+    /**
+     * Resolves the location to its city and refreshes the cached weather of the city unless it
+     * will still be fresh at the given time, so a request for a nearby location expected at that
+     * time can be answered from the caches. This call does not block, the result is delivered
+     * to the callback on a network thread or, when answered from the cache, on the calling
+     * thread
+     * @param location The location for which the weather should be refreshed
+     * @param freshUntil The time in milliseconds since the epoch the weather is needed at
+     * @param cancellationSignal Cancels the running requests when triggered, may be null
+     * @param callback The callback notified once all requests have finished
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
+     */
+    public void prefetchWeatherAsync(Location location, final long freshUntil,
+                                     CancellationSignal cancellationSignal,
+                                     final WeatherCallback callback)
+            throws InvalidApiKeyException {
+        checkApiKey();
+        final CallGroup calls = newCallGroup(cancellationSignal);
+        GeoLocationCache.Entry city = mGeoLocationCache.get(location.getLatitude(),
+                location.getLongitude(), getLanguageCode());
+        if (city != null) {
+            prefetchWeatherAsync(new WeatherLocation.Builder(city.getLocationKey(),
+                    city.getCityName()).build(), freshUntil, calls, callback);
+            return;
+        }
+        CityInfoResponse offlineCity = findOfflineCity(location, true);
+        if (offlineCity != null) {
+            prefetchWeatherAsync(new WeatherLocation.Builder(offlineCity.getCityId(),
+                    offlineCity.getCityName()).build(), freshUntil, calls, callback);
+            return;
+        }
+        getCityForLocationAsync(location, calls, new CityCallback() {
+            @Override
+            public void onCityReceived(CityInfoResponse city) {
+                if (city == null) {
+                    callback.onWeatherInfoReceived(null);
+                    return;
+                }
+                prefetchWeatherAsync(new WeatherLocation.Builder(city.getCityId(),
+                        city.getCityName()).build(), freshUntil, calls, callback);
+            }
+        });
     }
 
     /**
      * This is a synchronous call and should never be called from the UI thread
      * @param cityName The name of the city to search
+     * @param cancellationSignal Cancels the running request when triggered, may be null
      * @return Array of {@link WeatherLocation} weather locations. This method will always return a
      * list, but the list might be empty if no match was found
-     * @throws InvalidApiKeyException If the application ID has not been set
+     * @throws InvalidApiKeyException If the API key has not been set or has been rejected
      */
-    public List<WeatherLocation> lookupCity(String cityName) throws InvalidApiKeyException {
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
+    public List<WeatherLocation> lookupCity(String cityName,
+                                            CancellationSignal cancellationSignal)
+            throws InvalidApiKeyException {
+        checkApiKey();
+        return buildWeatherLocations(mWeatherFetcher.lookupCity(cityName, getLanguageCode(),
+                newCallGroup(cancellationSignal)));
+    }
+
+    /**
+     * Answers the city lookup from the results of previous lookups kept in memory, without any
+     * I/O, so it can be called from the UI thread. The offline city index is only searched by
+     * {@link #lookupCity}
+     * @param cityName The name of the city to search
+     * @return Array of {@link WeatherLocation} weather locations, or null if the lookup can't be
+     * answered locally
+     */
+    public List<WeatherLocation> lookupCityLocally(String cityName) {
+        List<CityInfoResponse> cities = mWeatherFetcher.lookupCityInMemory(cityName,
+                getLanguageCode());
+        return cities != null ? buildWeatherLocations(cities) : null;
+    }
+
+    private List<CityInfoResponse> searchOfflineCities(String cityName) {
+        OfflineCityIndex index = getOfflineCityIndex();
+        if (index == null) {
+            return new ArrayList<>();
         }
+        return index.search(cityName, OFFLINE_CITY_INDEX_MAX_RESULTS);
+    }
 
-        Call<List<CityInfoResponse>> lookupCityCall = mAccuWeatherInterface.lookupCity(mApiKey,
-                cityName, getLanguageCode(), false);
+    /**
+     * @param waitForIndex Whether to map the offline city index if it isn't ready yet, otherwise
+     *                     no city is found until it is
+     */
+    private CityInfoResponse findOfflineCity(Location location, boolean waitForIndex) {
+        OfflineCityIndex index = waitForIndex || mOfflineCityIndexLoaded
+                ? getOfflineCityIndex() : null;
+        if (index == null) {
+            return null;
+        }
+        return index.findNearest(location.getLatitude(), location.getLongitude(),
+                mOfflineCityMaxDistanceKm);
+    }
 
-        Response<List<CityInfoResponse>> lookupResponse;
+    /**
+     * Loads the offline city index on first use, which maps the file. Never call this from the
+     * UI thread
+     * @return The offline city index if one is installed and localized in the current
+     * language, null otherwise
+     */
+    private OfflineCityIndex getOfflineCityIndex() {
+        if (!mOfflineCityIndexLoaded) {
+            synchronized (this) {
+                if (!mOfflineCityIndexLoaded) {
+                    mOfflineCityIndex = loadOfflineCityIndex();
+                    mOfflineCityIndexLoaded = true;
+                }
+            }
+        }
+        final OfflineCityIndex index = mOfflineCityIndex;
+        if (index == null || !index.getLanguage().equals(getLanguageCode())) {
+            return null;
+        }
+        return index;
+    }
+
+    private OfflineCityIndex loadOfflineCityIndex() {
+        final File file = new File(mContext.getFilesDir(), OFFLINE_CITY_INDEX_NAME);
         try {
-            Logging.logd(lookupCityCall.request().toString());
-            lookupResponse = lookupCityCall.execute();
-            Logging.logd("LookupCityResponse: " + lookupResponse.raw().toString());
-            if(!lookupResponse.isSuccessful()) {
-                throw new IOException(lookupResponse.message());
+            if (file.isFile()) {
+                try (RandomAccessFile indexFile = new RandomAccessFile(file, "r")) {
+                    return OfflineCityIndex.map(indexFile.getChannel(), 0, indexFile.length());
+                }
             }
-        } catch (IOException | JsonParseException e) {
-            Logging.loge("IOException while looking up city name " + e);
-            //Return empty list to prevent NPE
-            return new ArrayList<>();
+            try (AssetFileDescriptor fd = mContext.getAssets().openFd(OFFLINE_CITY_INDEX_NAME);
+                 FileInputStream in = fd.createInputStream()) {
+                FileChannel channel = in.getChannel();
+                return OfflineCityIndex.map(channel, fd.getStartOffset(), fd.getLength());
+            }
+        } catch (FileNotFoundException e) {
+            //No index installed
+            return null;
+        } catch (IOException e) {
+            Logging.loge("Unable to load the city index: " + e);
+            return null;
         }
+    }
 
+    private static List<WeatherLocation> buildWeatherLocations(List<CityInfoResponse> cities) {
         List<WeatherLocation> weatherLocations = new ArrayList<>();
-        for (CityInfoResponse cityInfo: lookupResponse.body()) {
+        for (CityInfoResponse cityInfo: cities) {
             WeatherLocation location = new WeatherLocation.Builder(cityInfo.getCityId(),
                     cityInfo.getCityName())
                     .setCountry(cityInfo.getCountryName())
@@ -277,18 +661,260 @@ public class AccuWeatherService {
         return weatherLocations;
     }
 
-    private Retrofit buildRestAdapter() {
-        final OkHttpClient httpClient = new OkHttpClient().newBuilder().build();
+    private WeatherFetcher buildWeatherFetcher() {
+        final Resources res = mContext.getResources();
+        final SharedPreferences preferences
+                = PreferenceManager.getDefaultSharedPreferences(mContext);
+        long cacheSize;
+        try {
+            cacheSize = Long.parseLong(preferences.getString(HTTP_CACHE_SIZE,
+                    DEFAULT_HTTP_CACHE_SIZE_MB)) * 1024L * 1024L;
+        } catch (NumberFormatException e) {
+            cacheSize = Long.parseLong(DEFAULT_HTTP_CACHE_SIZE_MB) * 1024L * 1024L;
+        }
+
+        String baseUrl = preferences.getString(SERVER_URL, "").trim();
+        if (baseUrl.isEmpty()) {
+            baseUrl = BASE_URL;
+        } else if (HttpUrl.parse(baseUrl) == null) {
+            Logging.loge("Ignoring invalid server URL " + baseUrl);
+            baseUrl = BASE_URL;
+        }
+
+        final long maxStale = res.getInteger(R.integer.config_weatherCacheMaxStaleMinutes);
+        final WeatherCache weatherCache = new WeatherCache(mContext.getCacheDir(),
+                res.getInteger(R.integer.config_weatherCacheMemoryEntries),
+                TimeUnit.MINUTES.toMillis(maxStale), AsyncTask.THREAD_POOL_EXECUTOR);
+
+        return new WeatherFetcher.Builder(baseUrl, weatherCache)
+                .setHttpCache(new File(mContext.getCacheDir(), HTTP_CACHE_DIR_NAME), cacheSize)
+                .setTimeouts(res.getInteger(R.integer.config_httpConnectTimeoutSeconds),
+                        res.getInteger(R.integer.config_httpReadTimeoutSeconds),
+                        TimeUnit.SECONDS)
+                //Keep the connection open across our polling cadence
+                .setConnectionPool(res.getInteger(R.integer.config_httpMaxIdleConnections),
+                        res.getInteger(R.integer.config_httpKeepAliveMinutes), TimeUnit.MINUTES)
+                //Enough for the current conditions and the forecast of every location of a
+                //batch, they are multiplexed over one connection with HTTP/2
+                .setMaxRequestsPerHost(2 * mBatchMaxInFlight)
+                .setRetries(res.getInteger(R.integer.config_httpMaxAttempts),
+                        res.getInteger(R.integer.config_httpRetryBaseDelayMillis),
+                        res.getInteger(R.integer.config_httpRetryMaxDelayMillis),
+                        TimeUnit.MILLISECONDS)
+                .setCircuitBreaker(
+                        res.getInteger(R.integer.config_circuitBreakerFailureThreshold),
+                        TimeUnit.SECONDS.toMillis(
+                                res.getInteger(R.integer.config_circuitBreakerCooldownSeconds)),
+                        TimeUnit.MINUTES.toMillis(
+                                res.getInteger(R.integer.config_quotaCooldownMinutes)),
+                        TimeUnit.MINUTES.toMillis(
+                                res.getInteger(R.integer.config_invalidApiKeyCooldownMinutes)),
+                        TimeUnit.MILLISECONDS)
+                .setHedgeDelay(res.getInteger(R.integer.config_httpHedgeDelayMillis),
+                        TimeUnit.MILLISECONDS)
+                .setRequestProfile(mRequestProfile)
+                .setCacheTtls(res.getInteger(R.integer.config_weatherCacheTtlMinutes),
+                        res.getInteger(R.integer.config_forecastCacheTtlMinutes), maxStale,
+                        TimeUnit.MINUTES)
+                .setStaleWhileRevalidate(
+                        res.getBoolean(R.bool.config_weatherCacheStaleWhileRevalidate))
+                .setCityIndex(new CityPrefixIndex(
+                        res.getInteger(R.integer.config_cityIndexMaxEntries),
+                        TimeUnit.MINUTES.toMillis(
+                                res.getInteger(R.integer.config_cityIndexTtlMinutes)),
+                        res.getInteger(R.integer.config_cityIndexMaxNarrowableResults)))
+                .setCitySearch(new WeatherFetcher.CitySearch() {
+                    @Override
+                    public List<CityInfoResponse> search(String cityName, String language) {
+                        return searchOfflineCities(cityName);
+                    }
+                })
+                .setResponseListener(new WeatherFetcher.ResponseListener() {
+                    @Override
+                    public void onResponse(Response<?> response) {
+                        updateApiKeyState(response);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Prints the request profile, the cache statistics and the transfer metrics of each endpoint
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Request profile: " + mRequestProfile);
+        mApiKeyManager.dump(pw);
+        final OfflineCityIndex index = mOfflineCityIndex;
+        pw.println("City index: " + (index != null ? index.size() + " cities, "
+                + index.getLanguage() : "none"));
+        pw.println("Location keys:");
+        mCacheEvents.dump(pw, "  ");
+        mWeatherFetcher.dump(pw);
+    }
 
-        return new Retrofit.Builder().baseUrl(BASE_URL).client(httpClient)
-                .addConverterFactory(GsonConverterFactory.create()).build();
+    /**
+     * @param cancellationSignal Cancels the calls of the group when triggered, may be null
+     */
+    private CallGroup newCallGroup(CancellationSignal cancellationSignal) {
+        final CallGroup calls = mWeatherFetcher.newCallGroup();
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    calls.cancel();
+                }
+            });
+        }
+        return calls;
     }
 
     private String getLanguageCode() {
-        Locale locale = mContext.getResources().getConfiguration().locale;
-        String country = locale.getCountry();
-        String language = locale.getLanguage();
-        return (language + "-" + country).toLowerCase();
+        return LanguageCodes.fromLocale(mContext.getResources().getConfiguration().locale);
+    }
+
+    /**
+     * Receives the result of an asynchronous weather query
+     */
+    public interface WeatherCallback {
+        /**
+         * @param weatherInfo A {@link WeatherInfo} weather info object if the request was
+         *                    successfully processed by the end point, null otherwise
+         */
+        void onWeatherInfoReceived(WeatherInfo weatherInfo);
+    }
+
+    private interface CityCallback {
+        /**
+         * @param city The city of the location or null if the lookup failed
+         */
+        void onCityReceived(CityInfoResponse city);
+    }
+
+    /**
+     * Receives the results of a batch refresh
+     */
+    public interface BatchCallback {
+        /**
+         * Called once for every location, in the order the locations complete
+         * @param weatherInfo A {@link WeatherInfo} weather info object if the location was
+         *                    successfully refreshed, null otherwise
+         */
+        void onWeatherInfoReceived(WeatherLocation weatherLocation, WeatherInfo weatherInfo);
+
+        /**
+         * Called after the last location has been delivered
+         */
+        void onBatchFinished();
+    }
+
+    /**
+     * Refreshes a number of locations with a limited number of them in flight. All calls share
+     * one call group, so a single cancellation signal covers the whole batch
+     */
+    private final class BatchRefresh {
+        private final Iterator<WeatherLocation> mPending;
+        private final long mFreshUntil;
+        private final CallGroup mCalls;
+        private final BatchCallback mCallback;
+        private final AtomicInteger mRemaining;
+
+        BatchRefresh(Collection<WeatherLocation> weatherLocations, long freshUntil,
+                     CallGroup calls, BatchCallback callback) {
+            mPending = new ArrayList<>(weatherLocations).iterator();
+            mFreshUntil = freshUntil;
+            mCalls = calls;
+            mCallback = callback;
+            mRemaining = new AtomicInteger(weatherLocations.size());
+        }
+
+        /**
+         * @param maxInFlight The number of locations refreshed at the same time, at least one
+         */
+        void start(int maxInFlight) {
+            if (mRemaining.get() == 0) {
+                mCallback.onBatchFinished();
+                return;
+            }
+            for (int i = 0; i < Math.max(1, maxInFlight); i++) {
+                startNext();
+            }
+        }
+
+        private void startNext() {
+            final WeatherLocation weatherLocation;
+            synchronized (this) {
+                if (!mPending.hasNext()) {
+                    return;
+                }
+                weatherLocation = mPending.next();
+            }
+            if (mCalls.isCancelled()) {
+                //Nothing is sent anymore, complete the pending locations right away
+                onCompleted(weatherLocation, null);
+                return;
+            }
+            prefetchWeatherAsync(weatherLocation, mFreshUntil, mCalls, new WeatherCallback() {
+                @Override
+                public void onWeatherInfoReceived(WeatherInfo weatherInfo) {
+                    onCompleted(weatherLocation, weatherInfo);
+                }
+            });
+        }
+
+        private void onCompleted(WeatherLocation weatherLocation, WeatherInfo weatherInfo) {
+            mCallback.onWeatherInfoReceived(weatherLocation, weatherInfo);
+            if (mRemaining.decrementAndGet() == 0) {
+                mCallback.onBatchFinished();
+            } else {
+                startNext();
+            }
+        }
+    }
+
+    private static final class BlockingWeatherCallback implements WeatherCallback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private final long mTimeout;
+        private volatile WeatherInfo mWeatherInfo;
+
+        /**
+         * @param timeout How long to wait for the weather in milliseconds
+         */
+        BlockingWeatherCallback(long timeout) {
+            mTimeout = timeout;
+        }
+
+        @Override
+        public void onWeatherInfoReceived(WeatherInfo weatherInfo) {
+            mWeatherInfo = weatherInfo;
+            mLatch.countDown();
+        }
+
+        WeatherInfo await() {
+            try {
+                if (!mLatch.await(mTimeout, TimeUnit.MILLISECONDS)) {
+                    Logging.logw("Timed out waiting for the weather");
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return mWeatherInfo;
+        }
+    }
+
+    private enum CacheEvent {
+        LOCATION_KEY_HIT,
+        LOCATION_KEY_MISS
+    }
+
+    public interface ApiKeyCallback {
+        /**
+         * @param state The state of the key as shown by the verification, one of the {@link
+         *              ApiKeyManager} STATE constants. The key is still pending verification if
+         *              there was no conclusive answer
+         */
+        void onApiKeyVerified(String apiKey, int state);
     }
 
     public final static class InvalidApiKeyException extends Exception {
@@ -302,93 +928,73 @@ public class AccuWeatherService {
         return key != null && !TextUtils.equals(key, "");
     }
 
-    private static final SparseIntArray weatherIconMap = new SparseIntArray();
-    static {
-        // Sunny
-        weatherIconMap.append(1, WeatherContract.WeatherColumns.WeatherCode.SUNNY);
-        // Mostly Sunny
-        weatherIconMap.append(2, WeatherContract.WeatherColumns.WeatherCode.SUNNY);
-        // Partly Sunny
-        weatherIconMap.append(3, WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY);
-        // Intermittent Clouds
-        weatherIconMap.append(4, WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY);
-        // Hazy Sunshine
-        weatherIconMap.append(5, WeatherContract.WeatherColumns.WeatherCode.HAZE);
-        // Mostly Cloudy
-        weatherIconMap.append(6, WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_DAY);
-        // Cloudy
-        weatherIconMap.append(7, WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
-        // Dreary
-        weatherIconMap.append(8, WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
-        // Fog
-        weatherIconMap.append(11, WeatherContract.WeatherColumns.WeatherCode.FOGGY);
-        // Showers
-        weatherIconMap.append(12, WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
-        // Mostly Cloudy w/ Showers
-        weatherIconMap.append(13, WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS);
-        // Partly Sunny w/ Showers
-        weatherIconMap.append(14, WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS);
-        // Thunderstorms
-        weatherIconMap.append(15, WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS);
-        // Mostly Cloudy w/ Thunderstorms
-        weatherIconMap.append(16, WeatherContract.WeatherColumns.WeatherCode.SCATTERED_THUNDERSTORMS);
-        // Partly Sunny w/ Thunderstorms
-        weatherIconMap.append(17, WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSTORMS);
-        // Rain
-        weatherIconMap.append(18, WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
-        // Flurries
-        weatherIconMap.append(19, WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRIES);
-        // Mostly Cloudy w/ Flurries
-        weatherIconMap.append(20, WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRIES);
-        // Partly Sunny w/ Flurries
-        weatherIconMap.append(21, WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRIES);
-        // Snow
-        weatherIconMap.append(22, WeatherContract.WeatherColumns.WeatherCode.SNOW);
-        // Mostly Cloudy w/ Snow
-        weatherIconMap.append(23, WeatherContract.WeatherColumns.WeatherCode.SNOW);
-        // Ics
-        weatherIconMap.append(24, WeatherContract.WeatherColumns.WeatherCode.SNOW_SHOWERS);
-        // Sleet
-        weatherIconMap.append(25, WeatherContract.WeatherColumns.WeatherCode.SLEET);
-        // Freezing Rain
-        weatherIconMap.append(26, WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN);
-        // Rain and Snow
-        weatherIconMap.append(29, WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SNOW);
-        // Hot
-        weatherIconMap.append(30, WeatherContract.WeatherColumns.WeatherCode.HOT);
-        // Cold
-        weatherIconMap.append(31, WeatherContract.WeatherColumns.WeatherCode.COLD);
-        // Windy
-        weatherIconMap.append(32, WeatherContract.WeatherColumns.WeatherCode.WINDY);
-        // Clear
-        weatherIconMap.append(33, WeatherContract.WeatherColumns.WeatherCode.CLEAR_NIGHT);
-        // Mostly Clear
-        weatherIconMap.append(34, WeatherContract.WeatherColumns.WeatherCode.CLEAR_NIGHT);
-        // Partly Cloudy
-        weatherIconMap.append(35, WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT);
-        // Intermittent Clouds
-        weatherIconMap.append(36, WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT);
-        // Hazy Moonlight
-        // Not available
-        // Mostly Cloudy
-        weatherIconMap.append(38, WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_NIGHT);
-        // Partly Cloudy w/ Showers
-        //   not available
-        // Mostly Cloudy w/ Showers
-        //   not available
-        // Partly Cloudy w/ T-Storms
-        //   not available
-        // Mostly Cloudy w/ T-Storms
-        //   not available
-        // Mostly Cloudy w/ Flurries
-        //   not available
-        // 	Mostly Cloudy w/ Snow
-        //   not available
-    }
-
-    private int mapConditionIconToCode(int weatherIcon) {
-        return weatherIconMap.get(weatherIcon,
-                WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE);
+    /**
+     * @throws InvalidApiKeyException If no key is set or the key has recently been rejected
+     */
+    private void checkApiKey() throws InvalidApiKeyException {
+        if (!maybeValidApiKey(mApiKey)
+                || mApiKeyManager.isRejected(System.currentTimeMillis())
+                || mWeatherFetcher.isApiKeyRejected()) {
+            throw new InvalidApiKeyException();
+        }
+    }
+
+    private static int mapConditionToCode(Condition condition) {
+        switch (condition) {
+            case SUNNY:
+                return WeatherContract.WeatherColumns.WeatherCode.SUNNY;
+            case PARTLY_CLOUDY_DAY:
+                return WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY;
+            case HAZE:
+                return WeatherContract.WeatherColumns.WeatherCode.HAZE;
+            case MOSTLY_CLOUDY_DAY:
+                return WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_DAY;
+            case CLOUDY:
+                return WeatherContract.WeatherColumns.WeatherCode.CLOUDY;
+            case FOGGY:
+                return WeatherContract.WeatherColumns.WeatherCode.FOGGY;
+            case SHOWERS:
+                return WeatherContract.WeatherColumns.WeatherCode.SHOWERS;
+            case SCATTERED_SHOWERS:
+                return WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS;
+            case THUNDERSTORMS:
+                return WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS;
+            case SCATTERED_THUNDERSTORMS:
+                return WeatherContract.WeatherColumns.WeatherCode.SCATTERED_THUNDERSTORMS;
+            case ISOLATED_THUNDERSTORMS:
+                return WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSTORMS;
+            case SNOW_FLURRIES:
+                return WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRIES;
+            case SNOW:
+                return WeatherContract.WeatherColumns.WeatherCode.SNOW;
+            case SNOW_SHOWERS:
+                return WeatherContract.WeatherColumns.WeatherCode.SNOW_SHOWERS;
+            case SLEET:
+                return WeatherContract.WeatherColumns.WeatherCode.SLEET;
+            case FREEZING_RAIN:
+                return WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN;
+            case MIXED_RAIN_AND_SNOW:
+                return WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SNOW;
+            case HOT:
+                return WeatherContract.WeatherColumns.WeatherCode.HOT;
+            case COLD:
+                return WeatherContract.WeatherColumns.WeatherCode.COLD;
+            case WINDY:
+                return WeatherContract.WeatherColumns.WeatherCode.WINDY;
+            case CLEAR_NIGHT:
+                return WeatherContract.WeatherColumns.WeatherCode.CLEAR_NIGHT;
+            case PARTLY_CLOUDY_NIGHT:
+                return WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT;
+            case MOSTLY_CLOUDY_NIGHT:
+                return WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_NIGHT;
+            default:
+                return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
+        }
+    }
+
+    private static TemperatureUnit toTemperatureUnit(int tempUnit) {
+        return tempUnit == WeatherContract.WeatherColumns.TempUnit.CELSIUS
+                ? TemperatureUnit.CELSIUS : TemperatureUnit.FAHRENHEIT;
     }
 
     private int getTempUnitFromSettings() {
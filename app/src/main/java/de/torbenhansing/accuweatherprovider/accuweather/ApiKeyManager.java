@@ -0,0 +1,108 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+
+/**
+ * Tracks whether the API key is accepted upstream. The state is kept in memory and only
+ * written to the preferences when it changes, which happens once per key in the common case,
+ * not on every response. A rejected key is not sent again until the cooldown has passed, even
+ * across restarts of the process.
+ */
+public class ApiKeyManager {
+    public static final String API_KEY = "api_key";
+    public static final String API_KEY_VERIFIED_STATE = "api_key_verified_state";
+    private static final String API_KEY_REJECTED_AT = "api_key_rejected_at";
+
+    //The states index the api_key_states_entries array
+    public static final int STATE_INVALID = 0;
+    public static final int STATE_PENDING_VERIFICATION = 1;
+    public static final int STATE_VERIFIED = 2;
+    private static final String[] STATE_NAMES = {"invalid", "pending verification", "verified"};
+
+    private final SharedPreferences mPreferences;
+    private final long mRejectionCooldown;
+    private String mApiKey;
+    private int mState;
+    private long mRejectedAt;
+
+    /**
+     * @param rejectionCooldown The time in milliseconds a rejected key is not used
+     */
+    ApiKeyManager(SharedPreferences preferences, long rejectionCooldown) {
+        mPreferences = preferences;
+        mRejectionCooldown = rejectionCooldown;
+        //The persisted state belongs to the persisted key
+        mApiKey = preferences.getString(API_KEY, null);
+        mState = preferences.getInt(API_KEY_VERIFIED_STATE, STATE_PENDING_VERIFICATION);
+        mRejectedAt = preferences.getLong(API_KEY_REJECTED_AT, 0);
+    }
+
+    /**
+     * Starts over with the pending state if the key differs from the current one
+     */
+    synchronized void setApiKey(String apiKey) {
+        if (TextUtils.equals(apiKey, mApiKey)) {
+            return;
+        }
+        mApiKey = apiKey;
+        setState(STATE_PENDING_VERIFICATION, 0);
+    }
+
+    /**
+     * @return One of the STATE constants
+     */
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * @param now The current time in milliseconds since the epoch
+     * @return true if the current key has been rejected within the cooldown
+     */
+    synchronized boolean isRejected(long now) {
+        return mState == STATE_INVALID && now - mRejectedAt < mRejectionCooldown;
+    }
+
+    /**
+     * Called for every response that proves the key is known upstream. Responses for another
+     * key than the current one are ignored
+     */
+    synchronized void onApiKeyAccepted(String apiKey) {
+        if (mState != STATE_VERIFIED && TextUtils.equals(apiKey, mApiKey)) {
+            setState(STATE_VERIFIED, 0);
+        }
+    }
+
+    /**
+     * Called for every response rejecting the key. Responses for another key than the current
+     * one are ignored
+     * @param now The current time in milliseconds since the epoch
+     */
+    synchronized void onApiKeyRejected(String apiKey, long now) {
+        //Once the cooldown has passed the key is tried again, another rejection restarts it
+        if (TextUtils.equals(apiKey, mApiKey) && !isRejected(now)) {
+            setState(STATE_INVALID, now);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("API key: " + (TextUtils.isEmpty(mApiKey) ? "not set" : STATE_NAMES[mState])
+                + (mState == STATE_INVALID ? ", rejected " + (System.currentTimeMillis()
+                - mRejectedAt) / 1000 + "s ago" : ""));
+    }
+
+    private void setState(int state, long rejectedAt) {
+        Logging.logd("API key state changed from %d to %d", mState, state);
+        mState = state;
+        mRejectedAt = rejectedAt;
+        mPreferences.edit()
+                .putInt(API_KEY_VERIFIED_STATE, state)
+                .putLong(API_KEY_REJECTED_AT, rejectedAt)
+                .apply();
+    }
+}
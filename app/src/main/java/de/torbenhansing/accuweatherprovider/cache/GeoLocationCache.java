@@ -0,0 +1,148 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import android.util.AtomicFile;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.torbenhansing.accuweatherprovider.utils.GeoHash;
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+
+/**
+ * Maps geo positions to the AccuWeather location key of the city they belong to. Positions are
+ * snapped to a geohash cell, so every position inside the same cell shares one entry. The cache
+ * is bounded, evicts the least recently used cell first and is persisted to disk.
+ */
+public class GeoLocationCache {
+    private static final String CACHE_FILE_NAME = "geo_location_cache.json";
+
+    private final AtomicFile mFile;
+    private final int mPrecision;
+    private final long mTtl;
+    private final Gson mGson = new Gson();
+    private final LinkedHashMap<String, Entry> mEntries;
+    private boolean mLoaded;
+
+    /**
+     * @param cacheDir The directory in which the cache is persisted
+     * @param precision The geohash precision of the cells
+     * @param ttl The time in milliseconds a cached location key is valid
+     * @param maxEntries The maximum number of cells to keep
+     */
+    public GeoLocationCache(File cacheDir, int precision, long ttl, final int maxEntries) {
+        mFile = new AtomicFile(new File(cacheDir, CACHE_FILE_NAME));
+        mPrecision = precision;
+        mTtl = ttl;
+        mEntries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GeoLocationCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param latitude The latitude of the position
+     * @param longitude The longitude of the position
+     * @param language The language the city name is expected in
+     * @return The cached city for the cell of the position or null if there is no valid entry
+     */
+    public synchronized Entry get(double latitude, double longitude, String language) {
+        loadIfNeeded();
+        final String geoHash = GeoHash.encode(latitude, longitude, mPrecision);
+        Entry entry = mEntries.get(geoHash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mTimestamp + mTtl < System.currentTimeMillis()) {
+            mEntries.remove(geoHash);
+            return null;
+        }
+        // The city name is localized, so a language change has to fetch it again
+        return language.equals(entry.mLanguage) ? entry : null;
+    }
+
+    /**
+     * Stores the city for the cell of the given position and persists the cache
+     */
+    public synchronized void put(double latitude, double longitude, String language,
+                                 String locationKey, String cityName) {
+        loadIfNeeded();
+        final String geoHash = GeoHash.encode(latitude, longitude, mPrecision);
+        mEntries.put(geoHash, new Entry(geoHash, language, locationKey, cityName,
+                System.currentTimeMillis()));
+        save();
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        try {
+            String json = new String(mFile.readFully(), StandardCharsets.UTF_8);
+            Entry[] entries = mGson.fromJson(json, Entry[].class);
+            if (entries == null) {
+                return;
+            }
+            // The entries are stored from least to most recently used
+            for (Entry entry : entries) {
+                mEntries.put(entry.mGeoHash, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet
+        } catch (IOException | JsonParseException e) {
+            Logging.loge("Unable to read the geo location cache: " + e);
+        }
+    }
+
+    private void save() {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(mGson.toJson(entries).getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Logging.loge("Unable to write the geo location cache: " + e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    public static final class Entry {
+        private final String mGeoHash;
+        private final String mLanguage;
+        private final String mLocationKey;
+        private final String mCityName;
+        private final long mTimestamp;
+
+        Entry(String geoHash, String language, String locationKey, String cityName,
+              long timestamp) {
+            mGeoHash = geoHash;
+            mLanguage = language;
+            mLocationKey = locationKey;
+            mCityName = cityName;
+            mTimestamp = timestamp;
+        }
+
+        public String getLocationKey() {
+            return mLocationKey;
+        }
+
+        public String getCityName() {
+            return mCityName;
+        }
+    }
+}
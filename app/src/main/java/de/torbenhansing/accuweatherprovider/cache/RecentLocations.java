@@ -0,0 +1,199 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import android.util.AtomicFile;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+
+/**
+ * The locations the weather has recently been requested for, together with the interval the
+ * requests arrive in. The interval is learned from the time between two requests, so the next
+ * request for a location can be anticipated. The list is bounded, evicts the least recently
+ * requested location first and is persisted to disk on demand.
+ */
+public class RecentLocations {
+    private static final String FILE_NAME = "recent_locations.json";
+    //Requests closer to each other are repeated or coalesced requests, not the periodic update
+    private static final long MIN_INTERVAL = 60 * 1000L;
+    //Weight of a new interval sample in the moving average
+    private static final double INTERVAL_SMOOTHING = 0.25d;
+
+    private final AtomicFile mFile;
+    private final Gson mGson = new Gson();
+    private final LinkedHashMap<String, Entry> mEntries;
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    /**
+     * @param dir The directory in which the list is persisted
+     * @param maxEntries The maximum number of locations to keep
+     */
+    public RecentLocations(File dir, final int maxEntries) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+        mEntries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RecentLocations.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Records a request for the weather of the location. This call never touches the disk
+     * unless the list has not been loaded yet
+     * @param now The time of the request in milliseconds since the epoch
+     */
+    public synchronized void record(String locationKey, String cityName, long now) {
+        loadIfNeeded();
+        Entry entry = mEntries.get(locationKey);
+        long interval = 0;
+        long lastRequest = now;
+        if (entry != null) {
+            interval = entry.mInterval;
+            final long sample = now - entry.mLastRequest;
+            if (sample < MIN_INTERVAL) {
+                lastRequest = entry.mLastRequest;
+            } else if (interval == 0) {
+                interval = sample;
+            } else {
+                interval += (long) ((sample - interval) * INTERVAL_SMOOTHING);
+            }
+        }
+        mEntries.put(locationKey, new Entry(locationKey, cityName, lastRequest, interval));
+        mDirty = true;
+    }
+
+    /**
+     * @param now The current time in milliseconds since the epoch
+     * @param maxIdle The time in milliseconds after which a location that hasn't been requested
+     *                anymore is ignored
+     * @return The time in milliseconds since the epoch the next request is expected at, over all
+     * locations, or 0 if no request can be anticipated
+     */
+    public synchronized long getNextExpectedRequest(long now, long maxIdle) {
+        loadIfNeeded();
+        long next = 0;
+        for (Entry entry : mEntries.values()) {
+            final long expected = entry.getNextExpectedRequest(now, maxIdle);
+            if (expected > 0 && (next == 0 || expected < next)) {
+                next = expected;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @param now The current time in milliseconds since the epoch
+     * @param window The time in milliseconds from now in which the request has to be expected
+     * @param maxIdle The time in milliseconds after which a location that hasn't been requested
+     *                anymore is ignored
+     * @return The locations whose next request is expected within the window
+     */
+    public synchronized List<Entry> getExpected(long now, long window, long maxIdle) {
+        loadIfNeeded();
+        List<Entry> expected = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            final long next = entry.getNextExpectedRequest(now, maxIdle);
+            if (next > 0 && next <= now + window) {
+                expected.add(entry);
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Persists the list if it has changed since it was loaded or saved. This call blocks on
+     * disk I/O
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            out.write(mGson.toJson(entries).getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            Logging.loge("Unable to write the recent locations: " + e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private void loadIfNeeded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        try {
+            String json = new String(mFile.readFully(), StandardCharsets.UTF_8);
+            Entry[] entries = mGson.fromJson(json, Entry[].class);
+            if (entries == null) {
+                return;
+            }
+            // The entries are stored from least to most recently requested
+            for (Entry entry : entries) {
+                mEntries.put(entry.mLocationKey, entry);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing requested yet
+        } catch (IOException | JsonParseException e) {
+            Logging.loge("Unable to read the recent locations: " + e);
+        }
+    }
+
+    public static final class Entry {
+        private final String mLocationKey;
+        private final String mCityName;
+        private final long mLastRequest;
+        private final long mInterval;
+
+        Entry(String locationKey, String cityName, long lastRequest, long interval) {
+            mLocationKey = locationKey;
+            mCityName = cityName;
+            mLastRequest = lastRequest;
+            mInterval = interval;
+        }
+
+        public String getLocationKey() {
+            return mLocationKey;
+        }
+
+        public String getCityName() {
+            return mCityName;
+        }
+
+        /**
+         * @return The time in milliseconds since the epoch the next request is expected at, or 0
+         * if the interval is unknown or the location has been idle for too long
+         */
+        public long getNextExpectedRequest(long now, long maxIdle) {
+            if (mInterval <= 0 || now - mLastRequest > maxIdle) {
+                return 0;
+            }
+            long next = mLastRequest + mInterval;
+            if (next < now) {
+                //Some requests were missed, e.g. while the device was asleep, assume they keep
+                //arriving at the same pace
+                next += ((now - next) / mInterval + 1) * mInterval;
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import android.util.Log;
+
+/**
+ * Writes the messages of {@link Logging} to the system log. Debug messages are only logged if
+ * the tag is loggable at the debug level when the provider starts, enable them with
+ * "adb shell setprop log.tag.AccuWeatherProvider DEBUG".
+ */
+public class AndroidLogging implements Logging.Backend {
+    private static final String TAG = "AccuWeatherProvider";
+    private final boolean mDebug = Log.isLoggable(TAG, Log.DEBUG);
+
+    @Override
+    public boolean isDebugEnabled() {
+        return mDebug;
+    }
+
+    @Override
+    public void logd(String log) {
+        Log.d(TAG, log);
+    }
+
+    @Override
+    public void logw(String log) {
+        Log.w(TAG, log);
+    }
+
+    @Override
+    public void loge(String log) {
+        Log.e(TAG, log);
+    }
+}
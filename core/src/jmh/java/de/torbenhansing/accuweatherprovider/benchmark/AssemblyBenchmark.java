@@ -0,0 +1,47 @@
+package de.torbenhansing.accuweatherprovider.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+import de.torbenhansing.accuweatherprovider.accuweather.WeatherReport;
+import de.torbenhansing.accuweatherprovider.accuweather.WeatherReportAssembler;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+/**
+ * Assembles a report from decoded responses, once with the stored metric units and once with
+ * the conversion to Fahrenheit
+ */
+@State(Scope.Benchmark)
+public class AssemblyBenchmark {
+    @Param({"CELSIUS", "FAHRENHEIT"})
+    public TemperatureUnit unit;
+
+    private CurrentWeatherResponse mCurrentWeather;
+    private ForecastResponse mForecast;
+
+    @Setup
+    public void setUp() throws IOException {
+        mCurrentWeather = Payloads.decode(
+                Payloads.<CurrentWeatherResponse>converter(CurrentWeatherResponse.class),
+                Payloads.load("current_details"));
+        mForecast = Payloads.decode(Payloads.<ForecastResponse>converter(ForecastResponse.class),
+                Payloads.load("forecast_5day"));
+    }
+
+    @Benchmark
+    public WeatherReport assemble() {
+        return WeatherReportAssembler.assemble("Berlin", mCurrentWeather, mForecast, unit);
+    }
+
+    @Benchmark
+    public WeatherReport assembleWithoutForecast() {
+        return WeatherReportAssembler.assemble("Berlin", mCurrentWeather, null, unit);
+    }
+}
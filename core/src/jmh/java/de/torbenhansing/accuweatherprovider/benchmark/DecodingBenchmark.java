@@ -0,0 +1,85 @@
+package de.torbenhansing.accuweatherprovider.benchmark;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+
+/**
+ * Decodes the response bodies through the converter the Retrofit client uses
+ */
+public class DecodingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class CurrentWeatherPayload {
+        @Param({"current_minimal", "current_details"})
+        public String payload;
+
+        byte[] mBytes;
+        Converter<ResponseBody, CurrentWeatherResponse> mConverter;
+
+        @Setup
+        public void setUp() throws IOException {
+            mBytes = Payloads.load(payload);
+            mConverter = Payloads.converter(CurrentWeatherResponse.class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ForecastPayload {
+        @Param({"forecast_1day", "forecast_5day", "forecast_5day_details"})
+        public String payload;
+
+        byte[] mBytes;
+        Converter<ResponseBody, ForecastResponse> mConverter;
+
+        @Setup
+        public void setUp() throws IOException {
+            mBytes = Payloads.load(payload);
+            mConverter = Payloads.converter(ForecastResponse.class);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CitySearchPayload {
+        @Param({"cities_1", "cities_25"})
+        public String payload;
+
+        byte[] mBytes;
+        Converter<ResponseBody, List<CityInfoResponse>> mConverter;
+
+        @Setup
+        public void setUp() throws IOException {
+            mBytes = Payloads.load(payload);
+            mConverter = Payloads.converter(new TypeToken<List<CityInfoResponse>>() {}.getType());
+        }
+    }
+
+    @Benchmark
+    public CurrentWeatherResponse decodeCurrentWeather(CurrentWeatherPayload state)
+            throws IOException {
+        return Payloads.decode(state.mConverter, state.mBytes);
+    }
+
+    @Benchmark
+    public ForecastResponse decodeForecast(ForecastPayload state) throws IOException {
+        return Payloads.decode(state.mConverter, state.mBytes);
+    }
+
+    @Benchmark
+    public List<CityInfoResponse> decodeCitySearch(CitySearchPayload state) throws IOException {
+        return Payloads.decode(state.mConverter, state.mBytes);
+    }
+}
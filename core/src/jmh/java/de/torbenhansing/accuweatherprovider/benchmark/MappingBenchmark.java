@@ -0,0 +1,50 @@
+package de.torbenhansing.accuweatherprovider.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+
+import de.torbenhansing.accuweatherprovider.accuweather.Condition;
+import de.torbenhansing.accuweatherprovider.utils.LanguageCodes;
+
+/**
+ * The small mappings done for every response: weather icons to conditions and the locale to
+ * the language code of the requests
+ */
+public class MappingBenchmark {
+    // AccuWeather icons are numbered from 1 to 44
+    private static final int ICON_COUNT = 44;
+
+    @State(Scope.Benchmark)
+    public static class LocaleState {
+        @Param({"de_DE", "en_US", "pt_BR"})
+        public String locale;
+
+        Locale mLocale;
+
+        @Setup
+        public void setUp() {
+            String[] parts = locale.split("_");
+            mLocale = new Locale(parts[0], parts[1]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ICON_COUNT)
+    public void conditionFromIcon(Blackhole blackhole) {
+        for (int icon = 1; icon <= ICON_COUNT; icon++) {
+            blackhole.consume(Condition.fromIcon(icon));
+        }
+    }
+
+    @Benchmark
+    public String languageCode(LocaleState state) {
+        return LanguageCodes.fromLocale(state.mLocale);
+    }
+}
@@ -0,0 +1,52 @@
+package de.torbenhansing.accuweatherprovider.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherConverterFactory;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+
+/**
+ * Loads the AccuWeather payloads the benchmarks decode. They are modelled on real responses of
+ * the API, in the sizes the provider requests them: with and without details, one and five
+ * forecast days, one and a full page of city search results
+ */
+final class Payloads {
+    private static final MediaType JSON = MediaType.parse("application/json; charset=UTF-8");
+
+    private Payloads() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        InputStream in = Payloads.class.getResourceAsStream("/payloads/" + name + ".json");
+        if (in == null) {
+            throw new IOException("Unknown payload " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Converter<ResponseBody, T> converter(Type type) {
+        return (Converter<ResponseBody, T>) AccuWeatherConverterFactory.create()
+                .responseBodyConverter(type, new Annotation[0], null);
+    }
+
+    static <T> T decode(Converter<ResponseBody, T> converter, byte[] payload) throws IOException {
+        return converter.convert(ResponseBody.create(JSON, payload));
+    }
+}
@@ -0,0 +1,73 @@
+package de.torbenhansing.accuweatherprovider.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.WeatherSnapshot;
+
+/**
+ * Encodes and decodes the snapshots the weather cache keeps on disk
+ */
+public class SnapshotBenchmark {
+    private static final String KEY = "178087_de";
+    private static final String CITY_NAME = "Berlin";
+
+    @State(Scope.Benchmark)
+    public static class Snapshot {
+        @Param({"forecast_1day", "forecast_5day"})
+        public String forecast;
+
+        CurrentWeatherResponse mCurrentWeather;
+        ForecastResponse mForecast;
+        ByteBuffer mEncoded;
+        ByteBuffer mBuffer;
+
+        @Setup
+        public void setUp() throws IOException {
+            mCurrentWeather = Payloads.decode(Payloads.<CurrentWeatherResponse>converter(
+                    CurrentWeatherResponse.class), Payloads.load("current_details"));
+            mForecast = Payloads.decode(Payloads.<ForecastResponse>converter(
+                    ForecastResponse.class), Payloads.load(forecast));
+            final int size = WeatherSnapshot.getEncodedSize(KEY, CITY_NAME, mForecast);
+            mEncoded = ByteBuffer.allocate(size);
+            WeatherSnapshot.encode(mEncoded, KEY, CITY_NAME, mCurrentWeather, 0, 0, mForecast,
+                    0, 0);
+            mEncoded.flip();
+            mBuffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encode(Snapshot state) {
+        state.mBuffer.clear();
+        WeatherSnapshot.encode(state.mBuffer, KEY, CITY_NAME, state.mCurrentWeather, 0, 0,
+                state.mForecast, 0, 0);
+        return state.mBuffer;
+    }
+
+    @Benchmark
+    public void decode(Snapshot state, Blackhole blackhole) {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(state.mEncoded);
+        blackhole.consume(snapshot.getCityName());
+        blackhole.consume(snapshot.getCurrentWeather());
+        blackhole.consume(snapshot.getForecast());
+    }
+
+    /**
+     * Only reads what's needed to tell whether the snapshot is still fresh
+     */
+    @Benchmark
+    public long readTimestamp(Snapshot state) {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(state.mEncoded);
+        return snapshot.hasKey(KEY) ? snapshot.getCurrentWeatherTimestamp() : -1L;
+    }
+}
@@ -0,0 +1,106 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Decodes the AccuWeather responses with their hand written streaming adapters, straight from
+ * the response body and without any reflection.
+ */
+public class AccuWeatherConverterFactory extends Converter.Factory {
+
+    public static AccuWeatherConverterFactory create() {
+        return new AccuWeatherConverterFactory();
+    }
+
+    private AccuWeatherConverterFactory() {
+    }
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
+                                                            Retrofit retrofit) {
+        if (type == CurrentWeatherResponse.class) {
+            return new ResponseConverter<>(new CurrentWeatherResponse.Adapter());
+        }
+        if (type == ForecastResponse.class) {
+            return new ResponseConverter<>(new ForecastResponse.Adapter());
+        }
+        if (type == CityInfoResponse.class) {
+            return new ResponseConverter<>(new CityInfoResponse.Adapter());
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) type;
+            if (parameterizedType.getRawType() == List.class
+                    && parameterizedType.getActualTypeArguments()[0] == CityInfoResponse.class) {
+                return new ResponseConverter<>(
+                        new ListAdapter<>(new CityInfoResponse.Adapter()));
+            }
+        }
+        return null;
+    }
+
+    private static final class ResponseConverter<T> implements Converter<ResponseBody, T> {
+        private final TypeAdapter<T> mAdapter;
+
+        ResponseConverter(TypeAdapter<T> adapter) {
+            mAdapter = adapter;
+        }
+
+        @Override
+        public T convert(ResponseBody value) throws IOException {
+            JsonReader reader = new JsonReader(value.charStream());
+            try {
+                return mAdapter.read(reader);
+            } catch (IllegalStateException | NumberFormatException e) {
+                //A field of an unexpected type, report it like any other malformed response
+                throw new JsonSyntaxException(e);
+            } finally {
+                value.close();
+            }
+        }
+    }
+
+    private static final class ListAdapter<T> extends TypeAdapter<List<T>> {
+        private final TypeAdapter<T> mElementAdapter;
+
+        ListAdapter(TypeAdapter<T> elementAdapter) {
+            mElementAdapter = elementAdapter;
+        }
+
+        @Override
+        public List<T> read(JsonReader in) throws IOException {
+            List<T> list = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                list.add(mElementAdapter.read(in));
+            }
+            in.endArray();
+            return list;
+        }
+
+        @Override
+        public void write(JsonWriter out, List<T> list) throws IOException {
+            out.beginArray();
+            for (T element : list) {
+                mElementAdapter.write(out, element);
+            }
+            out.endArray();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit2.Call;
+
+/**
+ * The calls issued on behalf of one query. Cancelling the group cancels whichever of them are
+ * still running, as well as the ones added afterwards. Get one from
+ * {@link WeatherFetcher#newCallGroup()}
+ */
+public final class CallGroup {
+    private final CancelledRequests mCancelledRequests;
+    private final List<Call<?>> mCalls = new ArrayList<>();
+    private boolean mCancelled;
+
+    CallGroup(CancelledRequests cancelledRequests) {
+        mCancelledRequests = cancelledRequests;
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void add(Call<?> call) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCalls.add(call);
+                return;
+            }
+        }
+        cancel(call);
+    }
+
+    public void cancel() {
+        final List<Call<?>> calls;
+        synchronized (this) {
+            mCancelled = true;
+            calls = new ArrayList<>(mCalls);
+            mCalls.clear();
+        }
+        for (Call<?> call : calls) {
+            cancel(call);
+        }
+    }
+
+    /**
+     * Marks the request of the call as cancelled before cancelling the call, so the
+     * interceptors don't mistake the failure for a network error
+     */
+    private void cancel(Call<?> call) {
+        try {
+            mCancelledRequests.add(call.request());
+        } catch (RuntimeException e) {
+            //The request couldn't be built, so the call never reaches the interceptors
+        }
+        call.cancel();
+    }
+}
@@ -0,0 +1,39 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import okhttp3.Request;
+
+/**
+ * The requests of the calls which have been cancelled. OkHttp doesn't tell the interceptors
+ * whether the call they intercept has been cancelled, the call just fails with an IOException
+ * like any network error. The interceptors check here before they retry a failed call or count
+ * it as a failure of the upstream. Requests are compared by identity, every interceptor sees
+ * the request instance of the call as long as none of them rewrites it. The entries go away
+ * with the requests.
+ */
+final class CancelledRequests {
+    //Request doesn't override equals, so the weak keys are compared by identity
+    private final Map<Request, Boolean> mRequests = new WeakHashMap<>();
+
+    synchronized void add(Request request) {
+        mRequests.put(request, Boolean.TRUE);
+    }
+
+    synchronized boolean contains(Request request) {
+        return mRequests.containsKey(request);
+    }
+
+    /**
+     * @return true if the request failed because its call was cancelled or the thread
+     *         executing it was interrupted, rather than because of the network or the upstream
+     */
+    boolean isCancellation(Request request, IOException e) {
+        return contains(request)
+                || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException));
+    }
+}
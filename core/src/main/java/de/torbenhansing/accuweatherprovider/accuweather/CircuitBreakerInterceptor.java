@@ -0,0 +1,156 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Application interceptor that stops sending requests upstream while they are bound to fail.
+ * The circuit opens when the API key is rejected, when the quota is exhausted or when a number
+ * of calls in a row failed transiently, each with its own cooldown. While it is open every call
+ * fails right away with a {@link CircuitOpenException}. Once the cooldown has passed a single
+ * call is let through to probe the upstream, its outcome closes or reopens the circuit.
+ * Cancelled calls say nothing about the upstream and are not counted.
+ */
+class CircuitBreakerInterceptor implements Interceptor {
+    private final int mFailureThreshold;
+    private final long mFailureCooldown;
+    private final long mQuotaCooldown;
+    private final long mInvalidKeyCooldown;
+    private final CancelledRequests mCancelledRequests;
+    private final AtomicLong mRejectedCalls = new AtomicLong();
+    //The state is guarded by this, it is only touched once before and once after each call
+    private UpstreamError mOpenReason;
+    private long mOpenUntil;
+    private boolean mProbing;
+    private int mConsecutiveFailures;
+
+    /**
+     * @param failureThreshold The number of transient failures in a row opening the circuit
+     * @param failureCooldown How long the circuit stays open after transient failures
+     * @param quotaCooldown How long the circuit stays open once the quota is exhausted
+     * @param invalidKeyCooldown How long the circuit stays open once the API key was rejected,
+     *                           unless the key is changed before
+     * @param cancelledRequests Tells a cancelled call from a failed one
+     */
+    CircuitBreakerInterceptor(int failureThreshold, long failureCooldown, long quotaCooldown,
+                              long invalidKeyCooldown, TimeUnit unit,
+                              CancelledRequests cancelledRequests) {
+        mFailureThreshold = failureThreshold;
+        mFailureCooldown = unit.toNanos(failureCooldown);
+        mQuotaCooldown = unit.toNanos(quotaCooldown);
+        mInvalidKeyCooldown = unit.toNanos(invalidKeyCooldown);
+        mCancelledRequests = cancelledRequests;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final boolean probe = acquire();
+        final Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            if (mCancelledRequests.isCancellation(request, e)) {
+                onCancelled(probe);
+            } else {
+                onFailure(UpstreamError.TRANSIENT, probe);
+            }
+            throw e;
+        }
+        if (response.isSuccessful()) {
+            onSuccess();
+        } else {
+            onFailure(UpstreamError.fromStatusCode(response.code()), probe);
+        }
+        return response;
+    }
+
+    /**
+     * Closes the circuit, e.g. because the API key has been changed
+     */
+    synchronized void reset() {
+        mOpenReason = null;
+        mProbing = false;
+        mConsecutiveFailures = 0;
+    }
+
+    /**
+     * @return Why calls are currently failed locally, or null if they are let through
+     */
+    synchronized UpstreamError getRejectionReason() {
+        if (mOpenReason == null || (!mProbing && System.nanoTime() - mOpenUntil >= 0)) {
+            return null;
+        }
+        return mOpenReason;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  State: " + (mOpenReason == null ? "closed" : "open (" + mOpenReason
+                + (mProbing ? ", probing" : "") + ")") + ", " + mConsecutiveFailures
+                + " consecutive failures, " + mRejectedCalls.get() + " calls rejected");
+    }
+
+    /**
+     * @return true if the call is the probe of an open circuit
+     * @throws CircuitOpenException If the call must not be sent upstream
+     */
+    private synchronized boolean acquire() throws CircuitOpenException {
+        if (mOpenReason == null) {
+            return false;
+        }
+        if (mProbing || System.nanoTime() - mOpenUntil < 0) {
+            mRejectedCalls.incrementAndGet();
+            throw new CircuitOpenException(mOpenReason);
+        }
+        mProbing = true;
+        return true;
+    }
+
+    private synchronized void onSuccess() {
+        reset();
+    }
+
+    /**
+     * Lets the next call probe the upstream if the cancelled call was the probe
+     */
+    private synchronized void onCancelled(boolean probe) {
+        if (probe) {
+            mProbing = false;
+        }
+    }
+
+    private synchronized void onFailure(UpstreamError error, boolean probe) {
+        if (probe) {
+            mProbing = false;
+        }
+        switch (error) {
+            case INVALID_API_KEY:
+                open(error, mInvalidKeyCooldown);
+                break;
+            case QUOTA_EXCEEDED:
+                open(error, mQuotaCooldown);
+                break;
+            case TRANSIENT:
+                if (probe || ++mConsecutiveFailures >= mFailureThreshold) {
+                    open(error, mFailureCooldown);
+                }
+                break;
+            default:
+                //The upstream answered properly, the request itself was bad
+                reset();
+                break;
+        }
+    }
+
+    private void open(UpstreamError reason, long cooldown) {
+        mOpenReason = reason;
+        mOpenUntil = System.nanoTime() + cooldown;
+        mConsecutiveFailures = 0;
+    }
+}
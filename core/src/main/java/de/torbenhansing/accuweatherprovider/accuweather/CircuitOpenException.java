@@ -0,0 +1,21 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request upstream while it is bound to fail
+ */
+class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final UpstreamError mReason;
+
+    CircuitOpenException(UpstreamError reason) {
+        super("Upstream calls are suspended: " + reason);
+        mReason = reason;
+    }
+
+    UpstreamError getReason() {
+        return mReason;
+    }
+}
@@ -0,0 +1,126 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+/**
+ * The weather conditions the AccuWeather icons are mapped to
+ */
+public enum Condition {
+    NOT_AVAILABLE,
+    SUNNY,
+    PARTLY_CLOUDY_DAY,
+    HAZE,
+    MOSTLY_CLOUDY_DAY,
+    CLOUDY,
+    FOGGY,
+    SHOWERS,
+    SCATTERED_SHOWERS,
+    THUNDERSTORMS,
+    SCATTERED_THUNDERSTORMS,
+    ISOLATED_THUNDERSTORMS,
+    SNOW_FLURRIES,
+    SNOW,
+    SNOW_SHOWERS,
+    SLEET,
+    FREEZING_RAIN,
+    MIXED_RAIN_AND_SNOW,
+    HOT,
+    COLD,
+    WINDY,
+    CLEAR_NIGHT,
+    PARTLY_CLOUDY_NIGHT,
+    MOSTLY_CLOUDY_NIGHT;
+
+    private static final Condition[] ICONS = new Condition[45];
+    static {
+        // Sunny
+        ICONS[1] = SUNNY;
+        // Mostly Sunny
+        ICONS[2] = SUNNY;
+        // Partly Sunny
+        ICONS[3] = PARTLY_CLOUDY_DAY;
+        // Intermittent Clouds
+        ICONS[4] = PARTLY_CLOUDY_DAY;
+        // Hazy Sunshine
+        ICONS[5] = HAZE;
+        // Mostly Cloudy
+        ICONS[6] = MOSTLY_CLOUDY_DAY;
+        // Cloudy
+        ICONS[7] = CLOUDY;
+        // Dreary
+        ICONS[8] = CLOUDY;
+        // Fog
+        ICONS[11] = FOGGY;
+        // Showers
+        ICONS[12] = SHOWERS;
+        // Mostly Cloudy w/ Showers
+        ICONS[13] = SCATTERED_SHOWERS;
+        // Partly Sunny w/ Showers
+        ICONS[14] = SCATTERED_SHOWERS;
+        // Thunderstorms
+        ICONS[15] = THUNDERSTORMS;
+        // Mostly Cloudy w/ Thunderstorms
+        ICONS[16] = SCATTERED_THUNDERSTORMS;
+        // Partly Sunny w/ Thunderstorms
+        ICONS[17] = ISOLATED_THUNDERSTORMS;
+        // Rain
+        ICONS[18] = SHOWERS;
+        // Flurries
+        ICONS[19] = SNOW_FLURRIES;
+        // Mostly Cloudy w/ Flurries
+        ICONS[20] = SNOW_FLURRIES;
+        // Partly Sunny w/ Flurries
+        ICONS[21] = SNOW_FLURRIES;
+        // Snow
+        ICONS[22] = SNOW;
+        // Mostly Cloudy w/ Snow
+        ICONS[23] = SNOW;
+        // Ics
+        ICONS[24] = SNOW_SHOWERS;
+        // Sleet
+        ICONS[25] = SLEET;
+        // Freezing Rain
+        ICONS[26] = FREEZING_RAIN;
+        // Rain and Snow
+        ICONS[29] = MIXED_RAIN_AND_SNOW;
+        // Hot
+        ICONS[30] = HOT;
+        // Cold
+        ICONS[31] = COLD;
+        // Windy
+        ICONS[32] = WINDY;
+        // Clear
+        ICONS[33] = CLEAR_NIGHT;
+        // Mostly Clear
+        ICONS[34] = CLEAR_NIGHT;
+        // Partly Cloudy
+        ICONS[35] = PARTLY_CLOUDY_NIGHT;
+        // Intermittent Clouds
+        ICONS[36] = PARTLY_CLOUDY_NIGHT;
+        // Hazy Moonlight
+        // Not available
+        // Mostly Cloudy
+        ICONS[38] = MOSTLY_CLOUDY_NIGHT;
+        // Partly Cloudy w/ Showers
+        //   not available
+        // Mostly Cloudy w/ Showers
+        //   not available
+        // Partly Cloudy w/ T-Storms
+        //   not available
+        // Mostly Cloudy w/ T-Storms
+        //   not available
+        // Mostly Cloudy w/ Flurries
+        //   not available
+        // 	Mostly Cloudy w/ Snow
+        //   not available
+    }
+
+    /**
+     * @param weatherIcon The number of an AccuWeather weather icon
+     * @return The condition of the icon, {@link #NOT_AVAILABLE} if it has no equivalent
+     */
+    public static Condition fromIcon(int weatherIcon) {
+        if (weatherIcon < 0 || weatherIcon >= ICONS.length || ICONS[weatherIcon] == null) {
+            return NOT_AVAILABLE;
+        }
+        return ICONS[weatherIcon];
+    }
+}
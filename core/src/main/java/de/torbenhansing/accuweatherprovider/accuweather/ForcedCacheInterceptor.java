@@ -0,0 +1,58 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Network interceptor that extends the cache lifetime of responses whose upstream headers are
+ * more conservative than the data warrants. Responses that may be cached longer than configured
+ * for their path are left untouched.
+ */
+class ForcedCacheInterceptor implements Interceptor {
+    private final Map<String, Integer> mMinMaxAges = new LinkedHashMap<>();
+
+    /**
+     * @param pathPrefix The path prefix of the endpoint, e.g. "/currentconditions/"
+     * @param seconds The minimum time a successful response of the endpoint may be cached
+     */
+    void setMinMaxAge(String pathPrefix, int seconds) {
+        mMinMaxAges.put(pathPrefix, seconds);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final Response response = chain.proceed(request);
+        if (!"GET".equals(request.method()) || !response.isSuccessful()) {
+            return response;
+        }
+        final int minMaxAge = getMinMaxAge(request.url().encodedPath());
+        if (minMaxAge <= 0) {
+            return response;
+        }
+        final CacheControl cacheControl = response.cacheControl();
+        if (cacheControl.noStore() || cacheControl.maxAgeSeconds() >= minMaxAge) {
+            return response;
+        }
+        return response.newBuilder()
+                .header("Cache-Control", "public, max-age=" + minMaxAge)
+                .removeHeader("Pragma")
+                .removeHeader("Expires")
+                .build();
+    }
+
+    private int getMinMaxAge(String path) {
+        for (Map.Entry<String, Integer> entry : mMinMaxAges.entrySet()) {
+            if (path.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return 0;
+    }
+}
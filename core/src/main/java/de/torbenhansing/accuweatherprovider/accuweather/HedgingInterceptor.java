@@ -0,0 +1,254 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Application interceptor that hedges slow GET requests: if no response has arrived after the
+ * hedge delay, the request is sent a second time and whichever copy succeeds first is used,
+ * the other one is cancelled. This cuts the latency caused by a stalled connection or a slow
+ * server instance, at the cost of an additional upstream call for the slowest requests.
+ *
+ * Both copies are executed on threads of this interceptor by a client without any application
+ * interceptors. The interceptor keeps checking whether the original call has been cancelled
+ * while it waits, and cancels the copies once it has.
+ */
+class HedgingInterceptor implements Interceptor {
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30L;
+    //How long a cancelled call keeps its copies running at most
+    private static final long CANCELLATION_CHECK_INTERVAL_MILLIS = 100L;
+
+    private final long mDelay;
+    private final ExecutorService mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AccuWeatherHedge #" + mCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final AtomicLong mHedges = new AtomicLong();
+    private final CancelledRequests mCancelledRequests;
+    private volatile OkHttpClient mTransport;
+
+    /**
+     * @param delay The time to wait for a response before sending the request again
+     * @param cancelledRequests Tells when the original call has been cancelled
+     */
+    HedgingInterceptor(long delay, TimeUnit unit, CancelledRequests cancelledRequests) {
+        mDelay = unit.toMillis(delay);
+        mCancelledRequests = cancelledRequests;
+    }
+
+    /**
+     * @param transport The client executing the copies of the requests, it must not have any
+     *                  application interceptors
+     */
+    void setTransport(OkHttpClient transport) {
+        mTransport = transport;
+    }
+
+    long getHedges() {
+        return mHedges.get();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final OkHttpClient transport = mTransport;
+        if (transport == null || !"GET".equals(request.method())) {
+            return chain.proceed(request);
+        }
+        final Race race = new Race();
+        Outcome outcome = null;
+        try {
+            race.start(transport.newCall(request));
+            outcome = awaitNext(race, request, mDelay);
+            if (outcome == null) {
+                mHedges.incrementAndGet();
+                race.start(transport.newCall(request));
+                outcome = awaitNext(race, request, Long.MAX_VALUE);
+            }
+            //A copy that failed early doesn't decide the race while the other one is running
+            while (!outcome.isSuccessful() && race.hasPending()) {
+                Outcome next = awaitNext(race, request, Long.MAX_VALUE);
+                outcome.discard();
+                outcome = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(race, outcome);
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        } catch (IOException e) {
+            abandon(race, outcome);
+            throw e;
+        }
+        race.finish(outcome);
+        if (outcome.mError != null) {
+            throw outcome.mError;
+        }
+        return outcome.mResponse;
+    }
+
+    /**
+     * Waits for the next outcome of the race
+     * @param timeout The maximum time to wait in milliseconds
+     * @return The next outcome, or null if none arrived in time
+     * @throws IOException If the original call has been cancelled in the meantime
+     */
+    private Outcome awaitNext(Race race, Request request, long timeout)
+            throws InterruptedException, IOException {
+        long remaining = timeout;
+        while (true) {
+            final long slice = Math.min(remaining, CANCELLATION_CHECK_INTERVAL_MILLIS);
+            final Outcome outcome = race.next(slice);
+            if (outcome != null) {
+                return outcome;
+            }
+            if (mCancelledRequests.contains(request)) {
+                throw new IOException("Canceled");
+            }
+            if (remaining != Long.MAX_VALUE) {
+                remaining -= slice;
+                if (remaining <= 0) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels all copies and discards their outcomes
+     */
+    private static void abandon(Race race, Outcome outcome) {
+        race.finish(null);
+        if (outcome != null) {
+            outcome.discard();
+        }
+    }
+
+    private static final class Outcome {
+        private final Call mCall;
+        private final Response mResponse;
+        private final IOException mError;
+
+        Outcome(Call call, Response response, IOException error) {
+            mCall = call;
+            mResponse = response;
+            mError = error;
+        }
+
+        boolean isSuccessful() {
+            return mResponse != null && mResponse.isSuccessful();
+        }
+
+        void discard() {
+            if (mResponse != null) {
+                final ResponseBody body = mResponse.body();
+                if (body != null) {
+                    body.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The copies of one request. Outcomes delivered after the race has been decided are
+     * discarded right away
+     */
+    private final class Race {
+        private final BlockingQueue<Outcome> mOutcomes = new LinkedBlockingQueue<>();
+        //Guarded by this
+        private final List<Call> mCalls = new ArrayList<>();
+        private int mPending;
+        private boolean mFinished;
+
+        synchronized void start(final Call call) {
+            mCalls.add(call);
+            mPending++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Outcome outcome;
+                    try {
+                        outcome = new Outcome(call, call.execute(), null);
+                    } catch (IOException e) {
+                        outcome = new Outcome(call, null, e);
+                    }
+                    deliver(outcome);
+                }
+            });
+        }
+
+        synchronized boolean hasPending() {
+            return mPending > 0;
+        }
+
+        /**
+         * @param timeout The maximum time to wait in milliseconds
+         * @return The next outcome, or null if none arrived in time
+         */
+        Outcome next(long timeout) throws InterruptedException {
+            final Outcome outcome = mOutcomes.poll(timeout, TimeUnit.MILLISECONDS);
+            if (outcome != null) {
+                synchronized (this) {
+                    mPending--;
+                }
+            }
+            return outcome;
+        }
+
+        /**
+         * Cancels all copies but the winning one and discards their outcomes
+         * @param winner The outcome that is used, may be null
+         */
+        void finish(Outcome winner) {
+            final List<Call> calls;
+            synchronized (this) {
+                mFinished = true;
+                calls = new ArrayList<>(mCalls);
+            }
+            for (Call call : calls) {
+                if (winner == null || call != winner.mCall) {
+                    call.cancel();
+                }
+            }
+            Outcome outcome;
+            while ((outcome = mOutcomes.poll()) != null) {
+                outcome.discard();
+            }
+        }
+
+        private void deliver(Outcome outcome) {
+            synchronized (this) {
+                if (!mFinished) {
+                    mOutcomes.add(outcome);
+                    return;
+                }
+            }
+            outcome.discard();
+        }
+    }
+}
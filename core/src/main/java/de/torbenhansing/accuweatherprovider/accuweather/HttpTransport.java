@@ -0,0 +1,170 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Builds the HTTP client used to talk to the AccuWeather API. The client keeps its connections
+ * warm between polls, speaks HTTP/2 where the server supports it and caches responses on disk
+ * according to their Cache-Control headers.
+ */
+class HttpTransport {
+
+    private HttpTransport() {
+    }
+
+    static final class Builder {
+        private File mCacheDir;
+        private long mCacheSize;
+        private long mConnectTimeout = TimeUnit.SECONDS.toMillis(10);
+        private long mReadTimeout = TimeUnit.SECONDS.toMillis(15);
+        private int mMaxIdleConnections = 2;
+        private int mMaxRequestsPerHost;
+        private long mKeepAlive = TimeUnit.MINUTES.toMillis(5);
+        private final ForcedCacheInterceptor mForcedCacheInterceptor = new ForcedCacheInterceptor();
+        private final List<Interceptor> mInterceptors = new ArrayList<>();
+        private final List<Interceptor> mNetworkInterceptors = new ArrayList<>();
+        private Dns mDns;
+        private SocketFactory mSocketFactory;
+        private HedgingInterceptor mHedgingInterceptor;
+
+        /**
+         * @param cacheDir The directory of the HTTP cache
+         * @param cacheSize The maximum size of the HTTP cache in bytes, 0 disables the cache
+         */
+        Builder setCache(File cacheDir, long cacheSize) {
+            mCacheDir = cacheDir;
+            mCacheSize = cacheSize;
+            return this;
+        }
+
+        Builder setTimeouts(long connectTimeout, long readTimeout, TimeUnit unit) {
+            mConnectTimeout = unit.toMillis(connectTimeout);
+            mReadTimeout = unit.toMillis(readTimeout);
+            return this;
+        }
+
+        /**
+         * @param maxIdleConnections The number of idle connections kept open
+         * @param keepAlive How long an idle connection is kept open
+         */
+        Builder setConnectionPool(int maxIdleConnections, long keepAlive, TimeUnit unit) {
+            mMaxIdleConnections = maxIdleConnections;
+            mKeepAlive = unit.toMillis(keepAlive);
+            return this;
+        }
+
+        /**
+         * @param maxRequestsPerHost The number of asynchronous calls to a host executed at once,
+         *                           the others are queued
+         */
+        Builder setMaxRequestsPerHost(int maxRequestsPerHost) {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Caches successful responses of the endpoint for at least the given time, even if the
+         * upstream headers ask for less
+         */
+        Builder setMinMaxAge(String pathPrefix, long maxAge, TimeUnit unit) {
+            mForcedCacheInterceptor.setMinMaxAge(pathPrefix, (int) unit.toSeconds(maxAge));
+            return this;
+        }
+
+        /**
+         * Adds an interceptor that observes every call, including the ones answered by the cache
+         */
+        Builder addInterceptor(Interceptor interceptor) {
+            mInterceptors.add(interceptor);
+            return this;
+        }
+
+        /**
+         * Adds an interceptor that observes every response received from the network
+         */
+        Builder addNetworkInterceptor(Interceptor interceptor) {
+            mNetworkInterceptors.add(interceptor);
+            return this;
+        }
+
+        /**
+         * Hedges slow requests with the given interceptor. It is added after all other
+         * application interceptors, so they see one call no matter how many copies it sends
+         */
+        Builder setHedging(HedgingInterceptor hedgingInterceptor) {
+            mHedgingInterceptor = hedgingInterceptor;
+            return this;
+        }
+
+        /**
+         * Resolves host names with the given resolver instead of the system one
+         */
+        Builder setDns(Dns dns) {
+            mDns = dns;
+            return this;
+        }
+
+        /**
+         * Creates the plain sockets of new connections with the given factory
+         */
+        Builder setSocketFactory(SocketFactory socketFactory) {
+            mSocketFactory = socketFactory;
+            return this;
+        }
+
+        OkHttpClient build() {
+            OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    .connectTimeout(mConnectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(mReadTimeout, TimeUnit.MILLISECONDS)
+                    .connectionPool(new ConnectionPool(mMaxIdleConnections, mKeepAlive,
+                            TimeUnit.MILLISECONDS))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            if (mCacheDir != null && mCacheSize > 0) {
+                builder.cache(new Cache(mCacheDir, mCacheSize))
+                        .addNetworkInterceptor(mForcedCacheInterceptor);
+            }
+            if (mMaxRequestsPerHost > 0) {
+                Dispatcher dispatcher = new Dispatcher();
+                dispatcher.setMaxRequestsPerHost(mMaxRequestsPerHost);
+                dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(),
+                        mMaxRequestsPerHost));
+                builder.dispatcher(dispatcher);
+            }
+            if (mDns != null) {
+                builder.dns(mDns);
+            }
+            if (mSocketFactory != null) {
+                builder.socketFactory(mSocketFactory);
+            }
+            for (Interceptor interceptor : mNetworkInterceptors) {
+                builder.addNetworkInterceptor(interceptor);
+            }
+            if (mHedgingInterceptor != null) {
+                //The copies skip the application interceptors but share the connections and
+                //the cache with the calls
+                mHedgingInterceptor.setTransport(builder.build());
+            }
+            for (Interceptor interceptor : mInterceptors) {
+                builder.addInterceptor(interceptor);
+            }
+            if (mHedgingInterceptor != null) {
+                builder.addInterceptor(mHedgingInterceptor);
+            }
+            return builder.build();
+        }
+    }
+}
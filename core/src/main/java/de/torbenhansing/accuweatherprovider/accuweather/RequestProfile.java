@@ -0,0 +1,59 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+/**
+ * Selects how much data is requested from each endpoint. The details flag multiplies the size
+ * of a response, so it is only set where the fields it adds end up in the weather info of the
+ * provider.
+ */
+public enum RequestProfile {
+    /**
+     * Temperature, condition and the daily minimum, maximum and condition. Humidity and wind
+     * are unknown, the current conditions only carry them with details
+     */
+    MINIMAL(false, false),
+    /**
+     * Everything the provider reports: adds humidity and wind, which the current conditions
+     * only carry with details. The daily forecast fields are part of the plain response
+     */
+    STANDARD(true, false),
+    /**
+     * Requests all details of every weather endpoint
+     */
+    FULL(true, true);
+
+    private final boolean mCurrentConditionsDetails;
+    private final boolean mForecastDetails;
+
+    RequestProfile(boolean currentConditionsDetails, boolean forecastDetails) {
+        mCurrentConditionsDetails = currentConditionsDetails;
+        mForecastDetails = forecastDetails;
+    }
+
+    public boolean getCurrentConditionsDetails() {
+        return mCurrentConditionsDetails;
+    }
+
+    public boolean getForecastDetails() {
+        return mForecastDetails;
+    }
+
+    /**
+     * The city lookups only ever need the key and the names, which are always included
+     */
+    public boolean getLookupDetails() {
+        return false;
+    }
+
+    /**
+     * @return The profile with the given case insensitive name, or {@link #STANDARD} if there is
+     * no such profile
+     */
+    public static RequestProfile fromName(String name) {
+        for (RequestProfile profile : values()) {
+            if (profile.name().equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        return STANDARD;
+    }
+}
@@ -0,0 +1,87 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Application interceptor that retries GET requests which failed transiently. The delay before
+ * each retry is drawn at random up to an exponentially growing limit, so clients that failed at
+ * the same time don't retry in lockstep. Rejected API keys and exhausted quotas are never
+ * retried, neither are cancelled calls.
+ */
+class RetryInterceptor implements Interceptor {
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final CancelledRequests mCancelledRequests;
+    private final AtomicLong mRetries = new AtomicLong();
+
+    /**
+     * @param maxAttempts The maximum number of times a request is sent, including the first one
+     * @param baseDelay The limit of the delay before the first retry, doubled for every retry
+     * @param maxDelay The maximum delay before a retry
+     * @param cancelledRequests Tells a cancelled call from a failed one
+     */
+    RetryInterceptor(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit,
+                     CancelledRequests cancelledRequests) {
+        mMaxAttempts = maxAttempts;
+        mCancelledRequests = cancelledRequests;
+        mBaseDelay = unit.toMillis(baseDelay);
+        mMaxDelay = unit.toMillis(maxDelay);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        if (!"GET".equals(request.method())) {
+            return chain.proceed(request);
+        }
+        for (int attempt = 1; attempt < mMaxAttempts; attempt++) {
+            try {
+                final Response response = chain.proceed(request);
+                if (response.isSuccessful() || UpstreamError.fromStatusCode(response.code())
+                        != UpstreamError.TRANSIENT) {
+                    return response;
+                }
+                final ResponseBody body = response.body();
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException e) {
+                //Network failures are transient and retried below, a cancelled call fails
+                //with the same exception, but every retry would fail right away again
+                if (mCancelledRequests.isCancellation(request, e)) {
+                    throw e;
+                }
+            }
+            mRetries.incrementAndGet();
+            sleep(attempt);
+            if (mCancelledRequests.contains(request)) {
+                throw new IOException("Canceled");
+            }
+        }
+        return chain.proceed(request);
+    }
+
+    long getRetries() {
+        return mRetries.get();
+    }
+
+    private void sleep(int attempt) throws InterruptedIOException {
+        final long limit = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt - 1, 30));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import de.torbenhansing.accuweatherprovider.utils.Histogram;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Collects latency histograms and transfer sizes per endpoint. The HTTP client has to be built
+ * with the interceptors, the DNS resolver and the socket factory of this class:
+ * <ul>
+ * <li>DNS: time to resolve the host name, only when a new connection is opened</li>
+ * <li>Connect: time to open the TCP connection, the TLS handshake is not included</li>
+ * <li>TTFB: time from sending the request until the response headers are received</li>
+ * <li>Total: time from starting the call until the response body is read completely</li>
+ * <li>Bytes: size of each response body as received, before any transparent decompression</li>
+ * </ul>
+ * Responses served by the HTTP cache are only counted. All values are recorded without locking.
+ */
+class TransferMetrics {
+
+    enum Endpoint {
+        GEOPOSITION("/locations/v1/cities/geoposition/"),
+        CITY_SEARCH("/locations/"),
+        CURRENT_CONDITIONS("/currentconditions/"),
+        FORECAST("/forecasts/"),
+        OTHER("/");
+
+        private final String mPathPrefix;
+
+        Endpoint(String pathPrefix) {
+            mPathPrefix = pathPrefix;
+        }
+
+        static Endpoint fromPath(String path) {
+            for (Endpoint endpoint : values()) {
+                if (path.startsWith(endpoint.mPathPrefix)) {
+                    return endpoint;
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    private final EndpointMetrics[] mMetrics = new EndpointMetrics[Endpoint.values().length];
+    //A call establishes its connection on the thread executing it, this tells the resolver and
+    //the sockets which endpoint they are working for
+    private final ThreadLocal<Endpoint> mCurrentEndpoint = new ThreadLocal<>();
+    private final Interceptor mCallInterceptor = new CallInterceptor();
+    private final Interceptor mNetworkInterceptor = new NetworkInterceptor();
+    private final Dns mDns = new TimingDns();
+    private final SocketFactory mSocketFactory = new TimingSocketFactory();
+
+    TransferMetrics() {
+        for (int i = 0; i < mMetrics.length; i++) {
+            mMetrics[i] = new EndpointMetrics();
+        }
+    }
+
+    /**
+     * @return The application interceptor measuring the total time of each call
+     */
+    Interceptor getCallInterceptor() {
+        return mCallInterceptor;
+    }
+
+    /**
+     * @return The network interceptor measuring the time to first byte and the body size
+     */
+    Interceptor getNetworkInterceptor() {
+        return mNetworkInterceptor;
+    }
+
+    Dns getDns() {
+        return mDns;
+    }
+
+    SocketFactory getSocketFactory() {
+        return mSocketFactory;
+    }
+
+    void dump(PrintWriter pw) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            final EndpointMetrics metrics = mMetrics[endpoint.ordinal()];
+            if (metrics.mTotal.getCount() == 0 && metrics.mCachedResponses.get() == 0
+                    && metrics.mFailures.get() == 0) {
+                continue;
+            }
+            pw.println("  " + endpoint + ": " + metrics.mTotal.getCount() + " from network, "
+                    + metrics.mCachedResponses.get() + " from HTTP cache, "
+                    + metrics.mFailures.get() + " failed, "
+                    + metrics.mBytes.getSum() + " bytes");
+            pw.println("    DNS (ms): " + metrics.mDns);
+            pw.println("    Connect (ms): " + metrics.mConnect);
+            pw.println("    TTFB (ms): " + metrics.mTimeToFirstByte);
+            pw.println("    Total (ms): " + metrics.mTotal);
+            pw.println("    Body (bytes): " + metrics.mBytes);
+        }
+    }
+
+    private EndpointMetrics getCurrentMetrics() {
+        final Endpoint endpoint = mCurrentEndpoint.get();
+        return mMetrics[(endpoint != null ? endpoint : Endpoint.OTHER).ordinal()];
+    }
+
+    private static void recordSince(Histogram histogram, long startNanos) {
+        histogram.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Wraps the body of the response to be notified once it has been read completely or closed
+     */
+    private static Response observeBody(Response response, final BodyListener listener) {
+        final ResponseBody body = response.body();
+        if (body == null) {
+            listener.onBodyFinished(0);
+            return response;
+        }
+        final BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+            private long mBytes;
+            private boolean mFinished;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                final long read = super.read(sink, byteCount);
+                if (read > 0) {
+                    mBytes += read;
+                } else if (read == -1) {
+                    finish();
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                finish();
+                super.close();
+            }
+
+            private void finish() {
+                if (!mFinished) {
+                    mFinished = true;
+                    listener.onBodyFinished(mBytes);
+                }
+            }
+        });
+        return response.newBuilder()
+                .body(ResponseBody.create(body.contentType(), body.contentLength(), source))
+                .build();
+    }
+
+    private interface BodyListener {
+        /**
+         * @param bytes The number of bytes read from the body
+         */
+        void onBodyFinished(long bytes);
+    }
+
+    private static final class EndpointMetrics {
+        private final Histogram mDns = new Histogram();
+        private final Histogram mConnect = new Histogram();
+        private final Histogram mTimeToFirstByte = new Histogram();
+        private final Histogram mTotal = new Histogram();
+        private final Histogram mBytes = new Histogram();
+        private final AtomicLong mCachedResponses = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+    }
+
+    private final class CallInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            final Endpoint endpoint = Endpoint.fromPath(chain.request().url().encodedPath());
+            final EndpointMetrics metrics = mMetrics[endpoint.ordinal()];
+            final Endpoint previous = mCurrentEndpoint.get();
+            mCurrentEndpoint.set(endpoint);
+            final long start = System.nanoTime();
+            final Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException e) {
+                metrics.mFailures.incrementAndGet();
+                throw e;
+            } finally {
+                mCurrentEndpoint.set(previous);
+            }
+            if (response.networkResponse() == null) {
+                metrics.mCachedResponses.incrementAndGet();
+                return response;
+            }
+            return observeBody(response, new BodyListener() {
+                @Override
+                public void onBodyFinished(long bytes) {
+                    recordSince(metrics.mTotal, start);
+                }
+            });
+        }
+    }
+
+    private final class NetworkInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            final EndpointMetrics metrics
+                    = mMetrics[Endpoint.fromPath(chain.request().url().encodedPath()).ordinal()];
+            final long start = System.nanoTime();
+            final Response response = chain.proceed(chain.request());
+            recordSince(metrics.mTimeToFirstByte, start);
+            return observeBody(response, new BodyListener() {
+                @Override
+                public void onBodyFinished(long bytes) {
+                    metrics.mBytes.record(bytes);
+                }
+            });
+        }
+    }
+
+    private final class TimingDns implements Dns {
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            final long start = System.nanoTime();
+            try {
+                return Dns.SYSTEM.lookup(hostname);
+            } finally {
+                recordSince(getCurrentMetrics().mDns, start);
+            }
+        }
+    }
+
+    private final class TimingSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket() {
+            return new TimingSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localHost, localPort));
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            Socket socket = createSocket();
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) throws IOException {
+            Socket socket = createSocket();
+            socket.bind(new InetSocketAddress(localAddress, localPort));
+            socket.connect(new InetSocketAddress(address, port));
+            return socket;
+        }
+    }
+
+    private final class TimingSocket extends Socket {
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                super.connect(endpoint, timeout);
+            } finally {
+                recordSince(getCurrentMetrics().mConnect, start);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+/**
+ * The classes of unsuccessful upstream responses, which decide whether a request is retried
+ */
+enum UpstreamError {
+    /** The API key was rejected, nothing will succeed until the key is changed */
+    INVALID_API_KEY,
+    /** The request quota of the API key is exhausted, AccuWeather answers with 503 then */
+    QUOTA_EXCEEDED,
+    /** Server errors, timeouts and network failures, which might succeed when retried */
+    TRANSIENT,
+    /** Any other client error, retrying the same request won't help */
+    PERMANENT;
+
+    static UpstreamError fromStatusCode(int code) {
+        if (code == 401 || code == 403) {
+            return INVALID_API_KEY;
+        }
+        if (code == 503 || code == 429) {
+            return QUOTA_EXCEEDED;
+        }
+        if (code >= 500 || code == 408) {
+            return TRANSIENT;
+        }
+        return PERMANENT;
+    }
+}
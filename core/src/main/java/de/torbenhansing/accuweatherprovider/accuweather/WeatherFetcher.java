@@ -0,0 +1,785 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.cache.CityPrefixIndex;
+import de.torbenhansing.accuweatherprovider.cache.WeatherCache;
+import de.torbenhansing.accuweatherprovider.utils.EventCounter;
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+import okhttp3.OkHttpClient;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Fetches the weather and the cities of AccuWeather locations through the caches and the HTTP
+ * client of the provider. The weather is answered from the {@link WeatherCache} while it is
+ * fresh, otherwise the current conditions and the forecast are requested in parallel and
+ * joined into a {@link WeatherReport}. The requests go through the circuit breaker, the
+ * retries and the hedging configured on the {@link Builder}.
+ * <p>
+ * Nothing in here depends on Android, so the load harness drives the same code as the device.
+ * The asynchronous results are delivered on the network threads.
+ */
+public class WeatherFetcher {
+    // TODO Add an preference in settings to customize this
+    private static final int FORECAST_DAYS = 5;
+    // Do we wan't to get the larger city when doing a lookup for locations?
+    private static final boolean TOPLEVEL = false;
+
+    private final AccuWeatherInterface mAccuWeatherInterface;
+    private final TransferMetrics mTransferMetrics;
+    private final CancelledRequests mCancelledRequests;
+    private final CircuitBreakerInterceptor mCircuitBreaker;
+    private final RetryInterceptor mRetryInterceptor;
+    private final HedgingInterceptor mHedgingInterceptor;
+    private final RequestProfile mRequestProfile;
+    private final WeatherCache mWeatherCache;
+    private final CityPrefixIndex mCityIndex;
+    private final CitySearch mCitySearch;
+    private final ResponseListener mResponseListener;
+    private final long mCacheTtl;
+    private final long mForecastCacheTtl;
+    private final long mCacheMaxStale;
+    private final boolean mStaleWhileRevalidate;
+    private final EventCounter<CacheEvent> mCacheEvents = new EventCounter<>(CacheEvent.class);
+    private final EventCounter<Failure> mFailures = new EventCounter<>(Failure.class);
+    private final Set<String> mRevalidatingKeys
+            = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile String mApiKey;
+
+    private WeatherFetcher(Builder builder) {
+        mTransferMetrics = builder.mTransferMetrics;
+        mCancelledRequests = builder.mCancelledRequests;
+        mCircuitBreaker = builder.mCircuitBreaker;
+        mRetryInterceptor = builder.mRetryInterceptor;
+        mHedgingInterceptor = builder.mHedgingInterceptor;
+        mRequestProfile = builder.mRequestProfile;
+        mWeatherCache = builder.mWeatherCache;
+        mCityIndex = builder.mCityIndex;
+        mCitySearch = builder.mCitySearch;
+        mResponseListener = builder.mResponseListener;
+        mCacheTtl = builder.mCacheTtl;
+        mForecastCacheTtl = builder.mForecastCacheTtl;
+        mCacheMaxStale = builder.mCacheMaxStale;
+        mStaleWhileRevalidate = builder.mStaleWhileRevalidate;
+
+        final OkHttpClient httpClient = builder.mHttpTransport
+                //The metrics see each call once, with the time spent on retries and hedges.
+                //Calls suspended by the circuit breaker are never retried
+                .addInterceptor(mTransferMetrics.getCallInterceptor())
+                .addInterceptor(mCircuitBreaker)
+                .addInterceptor(mRetryInterceptor)
+                .setHedging(mHedgingInterceptor)
+                .addNetworkInterceptor(mTransferMetrics.getNetworkInterceptor())
+                .setDns(mTransferMetrics.getDns())
+                .setSocketFactory(mTransferMetrics.getSocketFactory())
+                .build();
+
+        //Deliver the async responses on the network threads instead of the main looper, the
+        //processing of the responses does not touch any UI
+        final Executor callbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        mAccuWeatherInterface = new Retrofit.Builder().baseUrl(builder.mBaseUrl)
+                .client(httpClient)
+                .callbackExecutor(callbackExecutor)
+                .addConverterFactory(AccuWeatherConverterFactory.create()).build()
+                .create(AccuWeatherInterface.class);
+    }
+
+    /**
+     * Receives the result of an asynchronous weather query
+     */
+    public interface WeatherCallback {
+        /**
+         * @param report The weather or null if it could neither be fetched nor taken from the
+         *               cache
+         */
+        void onWeatherReceived(WeatherReport report);
+    }
+
+    /**
+     * Receives the result of an asynchronous city lookup
+     */
+    public interface CityCallback {
+        /**
+         * @param city The city of the location or null if the lookup failed
+         */
+        void onCityReceived(CityInfoResponse city);
+    }
+
+    /**
+     * Observes every response received from upstream, e.g. to track the state of the API key
+     */
+    public interface ResponseListener {
+        void onResponse(Response<?> response);
+    }
+
+    /**
+     * Searches cities without asking upstream, e.g. in an offline index. It is asked after the
+     * results of previous lookups and before the upstream
+     */
+    public interface CitySearch {
+        /**
+         * @return The cities matching the name, an empty list if there are none
+         */
+        List<CityInfoResponse> search(String cityName, String language);
+    }
+
+    /**
+     * Sets the API key of all requests sent from now on
+     */
+    public void setApiKey(String apiKey) {
+        if (apiKey == null ? mApiKey != null : !apiKey.equals(mApiKey)) {
+            //A new key deserves a new chance
+            mCircuitBreaker.reset();
+        }
+        mApiKey = apiKey;
+    }
+
+    /**
+     * @return true if the circuit breaker holds back all requests because the upstream
+     * rejected the API key
+     */
+    public boolean isApiKeyRejected() {
+        return mCircuitBreaker.getRejectionReason() == UpstreamError.INVALID_API_KEY;
+    }
+
+    /**
+     * @return A group for the calls of one query, which cancels all of them at once
+     */
+    public CallGroup newCallGroup() {
+        return new CallGroup(mCancelledRequests);
+    }
+
+    AccuWeatherInterface getAccuWeatherInterface() {
+        return mAccuWeatherInterface;
+    }
+
+    /**
+     * Answers from the cache while the weather is fresh, or while it is still usable in the
+     * stale-while-revalidate mode, and fetches whatever isn't fresh otherwise. This call does
+     * not block, the result is delivered to the callback on a network thread or, when answered
+     * from the cache, on the calling thread
+     * @param cityName The name the caller knows the location by, may be null if the weather
+     *                 is cached
+     * @param calls The group of the calls of the query
+     */
+    public void getWeatherAsync(final String cityId, final String cityName,
+                                final String language, final TemperatureUnit tempUnit,
+                                CallGroup calls, final WeatherCallback callback) {
+        final String cacheKey = WeatherCache.buildKey(cityId, language);
+        final long now = System.currentTimeMillis();
+
+        WeatherCache.Entry cached = mWeatherCache.get(cacheKey);
+        if (cached != null && cached.isFresh(now)) {
+            mCacheEvents.increment(CacheEvent.WEATHER_HIT);
+            Logging.logd("Using cached weather for %s", cacheKey);
+            Logging.trace("weather_hit", cacheKey, 0);
+            callback.onWeatherReceived(processCachedWeather(cityName, cached, tempUnit));
+            return;
+        }
+        if (cached != null && mStaleWhileRevalidate && cached.isUsable(now, mCacheMaxStale)) {
+            //Answer right away with what we have and update the entry in the background
+            mCacheEvents.increment(CacheEvent.WEATHER_STALE_HIT);
+            Logging.logd("Using stale cached weather for %s, revalidating", cacheKey);
+            Logging.trace("weather_stale_hit", cacheKey, 0);
+            callback.onWeatherReceived(processCachedWeather(cityName, cached, tempUnit));
+            //The refresh outlives the request, so it must not be cancelled along with it
+            if (mRevalidatingKeys.add(cacheKey)) {
+                fetchWeatherAsync(cityId, cityName, language, tempUnit, cacheKey, cached, now,
+                        newCallGroup(), new WeatherCallback() {
+                            @Override
+                            public void onWeatherReceived(WeatherReport report) {
+                                mRevalidatingKeys.remove(cacheKey);
+                            }
+                        });
+            }
+            return;
+        }
+        mCacheEvents.increment(cached != null
+                && (cached.isCurrentWeatherFresh(now) || cached.isForecastFresh(now))
+                ? CacheEvent.WEATHER_PARTIAL_HIT : CacheEvent.WEATHER_MISS);
+        fetchWeatherAsync(cityId, cityName, language, tempUnit, cacheKey, cached, now, calls,
+                callback);
+    }
+
+    /**
+     * Refreshes the cached weather of the location unless it will still be fresh at the given
+     * time. This call does not block, the result is delivered to the callback on a network
+     * thread or, when answered from the cache, on the calling thread
+     * @param freshUntil The time in milliseconds since the epoch the weather is needed at
+     */
+    public void prefetchWeatherAsync(String cityId, String cityName, String language,
+                                     TemperatureUnit tempUnit, long freshUntil, CallGroup calls,
+                                     WeatherCallback callback) {
+        final String cacheKey = WeatherCache.buildKey(cityId, language);
+        WeatherCache.Entry cached = mWeatherCache.get(cacheKey);
+        if (cached != null && cached.isFresh(freshUntil)) {
+            callback.onWeatherReceived(processCachedWeather(cityName, cached, tempUnit));
+            return;
+        }
+        fetchWeatherAsync(cityId, cityName, language, tempUnit, cacheKey, cached, freshUntil,
+                calls, callback);
+    }
+
+    /**
+     * Returns the weather of the location if it is cached in memory and still usable, without
+     * doing any I/O. The entry might be older than the cache TTL
+     * @return The weather or null if nothing usable is cached
+     */
+    public WeatherReport getCachedWeather(String cityId, String cityName, String language,
+                                          TemperatureUnit tempUnit) {
+        WeatherCache.Entry cached = mWeatherCache.getFromMemory(
+                WeatherCache.buildKey(cityId, language));
+        if (cached == null || !cached.isUsable(System.currentTimeMillis(), mCacheMaxStale)) {
+            return null;
+        }
+        return processCachedWeather(cityName, cached, tempUnit);
+    }
+
+    /**
+     * Fetches whichever components of the cached entry are not fresh at the given time, or both
+     * if nothing is cached
+     * @param cached The cached entry of the location, may be null
+     * @param freshUntil The time in milliseconds since the epoch the components must still be
+     *                   fresh at to be taken from the cache
+     */
+    private void fetchWeatherAsync(String cityId, String cityName, String language,
+                                   TemperatureUnit tempUnit, String cacheKey,
+                                   WeatherCache.Entry cached, long freshUntil, CallGroup calls,
+                                   WeatherCallback callback) {
+        final boolean fetchCurrentWeather = cached == null
+                || !cached.isCurrentWeatherFresh(freshUntil);
+        final boolean fetchForecast = cached == null || !cached.isForecastFresh(freshUntil);
+        final WeatherResponseJoiner joiner = new WeatherResponseJoiner(cityName, tempUnit,
+                cacheKey, cached, fetchCurrentWeather, fetchForecast, callback);
+
+        //Current weather and forecast are independent of each other, so both requests are
+        //started at once and joined when the last one comes back
+        if (fetchCurrentWeather) {
+            enqueueCurrentWeather(cityId, language, calls, joiner);
+        }
+        if (fetchForecast) {
+            enqueueForecast(cityId, language, calls, joiner);
+        }
+    }
+
+    private void enqueueCurrentWeather(String cityId, String language, CallGroup calls,
+                                       final WeatherResponseJoiner joiner) {
+        Call<CurrentWeatherResponse> weatherResponseCall
+                = mAccuWeatherInterface.queryCurrentWeather(cityId, mApiKey, language,
+                mRequestProfile.getCurrentConditionsDetails());
+        calls.add(weatherResponseCall);
+
+        Logging.logd("%s", weatherResponseCall.request());
+        weatherResponseCall.enqueue(new Callback<CurrentWeatherResponse>() {
+            @Override
+            public void onResponse(Call<CurrentWeatherResponse> call,
+                                   Response<CurrentWeatherResponse> response) {
+                joiner.setCurrentWeather(getResponseBody("CurrentWeatherResponse", response));
+            }
+
+            @Override
+            public void onFailure(Call<CurrentWeatherResponse> call, Throwable t) {
+                mFailures.increment(Failure.fromThrowable(call, t));
+                Logging.loge("Exception while requesting current weather: " + t);
+                joiner.setCurrentWeather(null);
+            }
+        });
+    }
+
+    private void enqueueForecast(String cityId, String language, CallGroup calls,
+                                 final WeatherResponseJoiner joiner) {
+        //The forecast is stored in metric units and converted when the report is assembled
+        Call<ForecastResponse> forecastResponseCall
+                = mAccuWeatherInterface.queryForecast(FORECAST_DAYS, cityId, mApiKey,
+                language, mRequestProfile.getForecastDetails(), true);
+        calls.add(forecastResponseCall);
+
+        Logging.logd("%s", forecastResponseCall.request());
+        forecastResponseCall.enqueue(new Callback<ForecastResponse>() {
+            @Override
+            public void onResponse(Call<ForecastResponse> call,
+                                   Response<ForecastResponse> response) {
+                joiner.setForecast(getResponseBody("ForecastResponse", response));
+            }
+
+            @Override
+            public void onFailure(Call<ForecastResponse> call, Throwable t) {
+                //this is an error we can live with
+                mFailures.increment(Failure.fromThrowable(call, t));
+                Logging.loge("Exception while requesting forecast " + t);
+                joiner.setForecast(null);
+            }
+        });
+    }
+
+    /**
+     * Looks up the city of the position upstream. This call does not block, the result is
+     * delivered to the callback on a network thread
+     */
+    public void lookupCityAsync(double latitude, double longitude, String language,
+                                CallGroup calls, final CityCallback callback) {
+        String latLong = String.format(Locale.ROOT, "%f,%f", latitude, longitude);
+        // First determine the City code for this location
+        Call<CityInfoResponse> cityLookupCall = mAccuWeatherInterface.lookupCity(mApiKey,
+                latLong, language, mRequestProfile.getLookupDetails(), TOPLEVEL);
+        calls.add(cityLookupCall);
+        Logging.logd("%s", cityLookupCall.request());
+        cityLookupCall.enqueue(new Callback<CityInfoResponse>() {
+            @Override
+            public void onResponse(Call<CityInfoResponse> call,
+                                   Response<CityInfoResponse> response) {
+                callback.onCityReceived(getResponseBody("CurrentCityResponse", response));
+            }
+
+            @Override
+            public void onFailure(Call<CityInfoResponse> call, Throwable t) {
+                mFailures.increment(Failure.fromThrowable(call, t));
+                Logging.loge("Exception while requesting the current city: " + t);
+                callback.onCityReceived(null);
+            }
+        });
+    }
+
+    /**
+     * Answers the city lookup from the results of previous lookups kept in memory, without any
+     * I/O
+     * @return The cities or null if the lookup can't be answered from memory
+     */
+    public List<CityInfoResponse> lookupCityInMemory(String cityName, String language) {
+        return mCityIndex.get(language, cityName);
+    }
+
+    /**
+     * Answers the city lookup from the results of previous lookups or the {@link CitySearch} if
+     * possible and asks upstream otherwise. This is a synchronous call
+     * @return The cities, an empty list if none were found or the lookup failed
+     */
+    public List<CityInfoResponse> lookupCity(String cityName, String language,
+                                             CallGroup calls) {
+        List<CityInfoResponse> cities = mCityIndex.get(language, cityName);
+        if (cities != null) {
+            mCacheEvents.increment(CacheEvent.CITY_LOOKUP_HIT);
+            Logging.logd("Answering city lookup for %s from the index", cityName);
+            return cities;
+        }
+        if (mCitySearch != null) {
+            cities = mCitySearch.search(cityName, language);
+            if (!cities.isEmpty()) {
+                mCacheEvents.increment(CacheEvent.CITY_LOOKUP_HIT);
+                Logging.logd("Answering city lookup for %s from the city index", cityName);
+                return cities;
+            }
+        }
+        mCacheEvents.increment(CacheEvent.CITY_LOOKUP_MISS);
+
+        Call<List<CityInfoResponse>> lookupCityCall = mAccuWeatherInterface.lookupCity(mApiKey,
+                cityName, language, mRequestProfile.getLookupDetails());
+        calls.add(lookupCityCall);
+
+        Response<List<CityInfoResponse>> lookupResponse;
+        try {
+            Logging.logd("%s", lookupCityCall.request());
+            lookupResponse = lookupCityCall.execute();
+            Logging.logd("LookupCityResponse: %s", lookupResponse.raw());
+            Logging.trace("response", "LookupCityResponse", lookupResponse.code());
+            onResponse(lookupResponse);
+            if(!lookupResponse.isSuccessful()) {
+                mFailures.increment(Failure.fromResponse(lookupResponse));
+                Logging.loge("Unsuccessful LookupCityResponse: " + lookupResponse.message());
+                return new ArrayList<>();
+            }
+        } catch (IOException | JsonParseException e) {
+            mFailures.increment(Failure.fromThrowable(lookupCityCall, e));
+            Logging.loge("IOException while looking up city name " + e);
+            //Return empty list to prevent NPE
+            return new ArrayList<>();
+        }
+
+        mCityIndex.put(language, cityName, lookupResponse.body());
+        return lookupResponse.body();
+    }
+
+    private WeatherReport processCachedWeather(String cityName, WeatherCache.Entry cached,
+                                               TemperatureUnit tempUnit) {
+        final ForecastResponse forecast = cached.isForecastUsable(System.currentTimeMillis(),
+                mCacheMaxStale) ? cached.getForecast() : null;
+        //Prefer the name the caller knows the location by
+        return WeatherReportAssembler.assemble(cityName != null ? cityName
+                : cached.getCityName(), cached.getCurrentWeather(), forecast, tempUnit);
+    }
+
+    private <T> T getResponseBody(String name, Response<T> response) {
+        Logging.logd("%s: %s", name, response.raw());
+        Logging.trace("response", name, response.code());
+        onResponse(response);
+        if (!response.isSuccessful()) {
+            mFailures.increment(Failure.fromResponse(response));
+            Logging.loge("Unsuccessful " + name + ": " + response.message());
+            return null;
+        }
+        return response.body();
+    }
+
+    private void onResponse(Response<?> response) {
+        if (mResponseListener != null) {
+            mResponseListener.onResponse(response);
+        }
+    }
+
+    /**
+     * Prints the cache statistics, the upstream failures and the transfer metrics of each
+     * endpoint
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Cache:");
+        mCacheEvents.dump(pw, "  ");
+        mWeatherCache.dump(pw);
+        pw.println("Upstream failures:");
+        mFailures.dump(pw, "  ");
+        pw.println("  Retries: " + mRetryInterceptor.getRetries() + ", hedged requests: "
+                + (mHedgingInterceptor != null ? mHedgingInterceptor.getHedges() : "disabled"));
+        pw.println("Circuit breaker:");
+        mCircuitBreaker.dump(pw);
+        pw.println("Transfers:");
+        mTransferMetrics.dump(pw);
+    }
+
+    /**
+     * Collects the current weather and the forecast responses, which arrive in any order, and
+     * processes them once all requested ones are available. Components which were not requested
+     * or could not be fetched are taken from the cached entry
+     */
+    private final class WeatherResponseJoiner {
+        private final String mCityName;
+        private final TemperatureUnit mTempUnit;
+        private final String mCacheKey;
+        private final WeatherCache.Entry mCached;
+        private final boolean mFetchCurrentWeather;
+        private final boolean mFetchForecast;
+        private final WeatherCallback mCallback;
+        private final AtomicInteger mPendingResponses;
+        private volatile CurrentWeatherResponse mCurrentWeatherResponse;
+        private volatile ForecastResponse mForecastResponse;
+
+        /**
+         * @param cached The cached entry of the location, may be null if both components are
+         *               fetched
+         */
+        WeatherResponseJoiner(String cityName, TemperatureUnit tempUnit, String cacheKey,
+                              WeatherCache.Entry cached, boolean fetchCurrentWeather,
+                              boolean fetchForecast, WeatherCallback callback) {
+            mCityName = cityName;
+            mTempUnit = tempUnit;
+            mCacheKey = cacheKey;
+            mCached = cached;
+            mFetchCurrentWeather = fetchCurrentWeather;
+            mFetchForecast = fetchForecast;
+            mCallback = callback;
+            mPendingResponses = new AtomicInteger((fetchCurrentWeather ? 1 : 0)
+                    + (fetchForecast ? 1 : 0));
+        }
+
+        void setCurrentWeather(CurrentWeatherResponse currentWeatherResponse) {
+            mCurrentWeatherResponse = currentWeatherResponse;
+            onResponseReceived();
+        }
+
+        void setForecast(ForecastResponse forecastResponse) {
+            mForecastResponse = forecastResponse;
+            onResponseReceived();
+        }
+
+        private void onResponseReceived() {
+            if (mPendingResponses.decrementAndGet() > 0) {
+                return;
+            }
+            //The callback must always be called, or the caller waits for the weather forever
+            WeatherReport report = null;
+            try {
+                report = joinResponses();
+            } catch (RuntimeException e) {
+                Logging.loge("Unable to process the weather: " + e);
+            }
+            mCallback.onWeatherReceived(report);
+        }
+
+        private WeatherReport joinResponses() {
+            final long now = System.currentTimeMillis();
+
+            CurrentWeatherResponse currentWeather = mCurrentWeatherResponse;
+            long currentWeatherTimestamp = now;
+            long currentWeatherTtl = mCacheTtl;
+            if (!mFetchCurrentWeather && mCached != null) {
+                currentWeather = mCached.getCurrentWeather();
+                currentWeatherTimestamp = mCached.getCurrentWeatherTimestamp();
+                currentWeatherTtl = mCached.getCurrentWeatherTtl();
+            }
+
+            //A failed forecast is an error we can live with, fall back to the cached one
+            ForecastResponse forecast = mForecastResponse;
+            long forecastTimestamp = now;
+            long forecastTtl = mForecastCacheTtl;
+            if (forecast == null) {
+                if (mCached != null && mCached.isForecastUsable(now, mCacheMaxStale)) {
+                    forecast = mCached.getForecast();
+                    forecastTimestamp = mCached.getForecastTimestamp();
+                    forecastTtl = mCached.getForecastTtl();
+                } else {
+                    forecastTimestamp = 0;
+                    forecastTtl = 0;
+                }
+            }
+
+            //We can return a valid report without the forecast but not without the current
+            //weather
+            WeatherReport report = null;
+            if (currentWeather != null) {
+                report = WeatherReportAssembler.assemble(mCityName, currentWeather, forecast,
+                        mTempUnit);
+            }
+            if (report != null
+                    && (mCurrentWeatherResponse != null || mForecastResponse != null)) {
+                mWeatherCache.put(mCacheKey, new WeatherCache.Entry(mCityName, currentWeather,
+                        currentWeatherTimestamp, currentWeatherTtl, forecast, forecastTimestamp,
+                        forecastTtl));
+            }
+            return report;
+        }
+    }
+
+    private enum CacheEvent {
+        WEATHER_HIT,
+        WEATHER_STALE_HIT,
+        //Only one of current conditions and forecast had to be fetched
+        WEATHER_PARTIAL_HIT,
+        WEATHER_MISS,
+        CITY_LOOKUP_HIT,
+        CITY_LOOKUP_MISS
+    }
+
+    /**
+     * The causes of failed upstream calls
+     */
+    private enum Failure {
+        INVALID_API_KEY,
+        QUOTA_EXCEEDED,
+        SERVER_ERROR,
+        CLIENT_ERROR,
+        NETWORK,
+        MALFORMED_RESPONSE,
+        CANCELLED,
+        //Not sent upstream because the circuit breaker is open
+        SUSPENDED;
+
+        static Failure fromResponse(Response<?> response) {
+            switch (UpstreamError.fromStatusCode(response.code())) {
+                case INVALID_API_KEY:
+                    return INVALID_API_KEY;
+                case QUOTA_EXCEEDED:
+                    return QUOTA_EXCEEDED;
+                case TRANSIENT:
+                    return SERVER_ERROR;
+                default:
+                    return CLIENT_ERROR;
+            }
+        }
+
+        static Failure fromThrowable(Call<?> call, Throwable t) {
+            if (call.isCanceled()) {
+                return CANCELLED;
+            }
+            if (t instanceof CircuitOpenException) {
+                return SUSPENDED;
+            }
+            return t instanceof JsonParseException ? MALFORMED_RESPONSE : NETWORK;
+        }
+    }
+
+    /**
+     * Configures the HTTP client and the caches. The defaults are the ones the provider ships
+     * with
+     */
+    public static final class Builder {
+        private final String mBaseUrl;
+        private final WeatherCache mWeatherCache;
+        private final HttpTransport.Builder mHttpTransport = new HttpTransport.Builder()
+                .setTimeouts(10, 15, TimeUnit.SECONDS)
+                .setConnectionPool(2, 15, TimeUnit.MINUTES)
+                .setMaxRequestsPerHost(8)
+                //AccuWeather updates the current conditions about once an hour and the daily
+                //forecast a few times a day, the location metadata basically never changes
+                .setMinMaxAge("/currentconditions/", 10, TimeUnit.MINUTES)
+                .setMinMaxAge("/forecasts/", 1, TimeUnit.HOURS)
+                .setMinMaxAge("/locations/", 1, TimeUnit.DAYS);
+        private final TransferMetrics mTransferMetrics = new TransferMetrics();
+        private final CancelledRequests mCancelledRequests = new CancelledRequests();
+        private CircuitBreakerInterceptor mCircuitBreaker = new CircuitBreakerInterceptor(5,
+                TimeUnit.SECONDS.toMillis(30), TimeUnit.MINUTES.toMillis(30),
+                TimeUnit.MINUTES.toMillis(60), TimeUnit.MILLISECONDS, mCancelledRequests);
+        private RetryInterceptor mRetryInterceptor = new RetryInterceptor(3, 250, 2000,
+                TimeUnit.MILLISECONDS, mCancelledRequests);
+        private HedgingInterceptor mHedgingInterceptor;
+        private RequestProfile mRequestProfile = RequestProfile.STANDARD;
+        private CityPrefixIndex mCityIndex = new CityPrefixIndex(32,
+                TimeUnit.MINUTES.toMillis(60), 25);
+        private CitySearch mCitySearch;
+        private ResponseListener mResponseListener;
+        private long mCacheTtl = TimeUnit.MINUTES.toMillis(30);
+        private long mForecastCacheTtl = TimeUnit.MINUTES.toMillis(360);
+        private long mCacheMaxStale = TimeUnit.MINUTES.toMillis(120);
+        private boolean mStaleWhileRevalidate = true;
+
+        /**
+         * @param baseUrl The URL of the AccuWeather API or of a server serving its endpoints
+         * @param weatherCache Keeps the fetched weather
+         */
+        public Builder(String baseUrl, WeatherCache weatherCache) {
+            mBaseUrl = baseUrl;
+            mWeatherCache = weatherCache;
+        }
+
+        /**
+         * @param cacheDir The directory of the HTTP cache
+         * @param cacheSize The maximum size of the HTTP cache in bytes, 0 disables the cache
+         */
+        public Builder setHttpCache(File cacheDir, long cacheSize) {
+            mHttpTransport.setCache(cacheDir, cacheSize);
+            return this;
+        }
+
+        public Builder setTimeouts(long connectTimeout, long readTimeout, TimeUnit unit) {
+            mHttpTransport.setTimeouts(connectTimeout, readTimeout, unit);
+            return this;
+        }
+
+        /**
+         * @param maxIdleConnections The number of idle connections kept open
+         * @param keepAlive How long an idle connection is kept open
+         */
+        public Builder setConnectionPool(int maxIdleConnections, long keepAlive,
+                                         TimeUnit unit) {
+            mHttpTransport.setConnectionPool(maxIdleConnections, keepAlive, unit);
+            return this;
+        }
+
+        /**
+         * @param maxRequestsPerHost The number of asynchronous calls executed at once, the
+         *                           others are queued
+         */
+        public Builder setMaxRequestsPerHost(int maxRequestsPerHost) {
+            mHttpTransport.setMaxRequestsPerHost(maxRequestsPerHost);
+            return this;
+        }
+
+        /**
+         * @param maxAttempts The number of attempts of a call that fails transiently
+         * @param baseDelay The delay before the first retry, it doubles with every retry
+         * @param maxDelay The maximum delay between two attempts
+         */
+        public Builder setRetries(int maxAttempts, long baseDelay, long maxDelay,
+                                  TimeUnit unit) {
+            mRetryInterceptor = new RetryInterceptor(maxAttempts, baseDelay, maxDelay, unit,
+                    mCancelledRequests);
+            return this;
+        }
+
+        /**
+         * @param failureThreshold The number of transient failures in a row opening the circuit
+         * @param failureCooldown How long the circuit stays open after transient failures
+         * @param quotaCooldown How long the circuit stays open once the quota is exhausted
+         * @param invalidKeyCooldown How long the circuit stays open once the API key was
+         *                           rejected, unless the key is changed before
+         */
+        public Builder setCircuitBreaker(int failureThreshold, long failureCooldown,
+                                         long quotaCooldown, long invalidKeyCooldown,
+                                         TimeUnit unit) {
+            mCircuitBreaker = new CircuitBreakerInterceptor(failureThreshold, failureCooldown,
+                    quotaCooldown, invalidKeyCooldown, unit, mCancelledRequests);
+            return this;
+        }
+
+        /**
+         * @param delay How long a call may take before a copy of it is sent, 0 disables hedging
+         */
+        public Builder setHedgeDelay(long delay, TimeUnit unit) {
+            mHedgingInterceptor = delay > 0
+                    ? new HedgingInterceptor(delay, unit, mCancelledRequests) : null;
+            return this;
+        }
+
+        public Builder setRequestProfile(RequestProfile requestProfile) {
+            mRequestProfile = requestProfile;
+            return this;
+        }
+
+        /**
+         * @param cityIndex Keeps the results of the city lookups
+         */
+        public Builder setCityIndex(CityPrefixIndex cityIndex) {
+            mCityIndex = cityIndex;
+            return this;
+        }
+
+        public Builder setCitySearch(CitySearch citySearch) {
+            mCitySearch = citySearch;
+            return this;
+        }
+
+        public Builder setResponseListener(ResponseListener responseListener) {
+            mResponseListener = responseListener;
+            return this;
+        }
+
+        /**
+         * @param currentWeatherTtl How long fetched current conditions are fresh
+         * @param forecastTtl How long a fetched forecast is fresh
+         * @param maxStale How long expired weather may still be served
+         */
+        public Builder setCacheTtls(long currentWeatherTtl, long forecastTtl, long maxStale,
+                                    TimeUnit unit) {
+            mCacheTtl = unit.toMillis(currentWeatherTtl);
+            mForecastCacheTtl = unit.toMillis(forecastTtl);
+            mCacheMaxStale = unit.toMillis(maxStale);
+            return this;
+        }
+
+        /**
+         * @param staleWhileRevalidate Answers with expired weather that is still usable right
+         *                             away and refreshes it in the background
+         */
+        public Builder setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+            mStaleWhileRevalidate = staleWhileRevalidate;
+            return this;
+        }
+
+        public WeatherFetcher build() {
+            return new WeatherFetcher(this);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+/**
+ * The weather of a location assembled from the AccuWeather responses, independent of any
+ * platform type. Values which are not known are NaN
+ */
+public final class WeatherReport {
+    private final String mCityName;
+    private final double mTemperature;
+    private final TemperatureUnit mTemperatureUnit;
+    private final long mTimestamp;
+    private final Condition mCondition;
+    private final double mHumidity;
+    private final double mWindSpeed;
+    private final double mWindDirection;
+    private final SpeedUnit mWindSpeedUnit;
+    private final double mTodaysHigh;
+    private final double mTodaysLow;
+    private final List<DayForecast> mForecasts;
+
+    private WeatherReport(Builder builder) {
+        mCityName = builder.mCityName;
+        mTemperature = builder.mTemperature;
+        mTemperatureUnit = builder.mTemperatureUnit;
+        mTimestamp = builder.mTimestamp;
+        mCondition = builder.mCondition;
+        mHumidity = builder.mHumidity;
+        mWindSpeed = builder.mWindSpeed;
+        mWindDirection = builder.mWindDirection;
+        mWindSpeedUnit = builder.mWindSpeedUnit;
+        mTodaysHigh = builder.mTodaysHigh;
+        mTodaysLow = builder.mTodaysLow;
+        mForecasts = Collections.unmodifiableList(new ArrayList<>(builder.mForecasts));
+    }
+
+    public String getCityName() {
+        return mCityName;
+    }
+
+    public double getTemperature() {
+        return mTemperature;
+    }
+
+    public TemperatureUnit getTemperatureUnit() {
+        return mTemperatureUnit;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public Condition getCondition() {
+        return mCondition;
+    }
+
+    public double getHumidity() {
+        return mHumidity;
+    }
+
+    public double getWindSpeed() {
+        return mWindSpeed;
+    }
+
+    public double getWindDirection() {
+        return mWindDirection;
+    }
+
+    public SpeedUnit getWindSpeedUnit() {
+        return mWindSpeedUnit;
+    }
+
+    public double getTodaysHigh() {
+        return mTodaysHigh;
+    }
+
+    public double getTodaysLow() {
+        return mTodaysLow;
+    }
+
+    /**
+     * @return The daily forecasts starting with the current day, empty if there is no forecast
+     */
+    public List<DayForecast> getForecasts() {
+        return mForecasts;
+    }
+
+    public static final class Builder {
+        private final String mCityName;
+        private final double mTemperature;
+        private final TemperatureUnit mTemperatureUnit;
+        private long mTimestamp;
+        private Condition mCondition = Condition.NOT_AVAILABLE;
+        private double mHumidity = Double.NaN;
+        private double mWindSpeed = Double.NaN;
+        private double mWindDirection = Double.NaN;
+        private SpeedUnit mWindSpeedUnit = SpeedUnit.KPH;
+        private double mTodaysHigh = Double.NaN;
+        private double mTodaysLow = Double.NaN;
+        private List<DayForecast> mForecasts = Collections.emptyList();
+
+        public Builder(String cityName, double temperature, TemperatureUnit temperatureUnit) {
+            mCityName = cityName;
+            mTemperature = temperature;
+            mTemperatureUnit = temperatureUnit;
+        }
+
+        public Builder setTimestamp(long timestamp) {
+            mTimestamp = timestamp;
+            return this;
+        }
+
+        public Builder setCondition(Condition condition) {
+            mCondition = condition;
+            return this;
+        }
+
+        public Builder setHumidity(double humidity) {
+            mHumidity = humidity;
+            return this;
+        }
+
+        public Builder setWind(double speed, double direction, SpeedUnit unit) {
+            mWindSpeed = speed;
+            mWindDirection = direction;
+            mWindSpeedUnit = unit;
+            return this;
+        }
+
+        public Builder setTodaysHigh(double high) {
+            mTodaysHigh = high;
+            return this;
+        }
+
+        public Builder setTodaysLow(double low) {
+            mTodaysLow = low;
+            return this;
+        }
+
+        public Builder setForecasts(List<DayForecast> forecasts) {
+            mForecasts = forecasts;
+            return this;
+        }
+
+        public WeatherReport build() {
+            return new WeatherReport(this);
+        }
+    }
+
+    public static final class DayForecast {
+        private final Condition mCondition;
+        private final double mHigh;
+        private final double mLow;
+
+        public DayForecast(Condition condition, double high, double low) {
+            mCondition = condition;
+            mHigh = high;
+            mLow = low;
+        }
+
+        public Condition getCondition() {
+            return mCondition;
+        }
+
+        public double getHigh() {
+            return mHigh;
+        }
+
+        public double getLow() {
+            return mLow;
+        }
+    }
+}
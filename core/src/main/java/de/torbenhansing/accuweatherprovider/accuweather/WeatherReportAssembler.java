@@ -0,0 +1,69 @@
+package de.torbenhansing.accuweatherprovider.accuweather;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+/**
+ * Assembles a {@link WeatherReport} from the current conditions and the daily forecast
+ */
+public class WeatherReportAssembler {
+    // we always get the KM/H unit for the wind. The app will make the calculations
+    private static final SpeedUnit WIND_UNIT = SpeedUnit.KPH;
+
+    private WeatherReportAssembler() {
+    }
+
+    /**
+     * @param forecastResponse The forecast, may be null. The report won't have any forecast in
+     *                         that case
+     * @return The report or null if the city name or the current temperature is missing
+     */
+    public static WeatherReport assemble(String cityName,
+                                         CurrentWeatherResponse currentWeatherResponse,
+                                         ForecastResponse forecastResponse,
+                                         TemperatureUnit tempUnit) {
+
+        final double temperature = currentWeatherResponse.getTemperature(tempUnit);
+        //We need at least the city name and current temperature
+        if (cityName == null || Double.isNaN(temperature)) return null;
+
+        WeatherReport.Builder builder = new WeatherReport.Builder(cityName, temperature, tempUnit)
+                .setTimestamp(currentWeatherResponse.getEpochTime());
+
+        builder.setCondition(Condition.fromIcon(currentWeatherResponse.getWeatherIconId()));
+
+        final double humidity = currentWeatherResponse.getHumidity();
+        if (!Double.isNaN(humidity)) {
+            builder.setHumidity(humidity);
+        }
+
+        final double windDir = currentWeatherResponse.getWindDirection();
+        final double windSpeed = currentWeatherResponse.getWindSpeed(WIND_UNIT);
+        if (!Double.isNaN(windDir) && !Double.isNaN(windSpeed)) {
+            builder.setWind(windSpeed, windDir, WIND_UNIT);
+        }
+
+        if (forecastResponse == null || forecastResponse.getForecastList().isEmpty()) {
+            return builder.build();
+        }
+
+        // The first forecast is the current day
+        final ForecastResponse.DailyForecast today = forecastResponse.getForecastList().get(0);
+        builder.setTodaysHigh(today.getMaxTemp(tempUnit));
+        builder.setTodaysLow(today.getMinTemp(tempUnit));
+
+        List<WeatherReport.DayForecast> forecastList = new ArrayList<>();
+        for (ForecastResponse.DailyForecast forecast : forecastResponse.getForecastList()) {
+            forecastList.add(new WeatherReport.DayForecast(
+                    Condition.fromIcon(forecast.getWeatherIconId()),
+                    forecast.getMaxTemp(tempUnit), forecast.getMinTemp(tempUnit)));
+        }
+        builder.setForecasts(forecastList);
+        return builder.build();
+    }
+}
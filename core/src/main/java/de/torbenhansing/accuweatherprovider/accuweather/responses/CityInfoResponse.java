@@ -0,0 +1,206 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+@JsonAdapter(CityInfoResponse.Adapter.class)
+public class CityInfoResponse {
+    private String mKey = "";
+    private String mLocalizedName = "";
+    private String mCountryId = "";
+    private String mCountryName = "";
+    private String mPostalCode = "";
+    private String mState = "";
+    private double mLatitude = Double.NaN;
+    private double mLongitude = Double.NaN;
+
+    private CityInfoResponse() {
+    }
+
+    public CityInfoResponse(String key, String localizedName, String countryId,
+                            String countryName, String postalCode, String state,
+                            double latitude, double longitude) {
+        mKey = key;
+        mLocalizedName = localizedName;
+        mCountryId = countryId;
+        mCountryName = countryName;
+        mPostalCode = postalCode;
+        mState = state;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    public String getCityId() {
+        return mKey;
+    }
+
+    public String getCityName() {
+        return mLocalizedName;
+    }
+
+    public String getPostalCode() {
+        return mPostalCode;
+    }
+
+    public String getState() {
+        return mState;
+    }
+
+    public String getCountryId() {
+        return mCountryId;
+    }
+
+    public String getCountryName() {
+        return mCountryName;
+    }
+
+    /**
+     * @return The latitude of the city centre, NaN if unknown
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * @return The longitude of the city centre, NaN if unknown
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Streaming adapter which only pulls the fields we consume and skips everything else
+     */
+    public static final class Adapter extends TypeAdapter<CityInfoResponse> {
+
+        @Override
+        public CityInfoResponse read(JsonReader in) throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return null;
+            }
+            CityInfoResponse response = new CityInfoResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Key":
+                        response.mKey = JsonValues.nextString(in);
+                        break;
+                    case "LocalizedName":
+                        response.mLocalizedName = JsonValues.nextString(in);
+                        break;
+                    case "PrimaryPostalCode":
+                        response.mPostalCode = JsonValues.nextString(in);
+                        break;
+                    case "Country":
+                        readCountry(in, response);
+                        break;
+                    case "AdministrativeArea":
+                        response.mState = readLocalizedName(in);
+                        break;
+                    case "GeoPosition":
+                        readGeoPosition(in, response);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return response;
+        }
+
+        private static void readCountry(JsonReader in, CityInfoResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "ID":
+                        response.mCountryId = JsonValues.nextString(in);
+                        break;
+                    case "LocalizedName":
+                        response.mCountryName = JsonValues.nextString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static void readGeoPosition(JsonReader in, CityInfoResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Latitude":
+                        response.mLatitude = JsonValues.nextDouble(in);
+                        break;
+                    case "Longitude":
+                        response.mLongitude = JsonValues.nextDouble(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static String readLocalizedName(JsonReader in) throws IOException {
+            String name = "";
+            if (JsonValues.skipNull(in)) {
+                return name;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("LocalizedName".equals(in.nextName())) {
+                    name = JsonValues.nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return name;
+        }
+
+        /**
+         * Writes the consumed fields in the layout of the AccuWeather API
+         */
+        @Override
+        public void write(JsonWriter out, CityInfoResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("Key").value(response.mKey);
+            out.name("LocalizedName").value(response.mLocalizedName);
+            out.name("PrimaryPostalCode").value(response.mPostalCode);
+            out.name("Country").beginObject()
+                    .name("ID").value(response.mCountryId)
+                    .name("LocalizedName").value(response.mCountryName)
+                    .endObject();
+            out.name("AdministrativeArea").beginObject()
+                    .name("LocalizedName").value(response.mState)
+                    .endObject();
+            if (!Double.isNaN(response.mLatitude) && !Double.isNaN(response.mLongitude)) {
+                out.name("GeoPosition").beginObject()
+                        .name("Latitude").value(response.mLatitude)
+                        .name("Longitude").value(response.mLongitude)
+                        .endObject();
+            }
+            out.endObject();
+        }
+    }
+}
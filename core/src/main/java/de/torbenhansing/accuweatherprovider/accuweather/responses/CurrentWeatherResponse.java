@@ -0,0 +1,246 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+import de.torbenhansing.accuweatherprovider.utils.Units;
+
+/**
+ * The current conditions of a location. Temperature and wind speed are only kept in their metric
+ * form and converted on access, so the same response serves every unit setting
+ */
+@JsonAdapter(CurrentWeatherResponse.Adapter.class)
+public class CurrentWeatherResponse {
+    private long mEpochTime = -1L;
+    private int mWeatherIcon = 0;
+    private double mTemperatureMetric = Double.NaN;
+    private long mRelativeHumidity = -1;
+    private double mWindDirection = Double.NaN;
+    private double mWindSpeedMetric = Double.NaN;
+
+    private CurrentWeatherResponse() {
+    }
+
+    /**
+     * Restores a response encoded by {@link WeatherSnapshot}
+     */
+    CurrentWeatherResponse(long epochTime, int weatherIcon, double temperatureMetric,
+                           long relativeHumidity, double windDirection, double windSpeedMetric) {
+        mEpochTime = epochTime;
+        mWeatherIcon = weatherIcon;
+        mTemperatureMetric = temperatureMetric;
+        mRelativeHumidity = relativeHumidity;
+        mWindDirection = windDirection;
+        mWindSpeedMetric = windSpeedMetric;
+    }
+
+    public long getEpochTime() {
+        return mEpochTime;
+    }
+
+    public int getWeatherIconId() {
+        return mWeatherIcon;
+    }
+
+    public double getTemperature(TemperatureUnit tempUnit) {
+        if(tempUnit == TemperatureUnit.CELSIUS) {
+            return mTemperatureMetric;
+        } else {
+            return Units.celsiusToFahrenheit(mTemperatureMetric);
+        }
+    }
+
+    /**
+     * @return The relative humidity as a fraction, NaN if unknown
+     */
+    public double getHumidity() {
+        if (mRelativeHumidity < 0) {
+            return Double.NaN;
+        }
+        return mRelativeHumidity / 100d;
+    }
+
+    /**
+     * @return The relative humidity in percent as sent by the API, -1 if unknown
+     */
+    long getRelativeHumidity() {
+        return mRelativeHumidity;
+    }
+
+    public double getWindSpeed(SpeedUnit windUnit) {
+        if (windUnit == SpeedUnit.KPH) {
+            return mWindSpeedMetric;
+        } else {
+            return Units.kphToMph(mWindSpeedMetric);
+        }
+    }
+
+    public double getWindDirection() {
+        return mWindDirection;
+    }
+
+    /**
+     * Streaming adapter which only pulls the fields we consume and skips everything else
+     */
+    public static final class Adapter extends TypeAdapter<CurrentWeatherResponse> {
+
+        @Override
+        public CurrentWeatherResponse read(JsonReader in) throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return null;
+            }
+            // The endpoint wraps the current conditions in an array
+            if (in.peek() == JsonToken.BEGIN_ARRAY) {
+                CurrentWeatherResponse response = null;
+                in.beginArray();
+                if (in.hasNext()) {
+                    response = read(in);
+                }
+                while (in.hasNext()) {
+                    in.skipValue();
+                }
+                in.endArray();
+                return response;
+            }
+
+            CurrentWeatherResponse response = new CurrentWeatherResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "EpochTime":
+                        response.mEpochTime = JsonValues.nextLong(in, -1L);
+                        break;
+                    case "WeatherIcon":
+                        response.mWeatherIcon = (int) JsonValues.nextLong(in, 0);
+                        break;
+                    case "Temperature":
+                        readTemperature(in, response);
+                        break;
+                    case "RelativeHumidity":
+                        response.mRelativeHumidity = JsonValues.nextLong(in, -1L);
+                        break;
+                    case "Wind":
+                        readWind(in, response);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return response;
+        }
+
+        private static void readTemperature(JsonReader in, CurrentWeatherResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Metric":
+                        response.mTemperatureMetric = JsonValues.readValue(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static void readWind(JsonReader in, CurrentWeatherResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Direction":
+                        response.mWindDirection = readDegrees(in);
+                        break;
+                    case "Speed":
+                        readWindSpeed(in, response);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static double readDegrees(JsonReader in) throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return Double.NaN;
+            }
+            double degrees = -1;
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("Degrees".equals(in.nextName())) {
+                    degrees = JsonValues.nextLong(in, -1L);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return degrees;
+        }
+
+        private static void readWindSpeed(JsonReader in, CurrentWeatherResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Metric":
+                        response.mWindSpeedMetric = JsonValues.readValue(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        /**
+         * Writes the consumed fields in the layout of the AccuWeather API
+         */
+        @Override
+        public void write(JsonWriter out, CurrentWeatherResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("EpochTime").value(response.mEpochTime);
+            out.name("WeatherIcon").value(response.mWeatherIcon);
+            out.name("Temperature").beginObject();
+            JsonValues.writeValue(out, "Metric", response.mTemperatureMetric);
+            out.endObject();
+            out.name("RelativeHumidity").value(response.mRelativeHumidity);
+            out.name("Wind").beginObject();
+            if (!Double.isNaN(response.mWindDirection)) {
+                out.name("Direction").beginObject()
+                        .name("Degrees").value((long) response.mWindDirection).endObject();
+            }
+            out.name("Speed").beginObject();
+            JsonValues.writeValue(out, "Metric", response.mWindSpeedMetric);
+            out.endObject();
+            out.endObject();
+            out.endObject();
+        }
+    }
+}
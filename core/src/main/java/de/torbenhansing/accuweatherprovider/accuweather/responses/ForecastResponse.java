@@ -0,0 +1,198 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+import de.torbenhansing.accuweatherprovider.utils.Units;
+
+/**
+ * The daily forecast of a location. It is always requested in metric units and converted on
+ * access, so the same response serves every unit setting
+ */
+@JsonAdapter(ForecastResponse.Adapter.class)
+public class ForecastResponse {
+    private List<DailyForecast> mDailyForecasts = null;
+
+    private ForecastResponse() {
+    }
+
+    /**
+     * Restores a response encoded by {@link WeatherSnapshot}
+     */
+    ForecastResponse(List<DailyForecast> dailyForecasts) {
+        mDailyForecasts = dailyForecasts;
+    }
+
+    public static class DailyForecast {
+        private double mMinTemp = Double.NaN;
+        private double mMaxTemp = Double.NaN;
+        private int mIcon = 0;
+
+        private DailyForecast() {
+        }
+
+        DailyForecast(double minTemp, double maxTemp, int icon) {
+            mMinTemp = minTemp;
+            mMaxTemp = maxTemp;
+            mIcon = icon;
+        }
+
+        public int getWeatherIconId() {
+            return mIcon;
+        }
+
+        public double getMaxTemp(TemperatureUnit tempUnit) {
+            return convertTemperature(mMaxTemp, tempUnit);
+        }
+
+        public double getMinTemp(TemperatureUnit tempUnit) {
+            return convertTemperature(mMinTemp, tempUnit);
+        }
+
+        private static double convertTemperature(double celsius, TemperatureUnit tempUnit) {
+            if (tempUnit == TemperatureUnit.CELSIUS) {
+                return celsius;
+            } else {
+                return Units.celsiusToFahrenheit(celsius);
+            }
+        }
+
+    }
+
+    public List<DailyForecast> getForecastList() {
+        return mDailyForecasts != null ? mDailyForecasts : new ArrayList<DailyForecast>();
+    }
+
+    /**
+     * Streaming adapter which only pulls the fields we consume and skips everything else
+     */
+    public static final class Adapter extends TypeAdapter<ForecastResponse> {
+
+        @Override
+        public ForecastResponse read(JsonReader in) throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return null;
+            }
+            ForecastResponse response = new ForecastResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "DailyForecasts":
+                        readDailyForecasts(in, response);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return response;
+        }
+
+        private static void readDailyForecasts(JsonReader in, ForecastResponse response)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            response.mDailyForecasts = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                response.mDailyForecasts.add(readDailyForecast(in));
+            }
+            in.endArray();
+        }
+
+        private static DailyForecast readDailyForecast(JsonReader in) throws IOException {
+            DailyForecast forecast = new DailyForecast();
+            if (JsonValues.skipNull(in)) {
+                return forecast;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Temperature":
+                        readTemperature(in, forecast);
+                        break;
+                    case "Day":
+                        forecast.mIcon = readIcon(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return forecast;
+        }
+
+        private static void readTemperature(JsonReader in, DailyForecast forecast)
+                throws IOException {
+            if (JsonValues.skipNull(in)) {
+                return;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Minimum":
+                        forecast.mMinTemp = JsonValues.readValue(in);
+                        break;
+                    case "Maximum":
+                        forecast.mMaxTemp = JsonValues.readValue(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+        }
+
+        private static int readIcon(JsonReader in) throws IOException {
+            int icon = 0;
+            if (JsonValues.skipNull(in)) {
+                return icon;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                if ("Icon".equals(in.nextName())) {
+                    icon = (int) JsonValues.nextLong(in, 0);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return icon;
+        }
+
+        /**
+         * Writes the consumed fields in the layout of the AccuWeather API
+         */
+        @Override
+        public void write(JsonWriter out, ForecastResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("DailyForecasts").beginArray();
+            for (DailyForecast forecast : response.getForecastList()) {
+                out.beginObject();
+                out.name("Temperature").beginObject();
+                JsonValues.writeValue(out, "Minimum", forecast.mMinTemp);
+                JsonValues.writeValue(out, "Maximum", forecast.mMaxTemp);
+                out.endObject();
+                out.name("Day").beginObject().name("Icon").value(forecast.mIcon).endObject();
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Helpers shared by the streaming adapters of the responses
+ */
+final class JsonValues {
+
+    private JsonValues() {
+    }
+
+    /**
+     * @return The next number or NaN if the value is null
+     */
+    static double nextDouble(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return Double.NaN;
+        }
+        return in.nextDouble();
+    }
+
+    /**
+     * @return The next number or the fallback if the value is null
+     */
+    static long nextLong(JsonReader in, long fallback) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return fallback;
+        }
+        return in.nextLong();
+    }
+
+    /**
+     * @return The next string or an empty string if the value is null
+     */
+    static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return "";
+        }
+        return in.nextString();
+    }
+
+    /**
+     * @return true if the next value is null, which is consumed in that case
+     */
+    static boolean skipNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the Value field of an object like {"Value": 12.3, "Unit": "C", "UnitType": 17}
+     * @return The value or NaN if it is missing
+     */
+    static double readValue(JsonReader in) throws IOException {
+        double value = Double.NaN;
+        if (skipNull(in)) {
+            return value;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("Value".equals(in.nextName())) {
+                value = nextDouble(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return value;
+    }
+
+    /**
+     * Writes an object like {"Value": 12.3}, which is left out if the value is NaN
+     */
+    static void writeValue(JsonWriter out, String name, double value) throws IOException {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        out.name(name).beginObject().name("Value").value(value).endObject();
+    }
+}
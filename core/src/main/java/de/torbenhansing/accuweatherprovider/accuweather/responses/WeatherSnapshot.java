@@ -0,0 +1,278 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+/**
+ * Compact binary form of the cached weather of one location: its key, the city name, the
+ * current conditions, the daily forecast and when each of them was fetched. A snapshot is a
+ * fixed-size header followed by the forecast days and the strings:
+ * <pre>
+ *  0 int    magic
+ *  4 byte   version
+ *  5 byte   flags, which of the responses are present
+ *  6 short  header size, the offset of the forecast days
+ *  8 long   current weather timestamp
+ * 16 long   current weather ttl
+ * 24 long   forecast timestamp
+ * 32 long   forecast ttl
+ * 40 long   epoch time of the current conditions
+ * 48 double temperature in degrees Celsius
+ * 56 double wind speed in km/h
+ * 64 double wind direction in degrees
+ * 72 short  weather icon
+ * 74 short  relative humidity in percent
+ * 76 short  number of forecast days
+ * 78 short  length of the key in bytes
+ * 80 short  length of the city name in bytes
+ * </pre>
+ * Each forecast day takes 18 bytes: the minimum and the maximum temperature in degrees Celsius
+ * and the icon. The key and the city name are stored in UTF-8 after the days. All numbers are
+ * big-endian, the sizes and counts are unsigned. Fields can be read straight from the buffer
+ * without decoding the snapshot, so checking the age of a snapshot doesn't allocate anything.
+ * <p>
+ * Fields may be appended to the header without changing the version, readers locate the days
+ * through the header size and ignore what they don't know. The version is only raised for
+ * changes old readers can't cope with, they reject such snapshots.
+ */
+public final class WeatherSnapshot {
+    private static final int MAGIC = 0x41575353;
+    private static final byte VERSION = 1;
+
+    private static final int FLAG_CURRENT_WEATHER = 1;
+    private static final int FLAG_FORECAST = 1 << 1;
+
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_FLAGS = 5;
+    private static final int OFFSET_HEADER_SIZE = 6;
+    private static final int OFFSET_CURRENT_WEATHER_TIMESTAMP = 8;
+    private static final int OFFSET_CURRENT_WEATHER_TTL = 16;
+    private static final int OFFSET_FORECAST_TIMESTAMP = 24;
+    private static final int OFFSET_FORECAST_TTL = 32;
+    private static final int OFFSET_EPOCH_TIME = 40;
+    private static final int OFFSET_TEMPERATURE = 48;
+    private static final int OFFSET_WIND_SPEED = 56;
+    private static final int OFFSET_WIND_DIRECTION = 64;
+    private static final int OFFSET_WEATHER_ICON = 72;
+    private static final int OFFSET_HUMIDITY = 74;
+    private static final int OFFSET_FORECAST_DAYS = 76;
+    private static final int OFFSET_KEY_LENGTH = 78;
+    private static final int OFFSET_CITY_NAME_LENGTH = 80;
+    private static final int HEADER_SIZE = 82;
+    private static final int DAY_SIZE = 18;
+
+    private final ByteBuffer mBuffer;
+    private final int mBase;
+    private final int mHeaderSize;
+
+    private WeatherSnapshot(ByteBuffer buffer, int base, int headerSize) {
+        mBuffer = buffer;
+        mBase = base;
+        mHeaderSize = headerSize;
+    }
+
+    /**
+     * Writes a snapshot at the position of the buffer and advances the position past it
+     * @param key Identifies the location, e.g. the location key and the language
+     * @param currentWeather The current conditions, may be null
+     * @param forecast The forecast, may be null
+     * @throws java.nio.BufferOverflowException If the snapshot doesn't fit into the buffer
+     */
+    public static void encode(ByteBuffer buffer, String key, String cityName,
+                              CurrentWeatherResponse currentWeather, long currentWeatherTimestamp,
+                              long currentWeatherTtl, ForecastResponse forecast,
+                              long forecastTimestamp, long forecastTtl) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] cityNameBytes = cityName != null
+                ? cityName.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final List<ForecastResponse.DailyForecast> days = forecast != null
+                ? forecast.getForecastList() : null;
+        int flags = 0;
+        if (currentWeather != null) {
+            flags |= FLAG_CURRENT_WEATHER;
+        }
+        if (forecast != null) {
+            flags |= FLAG_FORECAST;
+        }
+        buffer.putInt(MAGIC)
+                .put(VERSION)
+                .put((byte) flags)
+                .putShort((short) HEADER_SIZE)
+                .putLong(currentWeatherTimestamp)
+                .putLong(currentWeatherTtl)
+                .putLong(forecastTimestamp)
+                .putLong(forecastTtl);
+        if (currentWeather != null) {
+            buffer.putLong(currentWeather.getEpochTime())
+                    .putDouble(currentWeather.getTemperature(TemperatureUnit.CELSIUS))
+                    .putDouble(currentWeather.getWindSpeed(SpeedUnit.KPH))
+                    .putDouble(currentWeather.getWindDirection())
+                    .putShort((short) currentWeather.getWeatherIconId())
+                    .putShort((short) currentWeather.getRelativeHumidity());
+        } else {
+            buffer.putLong(-1L)
+                    .putDouble(Double.NaN)
+                    .putDouble(Double.NaN)
+                    .putDouble(Double.NaN)
+                    .putShort((short) 0)
+                    .putShort((short) -1);
+        }
+        buffer.putShort((short) (days != null ? days.size() : 0))
+                .putShort((short) keyBytes.length)
+                .putShort((short) cityNameBytes.length);
+        if (days != null) {
+            for (ForecastResponse.DailyForecast day : days) {
+                buffer.putDouble(day.getMinTemp(TemperatureUnit.CELSIUS))
+                        .putDouble(day.getMaxTemp(TemperatureUnit.CELSIUS))
+                        .putShort((short) day.getWeatherIconId());
+            }
+        }
+        buffer.put(keyBytes).put(cityNameBytes);
+    }
+
+    /**
+     * @return The number of bytes {@link #encode} writes for these arguments
+     */
+    public static int getEncodedSize(String key, String cityName, ForecastResponse forecast) {
+        return HEADER_SIZE + (forecast != null ? forecast.getForecastList().size() * DAY_SIZE : 0)
+                + key.getBytes(StandardCharsets.UTF_8).length
+                + (cityName != null ? cityName.getBytes(StandardCharsets.UTF_8).length : 0);
+    }
+
+    /**
+     * Wraps the snapshot at the position of the buffer without copying it. The buffer must not
+     * be modified while the snapshot is in use, its position is left untouched
+     * @return The snapshot or null if the buffer doesn't hold a complete snapshot this version
+     *         can read
+     */
+    public static WeatherSnapshot wrap(ByteBuffer buffer) {
+        final int base = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(base) != MAGIC
+                || buffer.get(base + OFFSET_VERSION) != VERSION) {
+            return null;
+        }
+        final int headerSize = buffer.getShort(base + OFFSET_HEADER_SIZE) & 0xffff;
+        if (headerSize < HEADER_SIZE) {
+            return null;
+        }
+        WeatherSnapshot snapshot = new WeatherSnapshot(buffer, base, headerSize);
+        return buffer.remaining() >= snapshot.getSize() ? snapshot : null;
+    }
+
+    /**
+     * @return The number of bytes the snapshot takes in the buffer
+     */
+    public int getSize() {
+        return getKeyOffset() + getUnsignedShort(OFFSET_KEY_LENGTH)
+                + getUnsignedShort(OFFSET_CITY_NAME_LENGTH);
+    }
+
+    public String getKey() {
+        return getString(getKeyOffset(), getUnsignedShort(OFFSET_KEY_LENGTH));
+    }
+
+    /**
+     * @return true if the key of the snapshot is the given one, without decoding the key
+     */
+    public boolean hasKey(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != getUnsignedShort(OFFSET_KEY_LENGTH)) {
+            return false;
+        }
+        final int offset = mBase + getKeyOffset();
+        for (int i = 0; i < bytes.length; i++) {
+            if (mBuffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getCityName() {
+        return getString(getKeyOffset() + getUnsignedShort(OFFSET_KEY_LENGTH),
+                getUnsignedShort(OFFSET_CITY_NAME_LENGTH));
+    }
+
+    public long getCurrentWeatherTimestamp() {
+        return mBuffer.getLong(mBase + OFFSET_CURRENT_WEATHER_TIMESTAMP);
+    }
+
+    public long getCurrentWeatherTtl() {
+        return mBuffer.getLong(mBase + OFFSET_CURRENT_WEATHER_TTL);
+    }
+
+    public long getForecastTimestamp() {
+        return mBuffer.getLong(mBase + OFFSET_FORECAST_TIMESTAMP);
+    }
+
+    public long getForecastTtl() {
+        return mBuffer.getLong(mBase + OFFSET_FORECAST_TTL);
+    }
+
+    /**
+     * @return The temperature of the current conditions in degrees Celsius, NaN if unknown
+     */
+    public double getTemperature() {
+        return mBuffer.getDouble(mBase + OFFSET_TEMPERATURE);
+    }
+
+    public int getForecastDays() {
+        return getUnsignedShort(OFFSET_FORECAST_DAYS);
+    }
+
+    /**
+     * @return The decoded current conditions or null if the snapshot has none
+     */
+    public CurrentWeatherResponse getCurrentWeather() {
+        if ((mBuffer.get(mBase + OFFSET_FLAGS) & FLAG_CURRENT_WEATHER) == 0) {
+            return null;
+        }
+        return new CurrentWeatherResponse(mBuffer.getLong(mBase + OFFSET_EPOCH_TIME),
+                getShort(OFFSET_WEATHER_ICON),
+                getTemperature(),
+                getShort(OFFSET_HUMIDITY),
+                mBuffer.getDouble(mBase + OFFSET_WIND_DIRECTION),
+                mBuffer.getDouble(mBase + OFFSET_WIND_SPEED));
+    }
+
+    /**
+     * @return The decoded forecast or null if the snapshot has none
+     */
+    public ForecastResponse getForecast() {
+        if ((mBuffer.get(mBase + OFFSET_FLAGS) & FLAG_FORECAST) == 0) {
+            return null;
+        }
+        final int count = getForecastDays();
+        final List<ForecastResponse.DailyForecast> days = new ArrayList<>(count);
+        for (int i = 0, offset = mBase + mHeaderSize; i < count; i++, offset += DAY_SIZE) {
+            days.add(new ForecastResponse.DailyForecast(mBuffer.getDouble(offset),
+                    mBuffer.getDouble(offset + 8), mBuffer.getShort(offset + 16)));
+        }
+        return new ForecastResponse(days);
+    }
+
+    private int getKeyOffset() {
+        return mHeaderSize + getForecastDays() * DAY_SIZE;
+    }
+
+    private int getShort(int offset) {
+        return mBuffer.getShort(mBase + offset);
+    }
+
+    private int getUnsignedShort(int offset) {
+        return mBuffer.getShort(mBase + offset) & 0xffff;
+    }
+
+    private String getString(int offset, int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(mBase + offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,110 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+
+/**
+ * Remembers the results of recent city searches by their query. A query that extends a
+ * remembered one, as it happens while a name is typed, is answered by filtering the remembered
+ * cities by name prefix instead of searching again. The index is bounded and evicts the least
+ * recently used query first.
+ */
+public class CityPrefixIndex {
+    private final long mTtl;
+    private final int mMaxNarrowableResults;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    /**
+     * @param maxEntries The maximum number of queries to remember
+     * @param ttl The time in milliseconds the results of a query are valid
+     * @param maxNarrowableResults Results with at least this many cities might have been
+     *                             truncated upstream, so they only answer their exact query
+     */
+    public CityPrefixIndex(final int maxEntries, long ttl, int maxNarrowableResults) {
+        mTtl = ttl;
+        mMaxNarrowableResults = maxNarrowableResults;
+        mEntries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CityPrefixIndex.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param language The language the city names are expected in
+     * @param query The name the user searched for
+     * @return The cities matching the query, or null if the query can't be answered locally
+     */
+    public synchronized List<CityInfoResponse> get(String language, String query) {
+        final String normalizedQuery = normalize(query);
+        if (normalizedQuery.isEmpty()) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        //Look for the longest remembered query the new one starts with
+        for (int end = normalizedQuery.length(); end > 0; end--) {
+            final String key = buildKey(language, normalizedQuery.substring(0, end));
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.mTimestamp + mTtl < now) {
+                mEntries.remove(key);
+                continue;
+            }
+            if (end == normalizedQuery.length()) {
+                return new ArrayList<>(entry.mCities);
+            }
+            if (entry.mCities.size() >= mMaxNarrowableResults) {
+                continue;
+            }
+            List<CityInfoResponse> cities = new ArrayList<>();
+            for (CityInfoResponse city : entry.mCities) {
+                if (normalize(city.getCityName()).startsWith(normalizedQuery)) {
+                    cities.add(city);
+                }
+            }
+            return cities;
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the cities returned for the query
+     */
+    public synchronized void put(String language, String query, List<CityInfoResponse> cities) {
+        final String normalizedQuery = normalize(query);
+        if (normalizedQuery.isEmpty()) {
+            return;
+        }
+        mEntries.put(buildKey(language, normalizedQuery),
+                new Entry(new ArrayList<>(cities), System.currentTimeMillis()));
+    }
+
+    private static String buildKey(String language, String normalizedQuery) {
+        return language + ":" + normalizedQuery;
+    }
+
+    /**
+     * @return The form names are compared in when searching by prefix
+     */
+    static String normalize(String name) {
+        return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry {
+        private final List<CityInfoResponse> mCities;
+        private final long mTimestamp;
+
+        Entry(List<CityInfoResponse> cities, long timestamp) {
+            mCities = cities;
+            mTimestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+
+/**
+ * Read-only index of cities which is memory-mapped from a file, so cities can be searched by
+ * name prefix and resolved from a position without any request.
+ *
+ * The file consists of a header, a table of fixed size records sorted by the normalized city
+ * name and a pool of length prefixed UTF-8 strings the records point to. All numbers are big
+ * endian:
+ * <pre>
+ * header: int magic, int version, int language offset, int record count
+ * record: int name offset, int key offset, int localized name offset, int country id offset,
+ *         int country name offset, int state offset, int postal code offset,
+ *         float latitude, float longitude
+ * string: unsigned short length, byte[length] UTF-8
+ * </pre>
+ */
+public class OfflineCityIndex {
+    private static final int MAGIC = 0x41574349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 36;
+    //Positions of the string offsets within a record
+    private static final int[] RECORD_STRINGS = {0, 4, 8, 12, 16, 20, 24};
+    private static final double EARTH_RADIUS_KM = 6371d;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final String mLanguage;
+
+    private OfflineCityIndex(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a city index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported city index version " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(12);
+        if (mCount < 0 || HEADER_SIZE + (long) mCount * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated city index");
+        }
+        //The lookups trust the offsets, so a corrupt file is rejected here instead of failing
+        //them later on
+        checkString(buffer.getInt(8));
+        for (int i = 0; i < mCount; i++) {
+            final int record = HEADER_SIZE + i * RECORD_SIZE;
+            for (int field : RECORD_STRINGS) {
+                checkString(buffer.getInt(record + field));
+            }
+        }
+        mLanguage = readString(buffer.getInt(8));
+    }
+
+    /**
+     * @throws IOException If the string at the offset doesn't lie within the index
+     */
+    private void checkString(int offset) throws IOException {
+        final int capacity = mBuffer.capacity();
+        if (offset < HEADER_SIZE || offset > capacity - 2
+                || offset + 2 + (mBuffer.getShort(offset) & 0xffff) > capacity) {
+            throw new IOException("Corrupt city index, string offset " + offset
+                    + " out of bounds");
+        }
+    }
+
+    /**
+     * Maps the index from a region of the given file. The mapping stays valid after the channel
+     * has been closed
+     * @param offset The position of the index within the file
+     * @param length The size of the index in bytes
+     * @throws IOException If the region can't be mapped or doesn't hold a valid index
+     */
+    public static OfflineCityIndex map(FileChannel channel, long offset, long length)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return new OfflineCityIndex(buffer);
+    }
+
+    /**
+     * @return The language the names in the index are localized in
+     */
+    public String getLanguage() {
+        return mLanguage;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @param query The beginning of the name of the city
+     * @param limit The maximum number of cities to return
+     * @return The cities whose name starts with the query, ordered by name
+     */
+    public List<CityInfoResponse> search(String query, int limit) {
+        final String prefix = CityPrefixIndex.normalize(query);
+        List<CityInfoResponse> cities = new ArrayList<>();
+        if (prefix.isEmpty()) {
+            return cities;
+        }
+        //Binary search for the first name that is not smaller than the prefix
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getName(mid).compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < mCount && cities.size() < limit; i++) {
+            if (!getName(i).startsWith(prefix)) {
+                break;
+            }
+            cities.add(getCity(i));
+        }
+        return cities;
+    }
+
+    /**
+     * @param maxDistanceKm The maximum distance between the position and the city centre
+     * @return The city whose centre is closest to the position, or null if there is none within
+     * the maximum distance
+     */
+    public CityInfoResponse findNearest(double latitude, double longitude, double maxDistanceKm) {
+        final double lat = Math.toRadians(latitude);
+        final double lon = Math.toRadians(longitude);
+        final double cosLat = Math.cos(lat);
+        //Compare squared equirectangular distances, they are accurate enough at city scale
+        final double maxDistance = maxDistanceKm / EARTH_RADIUS_KM;
+        double bestDistance = maxDistance * maxDistance;
+        int best = -1;
+        for (int i = 0; i < mCount; i++) {
+            final int record = HEADER_SIZE + i * RECORD_SIZE;
+            final double dLat = Math.toRadians(mBuffer.getFloat(record + 28)) - lat;
+            double dLon = Math.toRadians(mBuffer.getFloat(record + 32)) - lon;
+            if (dLon > Math.PI) {
+                dLon -= 2 * Math.PI;
+            } else if (dLon < -Math.PI) {
+                dLon += 2 * Math.PI;
+            }
+            final double x = dLon * cosLat;
+            final double distance = x * x + dLat * dLat;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best >= 0 ? getCity(best) : null;
+    }
+
+    private String getName(int index) {
+        return readString(mBuffer.getInt(HEADER_SIZE + index * RECORD_SIZE));
+    }
+
+    private CityInfoResponse getCity(int index) {
+        final int record = HEADER_SIZE + index * RECORD_SIZE;
+        return new CityInfoResponse(readString(mBuffer.getInt(record + 4)),
+                readString(mBuffer.getInt(record + 8)),
+                readString(mBuffer.getInt(record + 12)),
+                readString(mBuffer.getInt(record + 16)),
+                readString(mBuffer.getInt(record + 24)),
+                readString(mBuffer.getInt(record + 20)),
+                mBuffer.getFloat(record + 28),
+                mBuffer.getFloat(record + 32));
+    }
+
+    private String readString(int offset) {
+        final int length = mBuffer.getShort(offset) & 0xffff;
+        //Absolute reads only, the index is shared between threads
+        ByteBuffer string = mBuffer.duplicate();
+        string.position(offset + 2);
+        byte[] bytes = new byte[length];
+        string.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an index that can be mapped by {@link OfflineCityIndex#map}
+     */
+    public static final class Writer {
+        private final String mLanguage;
+        private final List<CityInfoResponse> mCities = new ArrayList<>();
+
+        /**
+         * @param language The language the names of the cities are localized in
+         */
+        public Writer(String language) {
+            mLanguage = language;
+        }
+
+        /**
+         * Adds a city, which must have a known position
+         */
+        public Writer add(CityInfoResponse city) {
+            if (Double.isNaN(city.getLatitude()) || Double.isNaN(city.getLongitude())) {
+                throw new IllegalArgumentException("The position of " + city.getCityName()
+                        + " is unknown");
+            }
+            mCities.add(city);
+            return this;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            List<CityInfoResponse> cities = new ArrayList<>(mCities);
+            Collections.sort(cities, new Comparator<CityInfoResponse>() {
+                @Override
+                public int compare(CityInfoResponse lhs, CityInfoResponse rhs) {
+                    return CityPrefixIndex.normalize(lhs.getCityName())
+                            .compareTo(CityPrefixIndex.normalize(rhs.getCityName()));
+                }
+            });
+
+            StringPool pool = new StringPool(HEADER_SIZE + cities.size() * RECORD_SIZE);
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(pool.add(mLanguage));
+            data.writeInt(cities.size());
+            for (CityInfoResponse city : cities) {
+                data.writeInt(pool.add(CityPrefixIndex.normalize(city.getCityName())));
+                data.writeInt(pool.add(city.getCityId()));
+                data.writeInt(pool.add(city.getCityName()));
+                data.writeInt(pool.add(city.getCountryId()));
+                data.writeInt(pool.add(city.getCountryName()));
+                data.writeInt(pool.add(city.getState()));
+                data.writeInt(pool.add(city.getPostalCode()));
+                data.writeFloat((float) city.getLatitude());
+                data.writeFloat((float) city.getLongitude());
+            }
+            pool.writeTo(data);
+            data.flush();
+        }
+    }
+
+    private static final class StringPool {
+        private final Map<String, Integer> mOffsets = new HashMap<>();
+        private final List<byte[]> mStrings = new ArrayList<>();
+        private int mNextOffset;
+
+        /**
+         * @param baseOffset The position of the pool in the file
+         */
+        StringPool(int baseOffset) {
+            mNextOffset = baseOffset;
+        }
+
+        /**
+         * @return The position of the string in the file
+         */
+        int add(String string) throws IOException {
+            final String value = string != null ? string : "";
+            Integer offset = mOffsets.get(value);
+            if (offset != null) {
+                return offset;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xffff) {
+                throw new IOException("String too long for the city index");
+            }
+            offset = mNextOffset;
+            mOffsets.put(value, offset);
+            mStrings.add(bytes);
+            mNextOffset += 2 + bytes.length;
+            return offset;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (byte[] bytes : mStrings) {
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.WeatherSnapshot;
+import de.torbenhansing.accuweatherprovider.utils.Logging;
+import de.torbenhansing.accuweatherprovider.utils.SnapshotLog;
+
+/**
+ * Two tier cache for weather responses. Entries are kept in a bounded in-memory LRU and written
+ * through to a memory-mapped {@link SnapshotLog}, so they survive the death of the process. In
+ * the log every entry is a {@link WeatherSnapshot} of a few hundred bytes, reading one back
+ * takes microseconds. The log is replayed when the cache is created, entries which can't be
+ * served anymore are dropped when it is compacted.
+ */
+public class WeatherCache {
+    private static final String LOG_FILE_NAME = "weather.log";
+    //Holds the entries of older versions, one file each
+    private static final String LEGACY_CACHE_DIR_NAME = "weather";
+    //Enough for a few dozen locations before the log has to grow
+    private static final int LOG_INITIAL_CAPACITY = 16 * 1024;
+
+    //Guarded by itself, iterates in access order to evict the least recently used entry
+    private final LinkedHashMap<String, Entry> mMemoryCache;
+    private final SnapshotLog mLog;
+    private final long mMaxStale;
+    private final Executor mCompactionExecutor;
+
+    /**
+     * @param cacheDir The directory in which the disk tier is stored
+     * @param maxMemoryEntries The maximum number of entries kept in memory
+     * @param maxStale The time in milliseconds expired entries may still be served, they are
+     *                 kept on disk for that long
+     * @param compactionExecutor Runs the compaction of the disk tier
+     */
+    public WeatherCache(File cacheDir, final int maxMemoryEntries, long maxStale,
+                        Executor compactionExecutor) {
+        mMemoryCache = new LinkedHashMap<String, Entry>(maxMemoryEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WeatherCache.Entry> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+        mMaxStale = maxStale;
+        mCompactionExecutor = compactionExecutor;
+        deleteLegacyEntries(new File(cacheDir, LEGACY_CACHE_DIR_NAME));
+        SnapshotLog log = null;
+        try {
+            log = new SnapshotLog(new File(cacheDir, LOG_FILE_NAME), LOG_INITIAL_CAPACITY);
+        } catch (IOException e) {
+            Logging.loge("Unable to open the weather cache log, keeping entries in memory: " + e);
+        }
+        mLog = log;
+    }
+
+    /**
+     * Builds the key of a cache entry. The responses are stored in metric units, so they only
+     * depend on the location and the language of the condition texts and the city name
+     */
+    public static String buildKey(String locationKey, String language) {
+        return locationKey + "_" + language;
+    }
+
+    /**
+     * Returns the cached entry for the given key. The memory tier is checked first, the disk
+     * tier is only read on a miss. This call may block on disk I/O if the pages of the entry
+     * have been evicted
+     * @return The cached entry, which might be expired, or null if nothing is cached
+     */
+    public Entry get(String key) {
+        Entry entry = getFromMemory(key);
+        if (entry != null) {
+            return entry;
+        }
+        entry = readFromDisk(key);
+        if (entry != null) {
+            putInMemory(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the cached entry for the given key from the memory tier only. This call never
+     * touches the disk
+     * @return The cached entry, which might be expired, or null if nothing is cached in memory
+     */
+    public Entry getFromMemory(String key) {
+        synchronized (mMemoryCache) {
+            return mMemoryCache.get(key);
+        }
+    }
+
+    /**
+     * Stores the entry in both tiers
+     */
+    public void put(String key, Entry entry) {
+        putInMemory(key, entry);
+        writeToDisk(key, entry);
+    }
+
+    public void dump(PrintWriter pw) {
+        final int size;
+        synchronized (mMemoryCache) {
+            size = mMemoryCache.size();
+        }
+        pw.println("Weather cache: " + size + " entries in memory");
+        if (mLog != null) {
+            mLog.dump(pw, "  Log: ");
+        }
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        synchronized (mMemoryCache) {
+            mMemoryCache.put(key, entry);
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        if (mLog == null) {
+            return null;
+        }
+        final ByteBuffer value = mLog.get(key);
+        if (value == null) {
+            return null;
+        }
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(value);
+        if (snapshot == null) {
+            Logging.logd("Ignoring unreadable cached weather %s", key);
+            return null;
+        }
+        return Entry.fromSnapshot(snapshot);
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (mLog == null) {
+            return;
+        }
+        try {
+            mLog.put(key, entry.toSnapshot(key));
+        } catch (IOException e) {
+            Logging.loge("Unable to write cached weather " + key + ": " + e);
+            return;
+        }
+        if (mLog.requestCompaction()) {
+            mCompactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    private void compact() {
+        final long now = System.currentTimeMillis();
+        try {
+            mLog.compact(new SnapshotLog.Filter() {
+                @Override
+                public boolean isLive(String key, ByteBuffer value) {
+                    //Only the timestamps are read, the responses are copied without decoding
+                    WeatherSnapshot snapshot = WeatherSnapshot.wrap(value);
+                    return snapshot != null && (now - snapshot.getCurrentWeatherTimestamp()
+                            < snapshot.getCurrentWeatherTtl() + mMaxStale
+                            || now - snapshot.getForecastTimestamp()
+                            < snapshot.getForecastTtl() + mMaxStale);
+                }
+            });
+        } catch (IOException e) {
+            Logging.loge("Unable to compact the weather cache log: " + e);
+        }
+    }
+
+    private static void deleteLegacyEntries(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * The cached weather of one location. The current conditions and the forecast change at a
+     * different pace, so each of them is fetched and expires on its own
+     */
+    public static final class Entry {
+        private final String mCityName;
+        private final CurrentWeatherResponse mCurrentWeather;
+        private final long mCurrentWeatherTimestamp;
+        private final long mCurrentWeatherTtl;
+        private final ForecastResponse mForecast;
+        private final long mForecastTimestamp;
+        private final long mForecastTtl;
+
+        /**
+         * @param currentWeatherTimestamp The time in milliseconds since the epoch the current
+         *                                weather was fetched
+         * @param currentWeatherTtl The time in milliseconds the current weather is fresh
+         * @param forecast The forecast, may be null if none could be fetched yet
+         * @param forecastTimestamp The time in milliseconds since the epoch the forecast was
+         *                          fetched
+         * @param forecastTtl The time in milliseconds the forecast is fresh
+         */
+        public Entry(String cityName, CurrentWeatherResponse currentWeather,
+                     long currentWeatherTimestamp, long currentWeatherTtl,
+                     ForecastResponse forecast, long forecastTimestamp, long forecastTtl) {
+            mCityName = cityName;
+            mCurrentWeather = currentWeather;
+            mCurrentWeatherTimestamp = currentWeatherTimestamp;
+            mCurrentWeatherTtl = currentWeatherTtl;
+            mForecast = forecast;
+            mForecastTimestamp = forecastTimestamp;
+            mForecastTtl = forecastTtl;
+        }
+
+        /**
+         * Restores an entry from its snapshot
+         */
+        public static Entry fromSnapshot(WeatherSnapshot snapshot) {
+            return new Entry(snapshot.getCityName(), snapshot.getCurrentWeather(),
+                    snapshot.getCurrentWeatherTimestamp(), snapshot.getCurrentWeatherTtl(),
+                    snapshot.getForecast(), snapshot.getForecastTimestamp(),
+                    snapshot.getForecastTtl());
+        }
+
+        /**
+         * @param key The key of the entry in the cache
+         * @return The snapshot of the entry in a buffer of the exact size, ready to be read
+         */
+        public ByteBuffer toSnapshot(String key) {
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    WeatherSnapshot.getEncodedSize(key, mCityName, mForecast));
+            WeatherSnapshot.encode(buffer, key, mCityName, mCurrentWeather,
+                    mCurrentWeatherTimestamp, mCurrentWeatherTtl, mForecast, mForecastTimestamp,
+                    mForecastTtl);
+            buffer.flip();
+            return buffer;
+        }
+
+        public String getCityName() {
+            return mCityName;
+        }
+
+        public CurrentWeatherResponse getCurrentWeather() {
+            return mCurrentWeather;
+        }
+
+        public long getCurrentWeatherTimestamp() {
+            return mCurrentWeatherTimestamp;
+        }
+
+        public long getCurrentWeatherTtl() {
+            return mCurrentWeatherTtl;
+        }
+
+        public ForecastResponse getForecast() {
+            return mForecast;
+        }
+
+        public long getForecastTimestamp() {
+            return mForecastTimestamp;
+        }
+
+        public long getForecastTtl() {
+            return mForecastTtl;
+        }
+
+        public boolean isCurrentWeatherFresh(long now) {
+            return now - mCurrentWeatherTimestamp < mCurrentWeatherTtl;
+        }
+
+        public boolean isForecastFresh(long now) {
+            return mForecast != null && now - mForecastTimestamp < mForecastTtl;
+        }
+
+        /**
+         * @return true if neither component has to be fetched again
+         */
+        public boolean isFresh(long now) {
+            return isCurrentWeatherFresh(now) && isForecastFresh(now);
+        }
+
+        /**
+         * @param maxStale The time in milliseconds an expired current weather may still be served
+         */
+        public boolean isUsable(long now, long maxStale) {
+            return now - mCurrentWeatherTimestamp < mCurrentWeatherTtl + maxStale;
+        }
+
+        /**
+         * @param maxStale The time in milliseconds an expired forecast may still be served
+         */
+        public boolean isForecastUsable(long now, long maxStale) {
+            return mForecast != null && now - mForecastTimestamp < mForecastTtl + maxStale;
+        }
+    }
+}
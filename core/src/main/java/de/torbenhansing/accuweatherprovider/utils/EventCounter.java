@@ -0,0 +1,39 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter of how often each constant of an enum has occurred
+ * @param <E> The enum of the events
+ */
+public final class EventCounter<E extends Enum<E>> {
+    private final E[] mEvents;
+    private final AtomicLongArray mCounts;
+
+    public EventCounter(Class<E> events) {
+        mEvents = events.getEnumConstants();
+        mCounts = new AtomicLongArray(mEvents.length);
+    }
+
+    public void increment(E event) {
+        mCounts.incrementAndGet(event.ordinal());
+    }
+
+    public long get(E event) {
+        return mCounts.get(event.ordinal());
+    }
+
+    /**
+     * Prints one line per event which has occurred at least once
+     * @param prefix Printed at the beginning of every line
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        for (E event : mEvents) {
+            final long count = get(event);
+            if (count > 0) {
+                pw.println(prefix + event + ": " + count);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import java.util.Locale;
+
+public class LanguageCodes {
+
+    private LanguageCodes() {
+    }
+
+    /**
+     * @return The language code the AccuWeather API expects for the locale, e.g. "de-de"
+     */
+    public static String fromLocale(Locale locale) {
+        return (locale.getLanguage() + "-" + locale.getCountry()).toLowerCase(Locale.ROOT);
+    }
+}
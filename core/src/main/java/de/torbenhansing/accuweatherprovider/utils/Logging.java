@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.torbenhansing.accuweatherprovider.utils;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Messages go to the {@link Backend} set by the application, on a device that is the system
+ * log. Nothing is logged until a backend is set. Debug messages are only logged if the backend
+ * has them enabled. The parameterized variants only format the message, and call toString()
+ * on the arguments, if it is actually logged.
+ *
+ * Independent of the level, a few events of each request are traced to a small ring buffer
+ * which is printed by dumpsys.
+ */
+public class Logging {
+    private static final int TRACE_CAPACITY = 256;
+    private static final TraceBuffer TRACE = new TraceBuffer(TRACE_CAPACITY);
+    private static final Backend NO_BACKEND = new Backend() {
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void logd(String log) {
+        }
+
+        @Override
+        public void logw(String log) {
+        }
+
+        @Override
+        public void loge(String log) {
+        }
+    };
+
+    private static volatile Backend sBackend = NO_BACKEND;
+
+    /**
+     * Writes the messages somewhere
+     */
+    public interface Backend {
+        /**
+         * @return true if debug messages are written. Must not change, it is asked for every
+         * message
+         */
+        boolean isDebugEnabled();
+
+        void logd(String log);
+
+        void logw(String log);
+
+        void loge(String log);
+    }
+
+    /**
+     * @param backend Receives all messages from now on, null to drop them
+     */
+    public static void setBackend(Backend backend) {
+        sBackend = backend != null ? backend : NO_BACKEND;
+    }
+
+    /**
+     * @return true if debug messages are logged. Guard loops and other work done only to build
+     * debug messages with it
+     */
+    public static boolean isDebugEnabled() {
+        return sBackend.isDebugEnabled();
+    }
+
+    public static void logd(String log) {
+        final Backend backend = sBackend;
+        if (backend.isDebugEnabled()) {
+            backend.logd(log);
+        }
+    }
+
+    /**
+     * @param format A {@link String#format(String, Object...)} format string
+     */
+    public static void logd(String format, Object arg) {
+        final Backend backend = sBackend;
+        if (backend.isDebugEnabled()) {
+            backend.logd(String.format(Locale.ROOT, format, arg));
+        }
+    }
+
+    public static void logd(String format, Object arg1, Object arg2) {
+        final Backend backend = sBackend;
+        if (backend.isDebugEnabled()) {
+            backend.logd(String.format(Locale.ROOT, format, arg1, arg2));
+        }
+    }
+
+    public static void logw(String log) {
+        sBackend.logw(log);
+    }
+
+    public static void loge(String log) {
+        //This is an actual error, so it might be important, no check for debug flag
+        sBackend.loge(log);
+    }
+
+    /**
+     * Records an event in the trace buffer. Doesn't allocate as long as the event and the
+     * subject are existing strings
+     * @param subject What the event happened to, e.g. a request key, may be null
+     * @param value A number describing the event, e.g. a status code or a duration
+     */
+    public static void trace(String event, String subject, long value) {
+        TRACE.record(System.currentTimeMillis(), event, subject, value);
+    }
+
+    public static void dumpTrace(PrintWriter pw, String prefix) {
+        TRACE.dump(pw, prefix);
+    }
+}
@@ -0,0 +1,271 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the latest value of every key, kept in a memory-mapped file. Writing a
+ * value appends a record and reading one returns a view of the mapped file, neither of them
+ * issues a system call. Opening the log replays it once to find the latest record of each key.
+ * <p>
+ * Every record carries the CRC32 of its key and value. A record torn by the death of the
+ * process or of the device fails the check and ends the replay, so the log always comes back
+ * with the records written before it. Superseded records stay in the file until the log is
+ * compacted, which rewrites the live records to a new file and renames it over the log. The
+ * owner decides when and on which thread the log is compacted, see {@link #requestCompaction}.
+ */
+public final class SnapshotLog {
+    private static final int MAGIC = 0x534e4c47;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    //The length of the body, then its CRC32. The body is the key length, the key and the value
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int KEY_LENGTH_SIZE = 2;
+
+    /**
+     * Decides which values are kept when the log is compacted
+     */
+    public interface Filter {
+        /**
+         * @param value A read-only view of the value, positioned at its start
+         * @return false if the value can be dropped
+         */
+        boolean isLive(String key, ByteBuffer value);
+    }
+
+    private final File mFile;
+    private final int mInitialCapacity;
+    private final CRC32 mCrc = new CRC32();
+    //Offset of the latest record of every key
+    private final Map<String, Integer> mOffsets = new HashMap<>();
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+    //Bytes taken by the latest records, the rest of the log is garbage
+    private int mLiveBytes;
+    private boolean mCompactionRequested;
+    private boolean mClosed;
+
+    /**
+     * Opens the log, creating it if it doesn't exist, and replays it. A file that isn't a log
+     * of this version is discarded
+     * @param initialCapacity The initial size of the file in bytes, it grows when it is full
+     * @throws IOException If the file can't be opened or mapped
+     */
+    public SnapshotLog(File file, int initialCapacity) throws IOException {
+        mFile = file;
+        mInitialCapacity = initialCapacity;
+        mBuffer = map(file, initialCapacity, false);
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            mBuffer = map(file, initialCapacity, true);
+            mBuffer.putInt(0, MAGIC).putInt(4, VERSION);
+        }
+        replay();
+    }
+
+    private void replay() {
+        final int capacity = mBuffer.capacity();
+        int offset = FILE_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= capacity) {
+            final int length = mBuffer.getInt(offset);
+            if (length < KEY_LENGTH_SIZE || length > capacity - offset - RECORD_HEADER_SIZE) {
+                break;
+            }
+            final int body = offset + RECORD_HEADER_SIZE;
+            final int keyLength = mBuffer.getShort(body) & 0xffff;
+            if (keyLength > length - KEY_LENGTH_SIZE
+                    || mBuffer.getInt(offset + 4) != computeCrc(body, length)) {
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            for (int i = 0; i < keyLength; i++) {
+                key[i] = mBuffer.get(body + KEY_LENGTH_SIZE + i);
+            }
+            setOffset(new String(key, StandardCharsets.UTF_8), offset);
+            offset = body + length;
+        }
+        mEnd = offset;
+    }
+
+    /**
+     * @return A read-only view of the latest value of the key, positioned at its start, or
+     *         null if the key has no value. The view stays valid when the log changes
+     */
+    public synchronized ByteBuffer get(String key) {
+        final Integer offset = mOffsets.get(key);
+        return offset != null ? getValue(mBuffer, offset) : null;
+    }
+
+    /**
+     * @return The keys which have a value, in no particular order
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<>(mOffsets.keySet());
+    }
+
+    /**
+     * Appends the value from its position to its limit as the latest value of the key. The
+     * value survives the death of the process as soon as this call returns. The log is
+     * compacted right away if it is full
+     * @throws IOException If the log had to be compacted or grown and that failed
+     */
+    public synchronized void put(String key, ByteBuffer value) throws IOException {
+        checkOpen();
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int length = KEY_LENGTH_SIZE + keyBytes.length + value.remaining();
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        if (mEnd + RECORD_HEADER_SIZE + length > mBuffer.capacity()) {
+            compact(null);
+            if (mEnd + RECORD_HEADER_SIZE + length > mBuffer.capacity()) {
+                mBuffer = map(mFile, Math.max(mBuffer.capacity() * 2,
+                        mEnd + RECORD_HEADER_SIZE + length), false);
+            }
+        }
+        final int body = mEnd + RECORD_HEADER_SIZE;
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(body);
+        record.putShort((short) keyBytes.length).put(keyBytes).put(value.duplicate());
+        mBuffer.putInt(mEnd + 4, computeCrc(body, length));
+        //The length goes last, a record without it ends the replay
+        mBuffer.putInt(mEnd, length);
+        setOffset(key, mEnd);
+        mEnd = body + length;
+    }
+
+    /**
+     * Tells the owner of the log to compact it once the log is mostly garbage. Only the first
+     * call after the log filled up returns true, until the log has been compacted
+     */
+    public synchronized boolean requestCompaction() {
+        if (mClosed || mCompactionRequested || mEnd < mBuffer.capacity() * 3 / 4
+                || mLiveBytes > (mEnd - FILE_HEADER_SIZE) / 2) {
+            return false;
+        }
+        mCompactionRequested = true;
+        return true;
+    }
+
+    /**
+     * Rewrites the live records to a new file which replaces the log. This blocks all other
+     * calls for as long as it takes to copy the live records
+     * @param filter Decides which values are kept, all of them if null
+     * @throws IOException If the new file can't be written, the log is left as it was
+     */
+    public synchronized void compact(Filter filter) throws IOException {
+        checkOpen();
+        mCompactionRequested = false;
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        int capacity = mInitialCapacity;
+        while (capacity < FILE_HEADER_SIZE + mLiveBytes * 2) {
+            capacity *= 2;
+        }
+        final MappedByteBuffer buffer = map(tmp, capacity, true);
+        buffer.putInt(0, MAGIC).putInt(4, VERSION);
+        final Map<String, Integer> offsets = new HashMap<>();
+        final ByteBuffer target = buffer.duplicate();
+        target.position(FILE_HEADER_SIZE);
+        for (Map.Entry<String, Integer> entry : mOffsets.entrySet()) {
+            final int offset = entry.getValue();
+            if (filter != null && !filter.isLive(entry.getKey(), getValue(mBuffer, offset))) {
+                continue;
+            }
+            //The record is copied as it is, its CRC stays valid
+            final ByteBuffer record = mBuffer.duplicate();
+            record.position(offset).limit(offset + getRecordSize(mBuffer, offset));
+            offsets.put(entry.getKey(), target.position());
+            target.put(record);
+        }
+        buffer.force();
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mBuffer = buffer;
+        mOffsets.clear();
+        mOffsets.putAll(offsets);
+        mEnd = target.position();
+        mLiveBytes = mEnd - FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Flushes the log to the storage device. The values can still be read, writing or
+     * compacting the log fails from now on
+     */
+    public synchronized void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mBuffer.force();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("The log is closed");
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + mOffsets.size() + " keys, " + mLiveBytes + " of " + mEnd + " of "
+                + mBuffer.capacity() + " bytes live");
+    }
+
+    private void setOffset(String key, int offset) {
+        final Integer previous = mOffsets.put(key, offset);
+        if (previous != null) {
+            mLiveBytes -= getRecordSize(mBuffer, previous);
+        }
+        mLiveBytes += getRecordSize(mBuffer, offset);
+    }
+
+    private int computeCrc(int offset, int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        mCrc.reset();
+        mCrc.update(bytes, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    private static int getRecordSize(ByteBuffer buffer, int offset) {
+        return RECORD_HEADER_SIZE + buffer.getInt(offset);
+    }
+
+    private static ByteBuffer getValue(ByteBuffer buffer, int offset) {
+        final int body = offset + RECORD_HEADER_SIZE;
+        final ByteBuffer value = buffer.asReadOnlyBuffer();
+        value.limit(body + buffer.getInt(offset));
+        value.position(body + KEY_LENGTH_SIZE + (buffer.getShort(body) & 0xffff));
+        return value.slice();
+    }
+
+    /**
+     * Maps the file, growing it to the capacity if it is smaller. The mapping stays valid
+     * after the file has been closed
+     * @param truncate Clears the file before it is mapped
+     */
+    private static MappedByteBuffer map(File file, int capacity, boolean truncate)
+            throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (truncate) {
+                raf.setLength(0);
+            }
+            final long size = Math.max(capacity, raf.length());
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+public enum TemperatureUnit {
+    CELSIUS,
+    FAHRENHEIT
+}
@@ -0,0 +1,71 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Fixed-size ring buffer of structured events, kept to reconstruct what happened before a
+ * problem was noticed. Every slot is allocated up front and recording an event only stores its
+ * fields, so the buffer can stay enabled in production as long as the event names and subjects
+ * are strings that exist anyway, like constants or keys. Once the buffer is full the oldest
+ * events are overwritten.
+ */
+public final class TraceBuffer {
+    private final long[] mTimes;
+    private final String[] mEvents;
+    private final String[] mSubjects;
+    private final long[] mValues;
+    //Total number of events recorded, the next one goes to mCount % capacity
+    private long mCount;
+
+    public TraceBuffer(int capacity) {
+        mTimes = new long[capacity];
+        mEvents = new String[capacity];
+        mSubjects = new String[capacity];
+        mValues = new long[capacity];
+    }
+
+    /**
+     * @param time The time of the event in milliseconds since the epoch
+     * @param event What happened
+     * @param subject What it happened to, may be null
+     * @param value A number describing the event, e.g. a status code or a duration
+     */
+    public synchronized void record(long time, String event, String subject, long value) {
+        final int slot = (int) (mCount % mTimes.length);
+        mTimes[slot] = time;
+        mEvents[slot] = event;
+        mSubjects[slot] = subject;
+        mValues[slot] = value;
+        mCount++;
+    }
+
+    /**
+     * Prints the buffered events from the oldest to the newest, one per line
+     * @param prefix Printed at the beginning of every line
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        final int capacity = mTimes.length;
+        final long[] times = new long[capacity];
+        final String[] events = new String[capacity];
+        final String[] subjects = new String[capacity];
+        final long[] values = new long[capacity];
+        final long count;
+        //Copy the events, so the lines are formatted without blocking the recording threads
+        synchronized (this) {
+            count = mCount;
+            System.arraycopy(mTimes, 0, times, 0, capacity);
+            System.arraycopy(mEvents, 0, events, 0, capacity);
+            System.arraycopy(mSubjects, 0, subjects, 0, capacity);
+            System.arraycopy(mValues, 0, values, 0, capacity);
+        }
+        final int size = (int) Math.min(count, capacity);
+        pw.println(prefix + size + " of " + count + " events");
+        for (long i = count - size; i < count; i++) {
+            final int slot = (int) (i % capacity);
+            pw.println(prefix + String.format(Locale.ROOT, "%1$tF %1$tT.%1$tL %2$s %3$s %4$d",
+                    times[slot], events[slot], subjects[slot] != null ? subjects[slot] : "-",
+                    values[slot]));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+/**
+ * Converts the metric values all weather data is stored in to the units requested by the user
+ */
+public class Units {
+
+    private Units() {
+    }
+
+    public static double celsiusToFahrenheit(double celsius) {
+        return celsius * 9d / 5d + 32d;
+    }
+
+    public static double kphToMph(double kph) {
+        return kph / 1.609344d;
+    }
+}
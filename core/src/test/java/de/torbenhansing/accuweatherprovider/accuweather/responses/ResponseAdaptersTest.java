@@ -0,0 +1,106 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherConverterFactory;
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The streaming adapters must cope with null values in any field without losing their place in
+ * the document. The timeouts catch adapters that loop forever on a misplaced skip.
+ */
+public class ResponseAdaptersTest {
+    private final Gson mGson = new Gson();
+
+    @Test(timeout = 1000)
+    public void forecastWithNullDailyForecastsFirst() {
+        ForecastResponse response = mGson.fromJson(
+                "{\"DailyForecasts\":null,\"Headline\":{\"Text\":\"Rain\"}}",
+                ForecastResponse.class);
+        assertNotNull(response);
+        assertTrue(response.getForecastList().isEmpty());
+    }
+
+    @Test(timeout = 1000)
+    public void forecastWithNullDailyForecastsLast() {
+        ForecastResponse response = mGson.fromJson(
+                "{\"Headline\":{\"Text\":\"Rain\"},\"DailyForecasts\":null}",
+                ForecastResponse.class);
+        assertNotNull(response);
+        assertTrue(response.getForecastList().isEmpty());
+    }
+
+    @Test(timeout = 1000)
+    public void forecastWithNullDayFields() {
+        ForecastResponse response = mGson.fromJson("{\"DailyForecasts\":[null,"
+                + "{\"Temperature\":null,\"Day\":null},"
+                + "{\"Temperature\":{\"Minimum\":null,\"Maximum\":{\"Value\":12.5}},"
+                + "\"Day\":{\"Icon\":3}}],\"Headline\":null}", ForecastResponse.class);
+        assertEquals(3, response.getForecastList().size());
+        ForecastResponse.DailyForecast day = response.getForecastList().get(2);
+        assertTrue(Double.isNaN(day.getMinTemp(TemperatureUnit.CELSIUS)));
+        assertEquals(12.5, day.getMaxTemp(TemperatureUnit.CELSIUS), 0);
+        assertEquals(3, day.getWeatherIconId());
+    }
+
+    @Test(timeout = 1000)
+    public void currentWeatherWithNullFields() {
+        CurrentWeatherResponse response = mGson.fromJson("[{\"EpochTime\":null,"
+                + "\"WeatherIcon\":null,\"Temperature\":null,\"RelativeHumidity\":null,"
+                + "\"Wind\":{\"Direction\":null,\"Speed\":null},\"Link\":null}]",
+                CurrentWeatherResponse.class);
+        assertEquals(-1L, response.getEpochTime());
+        assertEquals(0, response.getWeatherIconId());
+        assertTrue(Double.isNaN(response.getTemperature(TemperatureUnit.CELSIUS)));
+        assertTrue(Double.isNaN(response.getHumidity()));
+        assertTrue(Double.isNaN(response.getWindDirection()));
+        assertTrue(Double.isNaN(response.getWindSpeed(SpeedUnit.KPH)));
+    }
+
+    @Test(timeout = 1000)
+    public void cityWithNullFields() {
+        CityInfoResponse response = mGson.fromJson("{\"Key\":\"178087\",\"LocalizedName\":null,"
+                + "\"Country\":null,\"AdministrativeArea\":null,\"GeoPosition\":null,"
+                + "\"PrimaryPostalCode\":\"10178\"}", CityInfoResponse.class);
+        assertEquals("178087", response.getCityId());
+        assertEquals("", response.getCityName());
+        assertEquals("", response.getCountryId());
+        assertEquals("10178", response.getPostalCode());
+        assertTrue(Double.isNaN(response.getLatitude()));
+    }
+
+    @Test(timeout = 1000)
+    public void converterReportsWrongTypedFieldsAsMalformed() throws IOException {
+        //A string where a number is expected
+        assertMalformed(CurrentWeatherResponse.class, "[{\"RelativeHumidity\":\"high\"}]");
+        //A number where an object is expected
+        assertMalformed(CurrentWeatherResponse.class, "[{\"Temperature\":12.5}]");
+        assertMalformed(ForecastResponse.class, "{\"DailyForecasts\":{}}");
+    }
+
+    private static void assertMalformed(Type type, String json) throws IOException {
+        final ResponseBody body = ResponseBody.create(MediaType.parse("application/json"), json);
+        try {
+            AccuWeatherConverterFactory.create()
+                    .responseBodyConverter(type, new Annotation[0], null).convert(body);
+            fail("Converted " + json);
+        } catch (JsonSyntaxException e) {
+            //Expected
+        }
+    }
+}
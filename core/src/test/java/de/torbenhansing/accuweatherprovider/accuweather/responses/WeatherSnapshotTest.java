@@ -0,0 +1,157 @@
+package de.torbenhansing.accuweatherprovider.accuweather.responses;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.utils.SpeedUnit;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WeatherSnapshotTest {
+    private static final String KEY = "178087_de";
+    private static final String CITY_NAME = "M\u00fcnchen";
+
+    private static final CurrentWeatherResponse CURRENT_WEATHER
+            = new CurrentWeatherResponse(1476777600L, 7, 11.5, 82, 225, 14.8);
+    private static final ForecastResponse FORECAST = new ForecastResponse(Arrays.asList(
+            new ForecastResponse.DailyForecast(4.5, 12.0, 3),
+            new ForecastResponse.DailyForecast(Double.NaN, 9.5, 18)));
+
+    @Test
+    public void roundTrip() {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(
+                encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L));
+        assertNotNull(snapshot);
+        assertEquals(KEY, snapshot.getKey());
+        assertTrue(snapshot.hasKey(KEY));
+        assertFalse(snapshot.hasKey("178087_en"));
+        assertEquals(CITY_NAME, snapshot.getCityName());
+        assertEquals(100L, snapshot.getCurrentWeatherTimestamp());
+        assertEquals(200L, snapshot.getCurrentWeatherTtl());
+        assertEquals(300L, snapshot.getForecastTimestamp());
+        assertEquals(400L, snapshot.getForecastTtl());
+
+        CurrentWeatherResponse currentWeather = snapshot.getCurrentWeather();
+        assertEquals(1476777600L, currentWeather.getEpochTime());
+        assertEquals(7, currentWeather.getWeatherIconId());
+        assertEquals(11.5, currentWeather.getTemperature(TemperatureUnit.CELSIUS), 0);
+        assertEquals(82L, currentWeather.getRelativeHumidity());
+        assertEquals(0.82, currentWeather.getHumidity(), 1e-9);
+        assertEquals(225, currentWeather.getWindDirection(), 0);
+        assertEquals(14.8, currentWeather.getWindSpeed(SpeedUnit.KPH), 0);
+
+        List<ForecastResponse.DailyForecast> days = snapshot.getForecast().getForecastList();
+        assertEquals(2, days.size());
+        assertEquals(4.5, days.get(0).getMinTemp(TemperatureUnit.CELSIUS), 0);
+        assertEquals(12.0, days.get(0).getMaxTemp(TemperatureUnit.CELSIUS), 0);
+        assertEquals(3, days.get(0).getWeatherIconId());
+        assertTrue(Double.isNaN(days.get(1).getMinTemp(TemperatureUnit.CELSIUS)));
+        assertEquals(18, days.get(1).getWeatherIconId());
+    }
+
+    @Test
+    public void roundTripWithoutCurrentWeather() {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(encode(null, 0, 0, FORECAST, 300L, 400L));
+        assertNull(snapshot.getCurrentWeather());
+        assertTrue(Double.isNaN(snapshot.getTemperature()));
+        assertEquals(2, snapshot.getForecast().getForecastList().size());
+        assertEquals(CITY_NAME, snapshot.getCityName());
+    }
+
+    @Test
+    public void roundTripWithoutForecast() {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(
+                encode(CURRENT_WEATHER, 100L, 200L, null, 0, 0));
+        assertNull(snapshot.getForecast());
+        assertEquals(0, snapshot.getForecastDays());
+        assertEquals(11.5, snapshot.getTemperature(), 0);
+        assertEquals(KEY, snapshot.getKey());
+    }
+
+    @Test
+    public void roundTripWithEmptyForecast() {
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(encode(CURRENT_WEATHER, 100L, 200L,
+                new ForecastResponse(new ArrayList<ForecastResponse.DailyForecast>()), 300L, 400L));
+        //An empty forecast is still a forecast, unlike a missing one
+        assertNotNull(snapshot.getForecast());
+        assertTrue(snapshot.getForecast().getForecastList().isEmpty());
+        assertEquals(CITY_NAME, snapshot.getCityName());
+    }
+
+    @Test
+    public void roundTripWithoutCityName() {
+        final int size = WeatherSnapshot.getEncodedSize(KEY, null, null);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        WeatherSnapshot.encode(buffer, KEY, null, null, 0, 0, null, 0, 0);
+        buffer.flip();
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(buffer);
+        assertEquals("", snapshot.getCityName());
+        assertEquals(size, snapshot.getSize());
+    }
+
+    @Test
+    public void wrapsAtThePositionOfTheBuffer() {
+        final ByteBuffer encoded = encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L);
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + 16);
+        buffer.position(16);
+        buffer.put(encoded);
+        buffer.position(16);
+        WeatherSnapshot snapshot = WeatherSnapshot.wrap(buffer);
+        assertEquals(KEY, snapshot.getKey());
+        assertEquals(CITY_NAME, snapshot.getCityName());
+        assertEquals(16, buffer.position());
+    }
+
+    @Test
+    public void rejectsTruncatedBuffer() {
+        final ByteBuffer encoded = encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L);
+        for (int size = 0; size < encoded.remaining(); size++) {
+            ByteBuffer truncated = encoded.duplicate();
+            truncated.limit(size);
+            assertNull("Accepted " + size + " bytes", WeatherSnapshot.wrap(truncated));
+        }
+    }
+
+    @Test
+    public void rejectsBadMagic() {
+        ByteBuffer buffer = encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L);
+        buffer.put(0, (byte) (buffer.get(0) ^ 1));
+        assertNull(WeatherSnapshot.wrap(buffer));
+    }
+
+    @Test
+    public void rejectsOtherVersion() {
+        ByteBuffer buffer = encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L);
+        buffer.put(4, (byte) (buffer.get(4) + 1));
+        assertNull(WeatherSnapshot.wrap(buffer));
+    }
+
+    @Test
+    public void rejectsShortHeader() {
+        ByteBuffer buffer = encode(CURRENT_WEATHER, 100L, 200L, FORECAST, 300L, 400L);
+        buffer.putShort(6, (short) 8);
+        assertNull(WeatherSnapshot.wrap(buffer));
+    }
+
+    private static ByteBuffer encode(CurrentWeatherResponse currentWeather,
+                                     long currentWeatherTimestamp, long currentWeatherTtl,
+                                     ForecastResponse forecast, long forecastTimestamp,
+                                     long forecastTtl) {
+        final int size = WeatherSnapshot.getEncodedSize(KEY, CITY_NAME, forecast);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        WeatherSnapshot.encode(buffer, KEY, CITY_NAME, currentWeather, currentWeatherTimestamp,
+                currentWeatherTtl, forecast, forecastTimestamp, forecastTtl);
+        assertEquals(size, buffer.position());
+        buffer.flip();
+        return buffer;
+    }
+}
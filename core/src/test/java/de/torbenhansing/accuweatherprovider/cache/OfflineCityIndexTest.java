@@ -0,0 +1,129 @@
+package de.torbenhansing.accuweatherprovider.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class OfflineCityIndexTest {
+    private static final int HEADER_SIZE = 16;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        final File file = write(new OfflineCityIndex.Writer("de")
+                .add(new CityInfoResponse("178086", "Hamburg", "DE", "Deutschland", "20095",
+                        "Hamburg", 53.55, 9.99))
+                .add(new CityInfoResponse("178087", "Berlin", "DE", "Deutschland", "10115",
+                        "Berlin", 52.52, 13.40))
+                .add(new CityInfoResponse("178556", "Bern", "CH", "Schweiz", "3011",
+                        "Bern", 46.95, 7.45)));
+
+        final OfflineCityIndex index = map(file);
+        assertEquals("de", index.getLanguage());
+        assertEquals(3, index.size());
+
+        final List<CityInfoResponse> cities = index.search("ber", 10);
+        assertEquals(2, cities.size());
+        assertEquals("Berlin", cities.get(0).getCityName());
+        assertEquals("Bern", cities.get(1).getCityName());
+        assertEquals(1, index.search("ber", 1).size());
+
+        final CityInfoResponse city = index.findNearest(53.6, 10.0, 20);
+        assertEquals("178086", city.getCityId());
+        assertEquals("Hamburg", city.getCityName());
+        assertEquals("DE", city.getCountryId());
+        assertEquals("Deutschland", city.getCountryName());
+        assertEquals("20095", city.getPostalCode());
+        assertEquals("Hamburg", city.getState());
+        assertEquals(53.55, city.getLatitude(), 1e-4);
+        assertEquals(9.99, city.getLongitude(), 1e-4);
+        assertNull(index.findNearest(48.14, 11.58, 20));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        final File file = write(new OfflineCityIndex.Writer("en")
+                .add(new CityInfoResponse("349727", "New York", "US", "United States",
+                        "10007", "New York", 40.71, -74.01)));
+        //Cut the file in the middle of the string pool
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        assertRejected(file);
+
+        //Cut the file in the middle of the records
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(HEADER_SIZE + 8);
+        }
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsOffsetOutOfBounds() throws IOException {
+        final File file = write(new OfflineCityIndex.Writer("en")
+                .add(new CityInfoResponse("349727", "New York", "US", "United States",
+                        "10007", "New York", 40.71, -74.01)));
+        //Point the key of the city past the end of the file
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(HEADER_SIZE + 4);
+            raf.writeInt((int) raf.length());
+        }
+        assertRejected(file);
+
+        //And before the start of it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(HEADER_SIZE + 4);
+            raf.writeInt(-1);
+        }
+        assertRejected(file);
+    }
+
+    @Test
+    public void rejectsStringLengthOutOfBounds() throws IOException {
+        final File file = write(new OfflineCityIndex.Writer("en"));
+        //The language is the only string, claim it is longer than the file
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(HEADER_SIZE);
+            raf.writeShort(0xffff);
+        }
+        assertRejected(file);
+    }
+
+    private File write(OfflineCityIndex.Writer writer) throws IOException {
+        final File file = mFolder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            writer.writeTo(out);
+        }
+        return file;
+    }
+
+    private static OfflineCityIndex map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return OfflineCityIndex.map(raf.getChannel(), 0, raf.length());
+        }
+    }
+
+    private static void assertRejected(File file) {
+        try {
+            map(file);
+            fail("Mapped a corrupt city index");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package de.torbenhansing.accuweatherprovider.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SnapshotLogTest {
+    private static final int CAPACITY = 4096;
+    //The file header, then the length and the CRC of each record
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replaysLatestValues() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        log.put("b", value("two"));
+        log.put("a", value("three"));
+        assertEquals("three", read(log.get("a")));
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(log.getKeys()));
+        assertEquals("three", read(log.get("a")));
+        assertEquals("two", read(log.get("b")));
+        assertNull(log.get("c"));
+    }
+
+    @Test
+    public void recoversFromCorruptedTail() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        log.put("b", value("two"));
+        //Flip a bit in the value of the last record, its CRC no longer matches
+        final int last = FILE_HEADER_SIZE + getRecordSize("a", "one");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final long offset = last + getRecordSize("b", "two") - 1;
+            raf.seek(offset);
+            final int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 1);
+        }
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(Arrays.asList("a"), log.getKeys());
+        assertEquals("one", read(log.get("a")));
+
+        //The next record replaces the corrupted one
+        log.put("c", value("four"));
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), new HashSet<>(log.getKeys()));
+        assertEquals("four", read(log.get("c")));
+    }
+
+    @Test
+    public void recoversFromTornTail() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        log.put("b", value("two"));
+        //The process died before the length of the last record was written
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(FILE_HEADER_SIZE + getRecordSize("a", "one"));
+            raf.writeInt(0);
+        }
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(Arrays.asList("a"), log.getKeys());
+        assertEquals("one", read(log.get("a")));
+    }
+
+    @Test
+    public void recoversFromLengthPastTheEnd() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        log.put("b", value("two"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(FILE_HEADER_SIZE + getRecordSize("a", "one"));
+            raf.writeInt(CAPACITY);
+        }
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(Arrays.asList("a"), log.getKeys());
+    }
+
+    @Test
+    public void discardsFileOfOtherFormat() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(2);
+        }
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertTrue(log.getKeys().isEmpty());
+        log.put("b", value("two"));
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(Arrays.asList("b"), log.getKeys());
+    }
+
+    @Test
+    public void compactionKeepsLiveKeys() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        for (int i = 0; i < 10; i++) {
+            log.put("a", value("a" + i));
+            log.put("b", value("b" + i));
+            log.put("c", value("c" + i));
+        }
+        log.compact(new SnapshotLog.Filter() {
+            @Override
+            public boolean isLive(String key, ByteBuffer value) {
+                return !key.equals("b");
+            }
+        });
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), new HashSet<>(log.getKeys()));
+        assertEquals("a9", read(log.get("a")));
+        assertNull(log.get("b"));
+        assertEquals("c9", read(log.get("c")));
+        assertEquals(FILE_HEADER_SIZE + getRecordSize("a", "a9") + getRecordSize("c", "c9"),
+                getEnd(file));
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), new HashSet<>(log.getKeys()));
+        assertEquals("a9", read(log.get("a")));
+        assertEquals("c9", read(log.get("c")));
+    }
+
+    @Test
+    public void valuesSurviveCompaction() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        final ByteBuffer before = log.get("a");
+        log.compact(null);
+        assertEquals("one", read(before));
+        assertEquals("one", read(log.get("a")));
+    }
+
+    @Test
+    public void compactsAndGrowsWhenFull() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, 256);
+        //Rewriting the same keys only needs a compaction
+        for (int i = 0; i < 100; i++) {
+            log.put("a", value("a" + i));
+        }
+        assertEquals("a99", read(log.get("a")));
+        //More live values than fit need a bigger file
+        for (int i = 0; i < 100; i++) {
+            log.put("key" + i, value("value" + i));
+        }
+
+        log = new SnapshotLog(file, 256);
+        assertEquals(101, log.getKeys().size());
+        assertEquals("a99", read(log.get("a")));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, read(log.get("key" + i)));
+        }
+    }
+
+    @Test
+    public void requestsCompactionOnceMostlyGarbage() throws IOException {
+        SnapshotLog log = new SnapshotLog(mFolder.newFile(), 1024);
+        while (!log.requestCompaction()) {
+            log.put("a", value("0123456789"));
+        }
+        //Only the first request after the log filled up is granted
+        assertFalse(log.requestCompaction());
+        log.compact(null);
+        assertFalse(log.requestCompaction());
+        assertEquals("0123456789", read(log.get("a")));
+    }
+
+    @Test
+    public void closedLogRejectsWrites() throws IOException {
+        final File file = mFolder.newFile();
+        SnapshotLog log = new SnapshotLog(file, CAPACITY);
+        log.put("a", value("one"));
+        log.close();
+        assertEquals("one", read(log.get("a")));
+        assertFalse(log.requestCompaction());
+        try {
+            log.put("b", value("two"));
+            fail("Wrote to a closed log");
+        } catch (IOException e) {
+            //Expected
+        }
+        try {
+            log.compact(null);
+            fail("Compacted a closed log");
+        } catch (IOException e) {
+            //Expected
+        }
+
+        log = new SnapshotLog(file, CAPACITY);
+        assertEquals(Arrays.asList("a"), log.getKeys());
+    }
+
+    private static ByteBuffer value(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(ByteBuffer value) {
+        final byte[] bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int getRecordSize(String key, String value) {
+        return RECORD_HEADER_SIZE + 2 + key.length() + value.length();
+    }
+
+    /**
+     * @return The offset after the last record, found by walking the lengths of the records
+     */
+    private static int getEnd(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int offset = FILE_HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= raf.length()) {
+                raf.seek(offset);
+                final int length = raf.readInt();
+                if (length == 0) {
+                    break;
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return offset;
+        }
+    }
+}
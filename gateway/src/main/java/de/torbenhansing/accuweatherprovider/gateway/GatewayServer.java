@@ -0,0 +1,430 @@
+package de.torbenhansing.accuweatherprovider.gateway;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherConverterFactory;
+import de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherInterface;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CurrentWeatherResponse;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.ForecastResponse;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Headless server exposing the AccuWeather endpoints the provider uses under their original
+ * paths. Devices pointed at it share one upstream call per location and interval: concurrent
+ * requests for the same resource are coalesced into one upstream call and its result is cached
+ * and served to everybody asking within its lifetime. Upstream calls use the API key of the
+ * gateway, the keys sent by the devices are ignored.
+ *
+ * The responses are served in the AccuWeather layout, but only carry the fields the provider
+ * consumes.
+ */
+public class GatewayServer {
+    private static final Logger LOG = Logger.getLogger(GatewayServer.class.getName());
+
+    private static final String DEFAULT_UPSTREAM_URL = "https://dataservice.accuweather.com";
+    private static final String API_KEY_ENV = "ACCUWEATHER_API_KEY";
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final AccuWeatherInterface mUpstream;
+    private final String mApiKey;
+    private final ResponseCache mCache;
+    private final SingleFlight<Reply> mUpstreamCalls = new SingleFlight<>();
+    private final Endpoint<?>[] mEndpoints;
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mUpstreamRequests = new AtomicLong();
+    private final AtomicLong mUpstreamFailures = new AtomicLong();
+    private final ExecutorService mExecutor;
+    private final HttpServer mServer;
+
+    /**
+     * @param port The port to listen on
+     * @param upstreamUrl The base URL of the AccuWeather API
+     * @param apiKey The API key used for all upstream calls
+     * @param threads The number of client requests handled in parallel
+     * @param maxCacheEntries The maximum number of responses to cache
+     */
+    public GatewayServer(int port, String upstreamUrl, String apiKey, int threads,
+                         int maxCacheEntries) throws IOException {
+        mApiKey = apiKey;
+        mCache = new ResponseCache(maxCacheEntries);
+        //Most client threads wait for a few upstream calls, keep enough connections for them
+        final OkHttpClient httpClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(15, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(threads, 5, TimeUnit.MINUTES))
+                .build();
+        mUpstream = new Retrofit.Builder().baseUrl(upstreamUrl).client(httpClient)
+                .addConverterFactory(AccuWeatherConverterFactory.create()).build()
+                .create(AccuWeatherInterface.class);
+        mEndpoints = new Endpoint<?>[] {
+                new CurrentConditionsEndpoint(),
+                new ForecastEndpoint(),
+                new CitySearchEndpoint(),
+                new GeoPositionSearchEndpoint()
+        };
+
+        mExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Gateway #" + mCount.getAndIncrement());
+                    }
+                });
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.createContext("/", new GatewayHandler());
+        mServer.createContext("/status", new StatusHandler());
+        mServer.setExecutor(mExecutor);
+    }
+
+    public void start() {
+        mServer.start();
+        LOG.info("Listening on " + mServer.getAddress());
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Options: --port, --upstream, --api-key, --threads, --cache-entries. The API key may also
+     * be passed in the ACCUWEATHER_API_KEY environment variable
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        String apiKey = getOption(options, "api-key", System.getenv(API_KEY_ENV));
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IllegalArgumentException("An API key is required, pass --api-key or set "
+                    + API_KEY_ENV);
+        }
+        new GatewayServer(Integer.parseInt(getOption(options, "port", "8080")),
+                getOption(options, "upstream", DEFAULT_UPSTREAM_URL),
+                apiKey,
+                Integer.parseInt(getOption(options, "threads", "64")),
+                Integer.parseInt(getOption(options, "cache-entries", "10000"))).start();
+    }
+
+    private static String getOption(Map<String, String> options, String name,
+                                    String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private Reply serve(final Endpoint<?> endpoint, final Matcher path,
+                        final Map<String, String> query) throws IOException {
+        final String cacheKey = endpoint.buildCacheKey(path, query);
+        Reply reply = getCachedReply(cacheKey);
+        if (reply != null) {
+            mCacheHits.incrementAndGet();
+            return reply;
+        }
+        return mUpstreamCalls.execute(cacheKey, new Callable<Reply>() {
+            @Override
+            public Reply call() throws IOException {
+                //The previous call for the key might have finished right before this one started
+                Reply reply = getCachedReply(cacheKey);
+                if (reply != null) {
+                    mCacheHits.incrementAndGet();
+                    return reply;
+                }
+                mUpstreamRequests.incrementAndGet();
+                reply = endpoint.fetch(path, query);
+                if (reply.mCode == 200) {
+                    mCache.put(cacheKey, new ResponseCache.Entry(reply.mBody,
+                            System.currentTimeMillis() + reply.mMaxAge * 1000L));
+                } else {
+                    mUpstreamFailures.incrementAndGet();
+                }
+                return reply;
+            }
+        });
+    }
+
+    private Reply getCachedReply(String cacheKey) {
+        final long now = System.currentTimeMillis();
+        ResponseCache.Entry entry = mCache.get(cacheKey, now);
+        if (entry == null) {
+            return null;
+        }
+        return new Reply(200, entry.getBody(), (entry.getExpires() - now) / 1000L);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery)
+            throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            final int separator = parameter.indexOf('=');
+            if (separator < 0) {
+                query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+            } else {
+                query.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void send(HttpExchange exchange, Reply reply) throws IOException {
+        if (reply.mCode == 200) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.getResponseHeaders().set("Cache-Control",
+                    "public, max-age=" + Math.max(0, reply.mMaxAge));
+        }
+        exchange.sendResponseHeaders(reply.mCode, reply.mBody.length > 0 ? reply.mBody.length : -1);
+        if (reply.mBody.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply.mBody);
+            }
+        }
+    }
+
+    private final class GatewayHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, new Reply(405, NO_BODY, 0));
+                    return;
+                }
+                final String path = exchange.getRequestURI().getRawPath();
+                for (Endpoint<?> endpoint : mEndpoints) {
+                    Matcher matcher = endpoint.mPath.matcher(path);
+                    if (matcher.matches()) {
+                        Reply reply;
+                        try {
+                            reply = serve(endpoint, matcher,
+                                    parseQuery(exchange.getRequestURI().getRawQuery()));
+                        } catch (IOException e) {
+                            LOG.log(Level.WARNING, "Upstream call for " + path + " failed", e);
+                            reply = new Reply(502, NO_BODY, 0);
+                        }
+                        send(exchange, reply);
+                        return;
+                    }
+                }
+                send(exchange, new Reply(404, NO_BODY, 0));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private final class StatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                StringWriter json = new StringWriter();
+                JsonWriter out = new JsonWriter(json);
+                out.beginObject()
+                        .name("cacheEntries").value(mCache.size())
+                        .name("cacheHits").value(mCacheHits.get())
+                        .name("upstreamRequests").value(mUpstreamRequests.get())
+                        .name("upstreamFailures").value(mUpstreamFailures.get())
+                        .name("upstreamInFlight").value(mUpstreamCalls.size())
+                        .endObject();
+                out.close();
+                send(exchange, new Reply(200, json.toString().getBytes(StandardCharsets.UTF_8),
+                        0));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static final class Reply {
+        private final int mCode;
+        private final byte[] mBody;
+        private final long mMaxAge;
+
+        /**
+         * @param maxAge The time in seconds the reply may be cached by the client
+         */
+        Reply(int code, byte[] body, long maxAge) {
+            mCode = code;
+            mBody = body;
+            mMaxAge = maxAge;
+        }
+    }
+
+    /**
+     * An upstream endpoint served by the gateway
+     * @param <T> The type of the upstream response
+     */
+    private abstract class Endpoint<T> {
+        private final Pattern mPath;
+        private final long mMaxAge;
+        private final String[] mKeyParameters;
+
+        /**
+         * @param path Matches the paths of the endpoint
+         * @param maxAge The time in seconds a response is cached
+         * @param keyParameters The query parameters the response depends on
+         */
+        Endpoint(String path, long maxAge, String... keyParameters) {
+            mPath = Pattern.compile(path);
+            mMaxAge = maxAge;
+            mKeyParameters = keyParameters;
+        }
+
+        String buildCacheKey(Matcher path, Map<String, String> query) {
+            StringBuilder key = new StringBuilder(path.group());
+            for (String parameter : mKeyParameters) {
+                key.append('|').append(parameter).append('=');
+                String value = query.get(parameter);
+                if (value != null) {
+                    key.append(value.toLowerCase());
+                }
+            }
+            return key.toString();
+        }
+
+        Reply fetch(Matcher path, Map<String, String> query) throws IOException {
+            Response<T> response = newCall(path, query).execute();
+            if (!response.isSuccessful()) {
+                ResponseBody errorBody = response.errorBody();
+                byte[] body = errorBody != null ? errorBody.bytes() : NO_BODY;
+                return new Reply(response.code(), body, 0);
+            }
+            StringWriter json = new StringWriter();
+            JsonWriter out = new JsonWriter(json);
+            write(out, response.body());
+            out.close();
+            return new Reply(200, json.toString().getBytes(StandardCharsets.UTF_8), mMaxAge);
+        }
+
+        String getApiKey() {
+            return mApiKey;
+        }
+
+        abstract Call<T> newCall(Matcher path, Map<String, String> query);
+
+        abstract void write(JsonWriter out, T body) throws IOException;
+    }
+
+    private final class CurrentConditionsEndpoint extends Endpoint<CurrentWeatherResponse> {
+        CurrentConditionsEndpoint() {
+            super("/currentconditions/v1/([^/]+)", TimeUnit.MINUTES.toSeconds(10),
+                    "language", "details");
+        }
+
+        @Override
+        Call<CurrentWeatherResponse> newCall(Matcher path, Map<String, String> query) {
+            return mUpstream.queryCurrentWeather(path.group(1), getApiKey(),
+                    query.get("language"), Boolean.parseBoolean(query.get("details")));
+        }
+
+        @Override
+        void write(JsonWriter out, CurrentWeatherResponse body) throws IOException {
+            //The endpoint wraps the current conditions in an array
+            out.beginArray();
+            new CurrentWeatherResponse.Adapter().write(out, body);
+            out.endArray();
+        }
+    }
+
+    private final class ForecastEndpoint extends Endpoint<ForecastResponse> {
+        ForecastEndpoint() {
+            super("/forecasts/v1/daily/(\\d+)day/([^/]+)", TimeUnit.HOURS.toSeconds(1),
+                    "language", "details", "metric");
+        }
+
+        @Override
+        Call<ForecastResponse> newCall(Matcher path, Map<String, String> query) {
+            return mUpstream.queryForecast(Integer.parseInt(path.group(1)), path.group(2),
+                    getApiKey(), query.get("language"),
+                    Boolean.parseBoolean(query.get("details")),
+                    Boolean.parseBoolean(query.get("metric")));
+        }
+
+        @Override
+        void write(JsonWriter out, ForecastResponse body) throws IOException {
+            new ForecastResponse.Adapter().write(out, body);
+        }
+    }
+
+    private final class CitySearchEndpoint extends Endpoint<List<CityInfoResponse>> {
+        CitySearchEndpoint() {
+            super("/locations/v1/cities/search", TimeUnit.DAYS.toSeconds(1),
+                    "q", "language", "details");
+        }
+
+        @Override
+        Call<List<CityInfoResponse>> newCall(Matcher path, Map<String, String> query) {
+            return mUpstream.lookupCity(getApiKey(), query.get("q"), query.get("language"),
+                    Boolean.parseBoolean(query.get("details")));
+        }
+
+        @Override
+        void write(JsonWriter out, List<CityInfoResponse> body) throws IOException {
+            CityInfoResponse.Adapter adapter = new CityInfoResponse.Adapter();
+            out.beginArray();
+            for (CityInfoResponse city : body) {
+                adapter.write(out, city);
+            }
+            out.endArray();
+        }
+    }
+
+    private final class GeoPositionSearchEndpoint extends Endpoint<CityInfoResponse> {
+        GeoPositionSearchEndpoint() {
+            super("/locations/v1/cities/geoposition/search", TimeUnit.DAYS.toSeconds(1),
+                    "q", "language", "details", "toplevel");
+        }
+
+        @Override
+        Call<CityInfoResponse> newCall(Matcher path, Map<String, String> query) {
+            return mUpstream.lookupCity(getApiKey(), query.get("q"), query.get("language"),
+                    Boolean.parseBoolean(query.get("details")),
+                    Boolean.parseBoolean(query.get("toplevel")));
+        }
+
+        @Override
+        void write(JsonWriter out, CityInfoResponse body) throws IOException {
+            new CityInfoResponse.Adapter().write(out, body);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.torbenhansing.accuweatherprovider.gateway;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the serialized responses, evicting the least recently used entry first.
+ * Expired entries are dropped when they are read.
+ */
+class ResponseCache {
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    ResponseCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, Entry>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResponseCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param now The current time in milliseconds
+     * @return The cached entry or null if there is none or it has expired
+     */
+    synchronized Entry get(String key, long now) {
+        Entry entry = mEntries.get(key);
+        if (entry != null && entry.mExpires <= now) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void put(String key, Entry entry) {
+        mEntries.put(key, entry);
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    static final class Entry {
+        private final byte[] mBody;
+        private final long mExpires;
+
+        /**
+         * @param body The serialized response
+         * @param expires The time in milliseconds the entry expires at
+         */
+        Entry(byte[] body, long expires) {
+            mBody = body;
+            mExpires = expires;
+        }
+
+        byte[] getBody() {
+            return mBody;
+        }
+
+        long getExpires() {
+            return mExpires;
+        }
+    }
+}
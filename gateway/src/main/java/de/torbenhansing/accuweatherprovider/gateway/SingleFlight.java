@@ -0,0 +1,52 @@
+package de.torbenhansing.accuweatherprovider.gateway;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs at most one call per key at a time. Callers asking for a key while its call is running
+ * wait for that call and share its result instead of starting their own.
+ * @param <T> The type of the results
+ */
+class SingleFlight<T> {
+    private final ConcurrentHashMap<String, FutureTask<T>> mCalls = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the call on the current thread, unless a call for the key is already running
+     * @return The result of the call for the key
+     * @throws IOException If the call failed
+     */
+    T execute(String key, Callable<T> call) throws IOException {
+        FutureTask<T> task = new FutureTask<>(call);
+        FutureTask<T> running = mCalls.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                mCalls.remove(key, task);
+            }
+            running = task;
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return The number of calls currently running
+     */
+    int size() {
+        return mCalls.size();
+    }
+}
@@ -0,0 +1,326 @@
+package de.torbenhansing.accuweatherprovider.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import de.torbenhansing.accuweatherprovider.accuweather.CallGroup;
+import de.torbenhansing.accuweatherprovider.accuweather.RequestProfile;
+import de.torbenhansing.accuweatherprovider.accuweather.WeatherFetcher;
+import de.torbenhansing.accuweatherprovider.accuweather.WeatherReport;
+import de.torbenhansing.accuweatherprovider.accuweather.responses.CityInfoResponse;
+import de.torbenhansing.accuweatherprovider.cache.WeatherCache;
+import de.torbenhansing.accuweatherprovider.utils.EventCounter;
+import de.torbenhansing.accuweatherprovider.utils.Histogram;
+import de.torbenhansing.accuweatherprovider.utils.TemperatureUnit;
+
+/**
+ * Submits a synthetic workload of weather updates and city lookups to the {@link WeatherFetcher}
+ * of the provider and reports the throughput, the latency percentiles and what the fetcher saw:
+ * the cache hits, the upstream failures, the retries and the transfers. The fetcher runs with
+ * the defaults the provider ships with, its weather cache in a temporary directory unless
+ * --cache-dir is given. A weather update by position resolves the position to its city first,
+ * like the provider does when the position is not cached.
+ *
+ * By default the requests go to a {@link MockAccuWeatherServer} started in the same process, so
+ * the driver runs offline and reports the requests that actually reached upstream. With
+ * --base-url they go elsewhere instead, e.g. to a gateway in front of the mock server. With
+ * --serve only the mock server is started, to point a device or a gateway at it.
+ */
+public class LoadDriver {
+    private static final String LANGUAGE = "en";
+
+    enum Kind {
+        WEATHER_BY_LOCATION_KEY, WEATHER_BY_POSITION, CITY_LOOKUP
+    }
+
+    enum Outcome {
+        SUCCESS, NO_DATA
+    }
+
+    private final WeatherFetcher mWeatherFetcher;
+    private final int mLocations;
+    private final double mPositionShare;
+    private final double mLookupShare;
+    private final Histogram[] mLatency = new Histogram[Kind.values().length];
+    private final Histogram mAllLatency = new Histogram();
+    private final EventCounter<Outcome> mOutcomes = new EventCounter<>(Outcome.class);
+
+    LoadDriver(WeatherFetcher weatherFetcher, int locations, double positionShare,
+               double lookupShare) {
+        mWeatherFetcher = weatherFetcher;
+        mLocations = locations;
+        mPositionShare = positionShare;
+        mLookupShare = lookupShare;
+        for (int i = 0; i < mLatency.length; i++) {
+            mLatency[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Options:
+     * <ul>
+     * <li>--requests, --warmup: the number of measured requests and of requests before them</li>
+     * <li>--concurrency: the number of requests in flight, like as many devices</li>
+     * <li>--locations: the number of distinct location keys the updates are spread over</li>
+     * <li>--position-share, --lookup-share: the share of the weather updates by position and
+     * of the city lookups, the remaining requests are weather updates by location key</li>
+     * <li>--profile: the request profile, minimal, standard or full</li>
+     * <li>--cache-dir: the directory of the weather and the HTTP cache, which is kept</li>
+     * <li>--http-cache-mb: the size of the HTTP cache, 0 disables it</li>
+     * <li>--base-url, --api-key: the server to send the requests to instead of the mock</li>
+     * <li>--latency-ms, --jitter-ms, --invalid-key-rate, --quota-rate, --error-rate,
+     * --slow-body-rate, --slow-body-bps: the faults injected by the mock server</li>
+     * <li>--serve: only start the mock server on the given port</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        final PrintWriter pw = new PrintWriter(System.out, true);
+
+        MockAccuWeatherServer server = null;
+        String baseUrl = getOption(options, "base-url", null);
+        if (baseUrl == null || options.containsKey("serve")) {
+            server = new MockAccuWeatherServer.Builder()
+                    .setLatency(Long.parseLong(getOption(options, "latency-ms", "0")),
+                            Long.parseLong(getOption(options, "jitter-ms", "0")),
+                            TimeUnit.MILLISECONDS)
+                    .setInvalidApiKeyRate(getRate(options, "invalid-key-rate"))
+                    .setQuotaExceededRate(getRate(options, "quota-rate"))
+                    .setServerErrorRate(getRate(options, "error-rate"))
+                    .setSlowBody(getRate(options, "slow-body-rate"),
+                            Long.parseLong(getOption(options, "slow-body-bps", "1024")))
+                    .build();
+        }
+        if (options.containsKey("serve")) {
+            server.start(Integer.parseInt(getOption(options, "serve", "0")));
+            pw.println("Serving fixtures at " + server.getUrl());
+            return;
+        }
+
+        //Everything started from here on is stopped again, whatever fails, or the threads of
+        //the mock server keep the JVM alive
+        final String cacheDirOption = getOption(options, "cache-dir", null);
+        File cacheDir = null;
+        ExecutorService compactionExecutor = null;
+        ExecutorService executor = null;
+        try {
+            if (server != null) {
+                server.start(0);
+                baseUrl = server.getUrl().toString();
+            }
+            final int concurrency = Integer.parseInt(getOption(options, "concurrency", "16"));
+            cacheDir = cacheDirOption != null ? new File(cacheDirOption)
+                    : Files.createTempDirectory("harness").toFile();
+            compactionExecutor = Executors.newSingleThreadExecutor();
+            final WeatherCache weatherCache = new WeatherCache(cacheDir, 16,
+                    TimeUnit.MINUTES.toMillis(120), compactionExecutor);
+            final WeatherFetcher weatherFetcher = new WeatherFetcher.Builder(baseUrl,
+                    weatherCache)
+                    .setHttpCache(new File(cacheDir, "http"), Long.parseLong(
+                            getOption(options, "http-cache-mb", "10")) * 1024L * 1024L)
+                    //Every request has up to two calls in flight, none of them should wait for
+                    //the client
+                    .setConnectionPool(2 * concurrency, 5, TimeUnit.MINUTES)
+                    .setMaxRequestsPerHost(2 * concurrency)
+                    .setRequestProfile(RequestProfile.fromName(
+                            getOption(options, "profile", "standard")))
+                    .build();
+            weatherFetcher.setApiKey(getOption(options, "api-key", "harness"));
+            final LoadDriver driver = new LoadDriver(weatherFetcher,
+                    Integer.parseInt(getOption(options, "locations", "1000")),
+                    getRate(options, "position-share", "0.3"),
+                    getRate(options, "lookup-share", "0.1"));
+            executor = Executors.newFixedThreadPool(concurrency);
+
+            driver.run(executor, Integer.parseInt(getOption(options, "warmup", "1000")), false);
+            final int requests = Integer.parseInt(getOption(options, "requests", "10000"));
+            final long start = System.nanoTime();
+            driver.run(executor, requests, true);
+            final long elapsed = System.nanoTime() - start;
+
+            pw.println(String.format(Locale.ROOT, "%d requests in %.2f s: %.1f requests/s",
+                    requests, elapsed / 1e9, requests * 1e9 / elapsed));
+            driver.dump(pw);
+            pw.println("Fetcher, including the warmup:");
+            weatherFetcher.dump(pw);
+            if (server != null) {
+                pw.println("Mock server, including the warmup:");
+                server.dump(pw, "  ");
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (compactionExecutor != null) {
+                compactionExecutor.shutdownNow();
+            }
+            if (server != null) {
+                server.shutdown();
+            }
+            if (cacheDirOption == null && cacheDir != null) {
+                delete(cacheDir);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            System.err.println("Unable to delete " + file);
+        }
+    }
+
+    private static String getOption(Map<String, String> options, String name,
+                                    String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static double getRate(Map<String, String> options, String name) {
+        return getRate(options, name, "0");
+    }
+
+    private static double getRate(Map<String, String> options, String name,
+                                  String defaultValue) {
+        final double rate = Double.parseDouble(getOption(options, name, defaultValue));
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("--" + name + " has to be between 0 and 1");
+        }
+        return rate;
+    }
+
+    /**
+     * Submits the requests and waits until all of them have completed
+     * @param record Whether the latency and the outcome of the requests are recorded
+     */
+    void run(ExecutorService executor, int requests, final boolean record)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(requests);
+        for (int i = 0; i < requests; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        submitRequest(record);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Latency (us): " + mAllLatency);
+        for (Kind kind : Kind.values()) {
+            if (mLatency[kind.ordinal()].getCount() > 0) {
+                pw.println("  " + kind + ": " + mLatency[kind.ordinal()]);
+            }
+        }
+        pw.println("Outcomes:");
+        mOutcomes.dump(pw, "  ");
+    }
+
+    private void submitRequest(boolean record) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final double share = random.nextDouble();
+        final Kind kind = share < mLookupShare ? Kind.CITY_LOOKUP
+                : share < mLookupShare + mPositionShare ? Kind.WEATHER_BY_POSITION
+                : Kind.WEATHER_BY_LOCATION_KEY;
+        final long start = System.nanoTime();
+        final Outcome outcome;
+        switch (kind) {
+            case CITY_LOOKUP:
+                outcome = lookupCity(random);
+                break;
+            case WEATHER_BY_POSITION:
+                outcome = updateWeatherByPosition(random);
+                break;
+            default:
+                outcome = updateWeather(String.valueOf(100000 + random.nextInt(mLocations)),
+                        "Somewhere");
+        }
+        if (record) {
+            final long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            mLatency[kind.ordinal()].record(latency);
+            mAllLatency.record(latency);
+            mOutcomes.increment(outcome);
+        }
+    }
+
+    private Outcome lookupCity(ThreadLocalRandom random) {
+        //A prefix of a city name, like a user typing into the search field
+        final String query = "Berlin".substring(0, 2 + random.nextInt(5));
+        return mWeatherFetcher.lookupCity(query, LANGUAGE, mWeatherFetcher.newCallGroup())
+                .isEmpty() ? Outcome.NO_DATA : Outcome.SUCCESS;
+    }
+
+    private Outcome updateWeatherByPosition(ThreadLocalRandom random) {
+        final CallGroup calls = mWeatherFetcher.newCallGroup();
+        final BlockingWeatherCallback callback = new BlockingWeatherCallback();
+        mWeatherFetcher.lookupCityAsync(random.nextDouble(-60, 70), random.nextDouble(-180, 180),
+                LANGUAGE, calls, new WeatherFetcher.CityCallback() {
+                    @Override
+                    public void onCityReceived(CityInfoResponse city) {
+                        if (city == null) {
+                            callback.onWeatherReceived(null);
+                            return;
+                        }
+                        mWeatherFetcher.getWeatherAsync(city.getCityId(), city.getCityName(),
+                                LANGUAGE, TemperatureUnit.CELSIUS, calls, callback);
+                    }
+                });
+        return callback.await();
+    }
+
+    private Outcome updateWeather(String cityId, String cityName) {
+        final BlockingWeatherCallback callback = new BlockingWeatherCallback();
+        mWeatherFetcher.getWeatherAsync(cityId, cityName, LANGUAGE, TemperatureUnit.CELSIUS,
+                mWeatherFetcher.newCallGroup(), callback);
+        return callback.await();
+    }
+
+    private static final class BlockingWeatherCallback implements WeatherFetcher.WeatherCallback {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile WeatherReport mReport;
+
+        @Override
+        public void onWeatherReceived(WeatherReport report) {
+            mReport = report;
+            mLatch.countDown();
+        }
+
+        Outcome await() {
+            try {
+                mLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Outcome.NO_DATA;
+            }
+            return mReport != null ? Outcome.SUCCESS : Outcome.NO_DATA;
+        }
+    }
+}
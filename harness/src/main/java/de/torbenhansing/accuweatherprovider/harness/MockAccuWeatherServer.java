@@ -0,0 +1,333 @@
+package de.torbenhansing.accuweatherprovider.harness;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import de.torbenhansing.accuweatherprovider.utils.EventCounter;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Local stand-in for the AccuWeather API serving recorded payloads for every endpoint of the
+ * {@link de.torbenhansing.accuweatherprovider.accuweather.AccuWeatherInterface}. The payload
+ * depends on the endpoint, the number of forecast days and the details flag, not on the
+ * location, so any location key and position is answered. Faults are injected at random in the
+ * configured rates:
+ * <ul>
+ * <li>Latency: the time the server takes before it sends the response headers</li>
+ * <li>Invalid API key: 401, also sent if the request carries no API key at all</li>
+ * <li>Quota exceeded: 503</li>
+ * <li>Server error: 500</li>
+ * <li>Slow body: the body of a successful response trickles in at a limited rate</li>
+ * </ul>
+ * Every request is counted by endpoint and by the reply it got.
+ */
+public class MockAccuWeatherServer {
+    private static final String JSON = "application/json; charset=UTF-8";
+    //Logs every request, which would dominate the measurements. Held, so the level sticks
+    private static final Logger MOCK_WEB_SERVER_LOG
+            = Logger.getLogger(MockWebServer.class.getName());
+
+    enum Endpoint {
+        GEOPOSITION, CITY_SEARCH, CURRENT_CONDITIONS, FORECAST, UNKNOWN;
+
+        static Endpoint fromPath(String path) {
+            if (path.equals("/locations/v1/cities/geoposition/search")) {
+                return GEOPOSITION;
+            } else if (path.equals("/locations/v1/cities/search")) {
+                return CITY_SEARCH;
+            } else if (path.matches("/currentconditions/v1/[^/]+")) {
+                return CURRENT_CONDITIONS;
+            } else if (path.matches("/forecasts/v1/daily/\\d+day/[^/]+")) {
+                return FORECAST;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    enum Reply {
+        OK, SLOW_BODY, NOT_FOUND, INVALID_API_KEY, QUOTA_EXCEEDED, SERVER_ERROR
+    }
+
+    private final MockWebServer mServer = new MockWebServer();
+    private final Map<String, byte[]> mPayloads = new HashMap<>();
+    private final long mLatency;
+    private final long mLatencyJitter;
+    private final double mInvalidApiKeyRate;
+    private final double mQuotaExceededRate;
+    private final double mServerErrorRate;
+    private final double mSlowBodyRate;
+    private final long mSlowBodyBytesPerSecond;
+    private final EventCounter<Endpoint> mRequests = new EventCounter<>(Endpoint.class);
+    private final EventCounter<Reply> mReplies = new EventCounter<>(Reply.class);
+
+    private MockAccuWeatherServer(Builder builder) throws IOException {
+        mLatency = builder.mLatency;
+        mLatencyJitter = builder.mLatencyJitter;
+        mInvalidApiKeyRate = builder.mInvalidApiKeyRate;
+        mQuotaExceededRate = builder.mQuotaExceededRate;
+        mServerErrorRate = builder.mServerErrorRate;
+        mSlowBodyRate = builder.mSlowBodyRate;
+        mSlowBodyBytesPerSecond = builder.mSlowBodyBytesPerSecond;
+        for (String name : new String[] {"geoposition", "cities_25", "current_minimal",
+                "current_details", "forecast_1day", "forecast_5day", "forecast_5day_details"}) {
+            mPayloads.put(name, loadPayload(name));
+        }
+        MOCK_WEB_SERVER_LOG.setLevel(Level.WARNING);
+        mServer.setDispatcher(new FixtureDispatcher());
+        mServer.setServerSocketFactory(new NoDelayServerSocketFactory());
+    }
+
+    public void start(int port) throws IOException {
+        mServer.start(port);
+    }
+
+    public void shutdown() throws IOException {
+        mServer.shutdown();
+    }
+
+    /**
+     * @return The base URL to pass to Retrofit, or to the server URL setting of the provider
+     */
+    public HttpUrl getUrl() {
+        return mServer.url("/");
+    }
+
+    public long getRequestCount() {
+        return mServer.getRequestCount();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Requests by endpoint:");
+        mRequests.dump(pw, prefix + "  ");
+        pw.println(prefix + "Replies:");
+        mReplies.dump(pw, prefix + "  ");
+    }
+
+    private static byte[] loadPayload(String name) throws IOException {
+        InputStream in = MockAccuWeatherServer.class.getResourceAsStream(
+                "/payloads/" + name + ".json");
+        if (in == null) {
+            throw new IOException("Unknown payload " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private final class FixtureDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            final HttpUrl url = HttpUrl.parse("http://localhost" + request.getPath());
+            final Endpoint endpoint = Endpoint.fromPath(url.encodedPath());
+            mRequests.increment(endpoint);
+
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long latency = mLatency
+                    + (mLatencyJitter > 0 ? random.nextLong(mLatencyJitter + 1) : 0);
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            //The faults are mutually exclusive, each one takes its share of the requests
+            final double fault = random.nextDouble();
+            final Reply reply;
+            final String payload;
+            if (endpoint == Endpoint.UNKNOWN) {
+                reply = Reply.NOT_FOUND;
+                payload = null;
+            } else if (url.queryParameter("apikey") == null || fault < mInvalidApiKeyRate) {
+                reply = Reply.INVALID_API_KEY;
+                payload = null;
+            } else if (fault < mInvalidApiKeyRate + mQuotaExceededRate) {
+                reply = Reply.QUOTA_EXCEEDED;
+                payload = null;
+            } else if (fault < mInvalidApiKeyRate + mQuotaExceededRate + mServerErrorRate) {
+                reply = Reply.SERVER_ERROR;
+                payload = null;
+            } else {
+                reply = random.nextDouble() < mSlowBodyRate ? Reply.SLOW_BODY : Reply.OK;
+                payload = getPayloadName(endpoint, url);
+            }
+            mReplies.increment(reply);
+
+            switch (reply) {
+                case NOT_FOUND:
+                    return buildError(404, "ResourceNotFound", "Unknown resource");
+                case INVALID_API_KEY:
+                    return buildError(401, "Unauthorized", "Api Authorization failed");
+                case QUOTA_EXCEEDED:
+                    return buildError(503, "ServiceUnavailable",
+                            "The allowed number of requests has been exceeded.");
+                case SERVER_ERROR:
+                    return buildError(500, "ServerError", "An error has occurred");
+            }
+            MockResponse response = new MockResponse()
+                    .setHeader("Content-Type", JSON)
+                    .setBody(new Buffer().write(mPayloads.get(payload)));
+            if (reply == Reply.SLOW_BODY) {
+                //Ten chunks a second
+                response.throttleBody(Math.max(1, mSlowBodyBytesPerSecond / 10), 100,
+                        TimeUnit.MILLISECONDS);
+            }
+            return response;
+        }
+
+        private String getPayloadName(Endpoint endpoint, HttpUrl url) {
+            final boolean details = Boolean.parseBoolean(url.queryParameter("details"));
+            switch (endpoint) {
+                case GEOPOSITION:
+                    return "geoposition";
+                case CITY_SEARCH:
+                    return "cities_25";
+                case CURRENT_CONDITIONS:
+                    return details ? "current_details" : "current_minimal";
+                default:
+                    if (url.pathSegments().get(3).equals("1day")) {
+                        return "forecast_1day";
+                    }
+                    return details ? "forecast_5day_details" : "forecast_5day";
+            }
+        }
+
+        private MockResponse buildError(int code, String errorCode, String message) {
+            return new MockResponse()
+                    .setResponseCode(code)
+                    .setHeader("Content-Type", JSON)
+                    .setBody("{\"Code\":\"" + errorCode + "\",\"Message\":\"" + message
+                            + "\"}");
+        }
+    }
+
+    /**
+     * The headers and the body of a response are written separately. With Nagle's algorithm the
+     * body waits for the delayed acknowledgement of the headers, which adds 40ms to every call
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new NoDelayServerSocket();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port));
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(port), backlog);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address)
+                throws IOException {
+            ServerSocket socket = createServerSocket();
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        }
+    }
+
+    private static final class NoDelayServerSocket extends ServerSocket {
+        NoDelayServerSocket() throws IOException {
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = super.accept();
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    public static final class Builder {
+        private long mLatency;
+        private long mLatencyJitter;
+        private double mInvalidApiKeyRate;
+        private double mQuotaExceededRate;
+        private double mServerErrorRate;
+        private double mSlowBodyRate;
+        private long mSlowBodyBytesPerSecond = 1024;
+
+        /**
+         * @param latency The minimum time before the response headers are sent
+         * @param jitter The maximum random time added to the latency
+         */
+        public Builder setLatency(long latency, long jitter, TimeUnit unit) {
+            mLatency = unit.toMillis(latency);
+            mLatencyJitter = unit.toMillis(jitter);
+            return this;
+        }
+
+        /**
+         * @param rate The share of the requests answered with 401, from 0 to 1
+         */
+        public Builder setInvalidApiKeyRate(double rate) {
+            mInvalidApiKeyRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate The share of the requests answered with 503, from 0 to 1
+         */
+        public Builder setQuotaExceededRate(double rate) {
+            mQuotaExceededRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate The share of the requests answered with 500, from 0 to 1
+         */
+        public Builder setServerErrorRate(double rate) {
+            mServerErrorRate = rate;
+            return this;
+        }
+
+        /**
+         * @param rate The share of the successful responses with a slow body, from 0 to 1
+         * @param bytesPerSecond The rate at which the slow bodies are sent
+         */
+        public Builder setSlowBody(double rate, long bytesPerSecond) {
+            mSlowBodyRate = rate;
+            mSlowBodyBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public MockAccuWeatherServer build() throws IOException {
+            if (mInvalidApiKeyRate + mQuotaExceededRate + mServerErrorRate > 1) {
+                throw new IllegalArgumentException("The error rates add up to more than 1");
+            }
+            return new MockAccuWeatherServer(this);
+        }
+    }
+}